@@ -2,6 +2,9 @@
 --  File created - воскресенье-августа-13-2017   
 --------------------------------------------------------
 DROP TABLE "DZ"."DZ_COMPANY" cascade constraints;
+DROP TABLE "DZ"."DZ_COMPANY_STAGE" cascade constraints;
+DROP TABLE "DZ"."DZ_COMPANY_LOG" cascade constraints;
+DROP SEQUENCE "DZ"."DZ_COMPANY_LOG_SEQ";
 --------------------------------------------------------
 --  DDL for Table DZ_COMPANY
 --------------------------------------------------------
@@ -17,6 +20,36 @@ DROP TABLE "DZ"."DZ_COMPANY" cascade constraints;
   PCTINCREASE 0 FREELISTS 1 FREELIST GROUPS 1 BUFFER_POOL DEFAULT FLASH_CACHE DEFAULT CELL_FLASH_CACHE DEFAULT)
   TABLESPACE "APEX_4811620023107695" ;
 --------------------------------------------------------
+--  DDL for Table DZ_COMPANY_STAGE
+--  (промежуточная таблица для синхронизации силами БД, diffMode = dbmerge)
+--------------------------------------------------------
+
+  CREATE GLOBAL TEMPORARY TABLE "DZ"."DZ_COMPANY_STAGE" 
+   (	"DEPCODE" VARCHAR2(20 CHAR) NOT NULL ENABLE, 
+	"DEPJOB" VARCHAR2(100 CHAR) NOT NULL ENABLE, 
+	"DESCRIPTION" VARCHAR2(255 CHAR), 
+	 CONSTRAINT "DZ_COMPANY_STAGE_PK" PRIMARY KEY ("DEPCODE", "DEPJOB") ENABLE
+   ) ON COMMIT DELETE ROWS ;
+--------------------------------------------------------
+--  DDL for Table DZ_COMPANY_LOG
+--  (журнал изменений для инкрементальной выгрузки, exportMode = incremental:
+--  ключи вставленных, измененных и удаленных строк DZ_COMPANY; заполняется триггером AIUD_DZ_COMPANY_LOG.
+--  Отметка выгрузки - ORA_ROWSCN записей журнала (ROWDEPENDENCIES - SCN фиксации по каждой записи, а не по блоку).
+--  Обработанные записи (ORA_ROWSCN не больше отметки в <файл>.export всех выгрузок) можно удалять)
+--------------------------------------------------------
+
+  CREATE TABLE "DZ"."DZ_COMPANY_LOG" 
+   (	"SEQ" NUMBER NOT NULL ENABLE, 
+	"DEPCODE" VARCHAR2(20 CHAR) NOT NULL ENABLE, 
+	"DEPJOB" VARCHAR2(100 CHAR) NOT NULL ENABLE, 
+	 CONSTRAINT "DZ_COMPANY_LOG_PK" PRIMARY KEY ("SEQ") ENABLE
+   ) ROWDEPENDENCIES ;
+--------------------------------------------------------
+--  DDL for Sequence DZ_COMPANY_LOG_SEQ
+--------------------------------------------------------
+
+   CREATE SEQUENCE  "DZ"."DZ_COMPANY_LOG_SEQ"  MINVALUE 1 MAXVALUE 9999999999999999999999999999 INCREMENT BY 1 START WITH 1 CACHE 20 NOORDER  NOCYCLE ;
+--------------------------------------------------------
 --  DDL for Sequence DZ_COMPANY_SEQ
 --------------------------------------------------------
 
@@ -77,6 +110,24 @@ end;
 /
 ALTER TRIGGER "DZ"."BI_DZ_COMPANY" ENABLE;
 --------------------------------------------------------
+--  DDL for Trigger AIUD_DZ_COMPANY_LOG
+--------------------------------------------------------
+
+  CREATE OR REPLACE TRIGGER "DZ"."AIUD_DZ_COMPANY_LOG" 
+  after insert or update or delete on "DZ_COMPANY"               
+  for each row  
+begin   
+  if deleting or (updating and (:OLD."DEPCODE" <> :NEW."DEPCODE" or :OLD."DEPJOB" <> :NEW."DEPJOB")) then 
+    insert into "DZ_COMPANY_LOG" ("SEQ", "DEPCODE", "DEPJOB") values ("DZ_COMPANY_LOG_SEQ".nextval, :OLD."DEPCODE", :OLD."DEPJOB"); 
+  end if; 
+  if inserting or updating then 
+    insert into "DZ_COMPANY_LOG" ("SEQ", "DEPCODE", "DEPJOB") values ("DZ_COMPANY_LOG_SEQ".nextval, :NEW."DEPCODE", :NEW."DEPJOB"); 
+  end if; 
+end; 
+
+/
+ALTER TRIGGER "DZ"."AIUD_DZ_COMPANY_LOG" ENABLE;
+--------------------------------------------------------
 --  DDL for Synonymn DUAL
 --------------------------------------------------------
 
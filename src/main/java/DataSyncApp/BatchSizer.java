@@ -0,0 +1,159 @@
+package DataSyncApp;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static DataSyncApp.DataSync.logger;
+
+/**
+ * Подбор размера пачки команд под БД: время выполнения каждой пачки (executeBatch) замеряется, и размер пачки меняется
+ * в сторону большей скорости (строк в секунду). Для близкой БД выгоднее пачки поменьше, для далекой (большое время обращения) - побольше.
+ * Подбор - восхождением: по нескольким пачкам одного размера считается скорость, и размер удваивается или уменьшается вдвое;
+ * если скорость упала - направление меняется на обратное. Размер не выходит за заданные границы, а пачка отправляется и раньше,
+ * если примерный объем ее данных в памяти достиг предела.
+ * История размеров (размер, количество пачек, скорость и среднее время пачки) пишется в лог в конце записи.
+ */
+class BatchSizer {
+    private static final int SAMPLE_BATCHES = 3; // по скольким пачкам одного размера считается скорость
+    private static final double WORSE = 0.95;    // скорость упала, если она меньше прежней больше чем на 5%
+
+    private int mSize;              // текущий размер пачки
+    private int mMinSize;           // границы размера
+    private int mMaxSize;
+    private long mMaxBytes;         // предел объема данных пачки, байт
+    private int mDirection = 1;     // 1 - увеличиваем размер, -1 - уменьшаем
+
+    private int mRows = 0;          // строк в текущей пачке
+    private long mBytes = 0;        // примерный объем данных текущей пачки
+
+    private int mSampleBatches = 0; // пачек текущего размера в замере
+    private long mSampleRows = 0;
+    private long mSampleNanos = 0;
+    private double mLastRate = 0;   // скорость прошлого размера, строк в секунду
+
+    private Map<Integer,long[]> mHistory = new TreeMap<>(); // размер -> {пачек, строк, наносекунд}
+
+    /**
+     * Создание подборщика размера пачки.
+     * @param size начальный размер пачки
+     * @param minSize наименьший размер
+     * @param maxSize наибольший размер; если равен наименьшему - размер не подбирается
+     * @param maxBytes предел объема данных одной пачки, байт
+     */
+    BatchSizer(int size, int minSize, int maxSize, long maxBytes) {
+        mMinSize = minSize;
+        mMaxSize = maxSize;
+        mSize = Math.max(minSize, Math.min(size, maxSize));
+        mMaxBytes = maxBytes;
+    }
+
+    int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Учет добавленной в пачку строки.
+     * @param dep строка
+     * @return true, если пачка набрана и ее пора выполнить
+     */
+    boolean add(Dep dep) {
+        mRows++;
+        mBytes += rowBytes(dep);
+        return mRows >= mSize || mBytes >= mMaxBytes;
+    }
+
+    /**
+     * Примерный объем строки в пачке драйвера: символы полей (по 2 байта) и накладные расходы на параметры.
+     * @param dep строка
+     * @return объем, байт
+     */
+    private static long rowBytes(Dep dep) {
+        String description = dep.isDigestOnly() ? null : dep.getDescription();
+        return 64 + 2L * (dep.getPair().getCode().length() + dep.getPair().getJob().length()
+                + ((description == null) ? 0 : description.length()));
+    }
+
+    /**
+     * Есть ли строки, добавленные после последнего выполнения.
+     * @return true, если пачка не пустая
+     */
+    boolean hasPending() {
+        return mRows > 0;
+    }
+
+    /**
+     * Выполнение пачки с замером времени; по набранному замеру выбирается следующий размер пачки.
+     * Неполная пачка (последняя, либо отправленная по пределу объема) в подборе размера не участвует.
+     * @param ps команда с пачкой
+     * @throws SQLException ошибка выполнения команды
+     */
+    void execute(PreparedStatement ps) throws SQLException {
+        int rows = mRows;
+        boolean full = rows >= mSize;
+        mRows = 0;
+        mBytes = 0;
+
+        long start = System.nanoTime();
+        ps.executeBatch();
+        long nanos = System.nanoTime() - start;
+
+        long[] stats = mHistory.computeIfAbsent(mSize, k -> new long[3]);
+        stats[0]++;
+        stats[1] += rows;
+        stats[2] += nanos;
+
+        if (!full || mMinSize == mMaxSize) return;
+
+        mSampleBatches++;
+        mSampleRows += rows;
+        mSampleNanos += nanos;
+
+        if (mSampleBatches < SAMPLE_BATCHES) return;
+
+        double rate = mSampleRows * 1e9 / Math.max(mSampleNanos, 1);
+        logger.debug("Batch size " + mSize + ": " + (long) rate + " rows/s, " + (mSampleNanos / mSampleBatches / 1000000) + " ms per batch");
+
+        // стало медленнее - поворачиваем назад
+        if (mLastRate > 0 && rate < mLastRate * WORSE) {
+            mDirection = -mDirection;
+        }
+        mLastRate = rate;
+
+        int next = nextSize(mDirection);
+        if (next == mSize) {
+            // уперлись в границу - пробуем в другую сторону
+            mDirection = -mDirection;
+            next = nextSize(mDirection);
+        }
+
+        mSize = next;
+        mSampleBatches = 0;
+        mSampleRows = 0;
+        mSampleNanos = 0;
+    }
+
+    private int nextSize(int direction) {
+        long next = (direction > 0) ? mSize * 2L : mSize / 2;
+        return (int) Math.max(mMinSize, Math.min(next, mMaxSize));
+    }
+
+    /**
+     * Запись истории размеров пачек в лог.
+     * @param what что писалось (для лога)
+     */
+    void logHistory(String what) {
+        if (mHistory.isEmpty()) return;
+
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Integer,long[]> entry : mHistory.entrySet()) {
+            long[] stats = entry.getValue();
+            sb.append(sb.length() == 0 ? "" : "; ")
+                    .append(entry.getKey()).append(" x ").append(stats[0])
+                    .append(" (").append((long) (stats[1] * 1e9 / Math.max(stats[2], 1))).append(" rows/s, ")
+                    .append(stats[2] / stats[0] / 1000000).append(" ms)");
+        }
+        logger.debug("Batch sizes for " + what + ": " + sb + "; next size = " + mSize);
+    }
+}
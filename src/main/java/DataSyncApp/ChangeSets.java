@@ -0,0 +1,54 @@
+package DataSyncApp;
+
+import java.util.*;
+
+import static DataSyncApp.DataSync.logger;
+
+/**
+ * Собирает решения сравнения файла и БД в три списка - для удаления из БД, для изменения и для инсерта в БД,
+ * и отдает их одним мапом в том виде, в котором его принимает {@link DbController#writeDataToDb(Map)}.
+ */
+class ChangeSets implements DiffHandler {
+    private Set<Dep> mDeleteSet = new HashSet<>(); // список элементов для удаления
+    private Set<Dep> mEditedSet = new HashSet<>(); // список элементов для апдейта
+    private Set<Dep> mInsertSet = new HashSet<>(); // список элементов для вставки
+
+    @Override
+    public void delete(Dep dbDep) {
+        logger.trace("Adding dbDep to mDeleteSet: " + dbDep);
+        mDeleteSet.add(dbDep);
+    }
+
+    @Override
+    public void update(Dep fileDep) {
+        logger.trace("Adding fileDep to mEditedSet: " + fileDep);
+        mEditedSet.add(fileDep);
+    }
+
+    @Override
+    public void insert(Dep fileDep) {
+        logger.trace("Adding fileDep to mInsertSet: " + fileDep);
+        mInsertSet.add(fileDep);
+    }
+
+    /**
+     * Проверка, что изменений нет.
+     * @return true, если все три списка пустые, то есть файл и БД совпадают
+     */
+    boolean isEmpty() {
+        return mDeleteSet.isEmpty() && mEditedSet.isEmpty() && mInsertSet.isEmpty();
+    }
+
+    /**
+     * Списки изменений одним мапом.
+     * @return мап, в котором ключом служит строка-обозначение сета (deleteSet, updateSet, insertSet), а значением - сам сет
+     */
+    Map<String,Set<Dep>> toMap() {
+        Map<String,Set<Dep>> oMap = new HashMap<>();
+        oMap.put("deleteSet", mDeleteSet);
+        oMap.put("updateSet", mEditedSet);
+        oMap.put("insertSet", mInsertSet);
+        logger.debug("deleteSet.size() = " + mDeleteSet.size() + ", updateSet.size() = " + mEditedSet.size() + ", insertSet.size() = " + mInsertSet.size());
+        return oMap;
+    }
+}
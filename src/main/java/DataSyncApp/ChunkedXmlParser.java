@@ -0,0 +1,308 @@
+package DataSyncApp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static DataSyncApp.DataSync.logger;
+
+/**
+ * Параллельный разбор большого xml файла по кускам. Формат выгрузки плоский: в корне только строки (Row),
+ * поэтому файл можно разрезать по байтовым границам перед открывающими тегами Row и разобрать куски одновременно,
+ * каждый своим StAX ридером на ForkJoin пуле. Каждый кусок оборачивается в корневой тег, чтобы быть самостоятельным документом.
+ * Строки всех кусков собираются в общий мап (ConcurrentHashMap, либо заданный, под блокировкой); повтор ключа ловится там же, в том числе между кусками.
+ * Если файл не подходит (не UTF-8, DOCTYPE, мал для деления) или разбор какого-то куска не удался (ошибка в данных, повтор ключа,
+ * граница попала внутрь комментария или CDATA), возвращается null: вызывающий разбирает файл обычным путем,
+ * и точное сообщение об ошибке (с номером строки) дает уже он.
+ */
+class ChunkedXmlParser {
+    private static final long MIN_CHUNK = 4L << 20;  // меньше куски не режем: накладные расходы съедят выигрыш
+    private static final int SCAN_BUFFER = 1 << 16; // буфер поиска границы
+    private static final byte[] ROW_TAG = "<Row".getBytes(StandardCharsets.US_ASCII);
+
+    private File mFile;    // файл
+    private int mThreads;  // количество потоков разбора
+    private KeyDictionary mKeyDictionary; // словарь значений ключа
+
+    /**
+     * Создание разборщика.
+     * @param file файл с данными
+     * @param threads количество потоков разбора
+     * @param keyDictionary словарь значений ключа, в котором создаются ключи строк
+     */
+    ChunkedXmlParser(File file, int threads, KeyDictionary keyDictionary) {
+        logger.debug("Creating new ChunkedXmlParser; file = " + file + ", threads = " + threads);
+        mFile = file;
+        mThreads = threads;
+        mKeyDictionary = keyDictionary;
+    }
+
+    /**
+     * Разбор файла по кускам.
+     * @param target пустой мап для строк файла; если он не потокобезопасен, куски пишут в него по очереди; null - ConcurrentHashMap
+     * @return мап строк файла, либо null, если файл надо разобрать обычным путем (заданный мап при этом очищается)
+     * @throws HardException разбор отменен (поток прерван), либо ошибка чтения файла
+     */
+    Map<Pair,Dep> parse(Map<Pair,Dep> target) throws HardException {
+        long start = System.currentTimeMillis();
+        long length = mFile.length();
+        int chunks = (int) Math.min(mThreads, length / MIN_CHUNK);
+
+        if (chunks < 2) {
+            logger.debug("File is too small to parse in chunks; length = " + length);
+            return null;
+        }
+
+        List<Long> bounds;
+        try {
+            if (!isPlainUtf8()) {
+                logger.debug("File is not plain UTF-8 xml; parsing sequentially");
+                return null;
+            }
+            bounds = findBounds(length, chunks);
+        } catch (IOException ioEx) {
+            logger.error("Error: failed to read data from file");
+            throw new HardException(ioEx);
+        }
+
+        if (bounds.size() < 3) {
+            logger.debug("No row boundaries to split file at; parsing sequentially");
+            return null;
+        }
+
+        int parts = bounds.size() - 1;
+        // примерно 100 байт на строку; начальный размер, чтобы мап не перестраивался на ходу
+        Map<Pair,Dep> oMap = (target == null) ? new ConcurrentHashMap<>((int) Math.min(Integer.MAX_VALUE / 2, length / 100), 0.75f, parts)
+                : (target instanceof ConcurrentMap) ? target : Collections.synchronizedMap(target);
+        AtomicBoolean failed = new AtomicBoolean(); // сигнал остальным кускам остановиться
+        ForkJoinPool pool = new ForkJoinPool(parts);
+        List<Future<Long>> futures = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < parts; i++) {
+                final int part = i;
+                final long from = bounds.get(i);
+                final long to = bounds.get(i + 1);
+                futures.add(pool.submit(() -> parseChunk(part, parts, from, to, oMap, failed)));
+            }
+
+            long numRows = 0;
+            for (Future<Long> future : futures) {
+                try {
+                    numRows += future.get();
+                } catch (ExecutionException exEx) {
+                    failed.set(true);
+                    logger.debug("Chunk parse failed; parsing sequentially");
+                    logger.debug(exEx.getCause());
+                    pool.shutdownNow();
+                    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                    oMap.clear();
+                    return null;
+                }
+            }
+
+            logger.info("Parsed file in " + parts + " chunks; rows = " + numRows + ", time = " + (System.currentTimeMillis() - start) + " ms");
+            return (target == null) ? oMap : target;
+        } catch (InterruptedException iEx) {
+            failed.set(true);
+            Thread.currentThread().interrupt();
+            throw new HardException(iEx);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Разбор одного куска файла.
+     * @param part номер куска
+     * @param parts количество кусков
+     * @param from начало куска, байт
+     * @param to конец куска, байт
+     * @param oMap общий мап строк
+     * @param failed сигнал остановиться
+     * @return количество строк куска
+     * @throws HardException ошибка разбора или повтор ключа
+     * @throws IOException ошибка чтения файла
+     */
+    private long parseChunk(int part, int parts, long from, long to, Map<Pair,Dep> oMap, AtomicBoolean failed) throws HardException, IOException {
+        FileInputStream in = new FileInputStream(mFile);
+        in.getChannel().position(from);
+
+        // первый кусок начинается с корневого тега файла, последний - заканчивается им; остальным его дописываем
+        List<InputStream> streams = new ArrayList<>();
+        if (part > 0) streams.add(new ByteArrayInputStream("<Results>".getBytes(StandardCharsets.US_ASCII)));
+        streams.add(new BufferedInputStream(new RangeInputStream(in, to - from), 1 << 16));
+        if (part < parts - 1) streams.add(new ByteArrayInputStream("</Results>".getBytes(StandardCharsets.US_ASCII)));
+
+        long numRows = 0;
+        try (XmlDepReader reader = new XmlDepReader(new SequenceInputStream(Collections.enumeration(streams)), mKeyDictionary)) {
+            Dep dep;
+
+            while (!failed.get() && (dep = reader.next()) != null) {
+                if (oMap.putIfAbsent(dep.getPair(), dep) != null) {
+                    throw new HardException("Duplicate key " + dep.getPair());
+                }
+                numRows++;
+            }
+        } catch (HardException hEx) {
+            failed.set(true);
+            throw hEx;
+        } finally {
+            in.close();
+        }
+
+        logger.debug("Chunk " + part + " parsed; bytes " + from + "-" + to + ", rows = " + numRows);
+        return numRows;
+    }
+
+    /**
+     * Проверка заголовка файла: куски, кроме первого, разбираются как UTF-8 и без DTD, поэтому подходят только такие файлы.
+     * @return true, если файл в UTF-8 (или в ASCII) и без DOCTYPE в начале
+     * @throws IOException ошибка чтения файла
+     */
+    private boolean isPlainUtf8() throws IOException {
+        byte[] head = new byte[1024];
+        int len;
+
+        try (InputStream in = new FileInputStream(mFile)) {
+            len = in.read(head);
+        }
+
+        if (len < 2) return false;
+
+        // UTF-16 (по BOM или по нулевым байтам в начале)
+        if ((head[0] == (byte) 0xFE && head[1] == (byte) 0xFF) || (head[0] == (byte) 0xFF && head[1] == (byte) 0xFE) || head[0] == 0 || head[1] == 0) {
+            return false;
+        }
+
+        String text = new String(head, 0, len, StandardCharsets.ISO_8859_1);
+
+        if (text.contains("<!DOCTYPE")) return false;
+
+        // кодировка из xml декларации; без декларации - UTF-8
+        if (text.startsWith("<?xml") || text.startsWith("\u00EF\u00BB\u00BF<?xml")) {
+            int end = text.indexOf("?>");
+            String decl = (end < 0) ? text : text.substring(0, end);
+            int enc = decl.indexOf("encoding");
+
+            if (enc >= 0) {
+                String value = decl.substring(enc + "encoding".length()).replaceAll("^\\s*=\\s*[\"']", "");
+                return value.toUpperCase(Locale.ROOT).startsWith("UTF-8") || value.toUpperCase(Locale.ROOT).startsWith("UTF8");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Поиск границ кусков: от примерно равных долей файла - вперед до ближайшего открывающего тега Row.
+     * @param length размер файла
+     * @param chunks желаемое количество кусков
+     * @return начала кусков, от 0, и в конце - размер файла
+     * @throws IOException ошибка чтения файла
+     */
+    private List<Long> findBounds(long length, int chunks) throws IOException {
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "r")) {
+            for (int k = 1; k < chunks; k++) {
+                long target = Math.max(length / chunks * k, bounds.get(bounds.size() - 1) + 1);
+                long pos = findRowTag(raf, target, length);
+
+                if (pos < 0) break;
+
+                if (pos > bounds.get(bounds.size() - 1)) {
+                    bounds.add(pos);
+                }
+            }
+        }
+
+        bounds.add(length);
+        return bounds;
+    }
+
+    /**
+     * Поиск открывающего тега Row ("&lt;Row" и за ним '&gt;', '/' или пробельный символ) начиная с позиции.
+     * В UTF-8 байт '&lt;' не встречается внутри многобайтовых символов, поэтому искать можно прямо по байтам.
+     * @param raf файл
+     * @param from откуда искать
+     * @param length размер файла
+     * @return позиция тега, либо -1, если до конца файла тега нет
+     * @throws IOException ошибка чтения файла
+     */
+    private static long findRowTag(RandomAccessFile raf, long from, long length) throws IOException {
+        byte[] buf = new byte[SCAN_BUFFER];
+        long pos = from;
+
+        while (pos < length) {
+            raf.seek(pos);
+            int len = raf.read(buf, 0, (int) Math.min(buf.length, length - pos));
+
+            if (len <= 0) break;
+
+            for (int i = 0; i + ROW_TAG.length < len; i++) {
+                if (buf[i] == '<' && buf[i + 1] == 'R' && buf[i + 2] == 'o' && buf[i + 3] == 'w') {
+                    byte next = buf[i + ROW_TAG.length];
+
+                    if (next == '>' || next == '/' || next == ' ' || next == '\t' || next == '\r' || next == '\n') {
+                        return pos + i;
+                    }
+                }
+            }
+
+            // хвост буфера просматриваем еще раз со следующей порцией: тег мог попасть на стык
+            if (len <= ROW_TAG.length) break;
+            pos += len - ROW_TAG.length;
+        }
+        return -1;
+    }
+
+    /**
+     * Поток, ограниченный заданным количеством байт исходного потока.
+     */
+    private static class RangeInputStream extends FilterInputStream {
+        private long mRemaining;
+
+        RangeInputStream(InputStream in, long limit) {
+            super(in);
+            mRemaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) return -1;
+
+            int b = in.read();
+            if (b >= 0) mRemaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0) return -1;
+
+            int n = in.read(b, off, (int) Math.min(len, mRemaining));
+            if (n > 0) mRemaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, mRemaining));
+            mRemaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), mRemaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -1,18 +1,45 @@
 package DataSyncApp;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import static DataSyncApp.DataSync.logger;
 
 /**
  * Осуществляет взаимодействие с бд и файлом по команде пользователя. Раздает команды на выгрузку/загрузку в БД/файл.
  * Обмен данными между БД и файлом происходит посредством мап-коллекций Map({@link Pair}, {@link Dep}).
  */
-class Commander {
+class Commander implements AutoCloseable {
     private DbController mDbController;     // контроллер БД
     private FileController mFileController; // контроллер файла
+    private String mDiffMode;               // способ сравнения файла и БД: hash - мапами в памяти, sortmerge - слиянием упорядоченных потоков, dbmerge - в самой БД
+    private long mMemoryBudget;             // бюджет памяти на данные файла и БД, байт; 0 - без ограничения
+    private File mSpillDir;                 // папка для сброса данных на диск при превышении бюджета
+    private int mDiffThreads;               // количество потоков сравнения мапов (diffMode = hash); 1 - в одном потоке
+    private boolean mDigestRead;            // при синхронизации читать из БД только ключи и отпечатки Description
+    private File mDataFile;                 // файл с данными
+    private File mManifestFile;             // манифест синхронизации (имя файла с данными + .manifest)
+    private boolean mUseManifest;           // вести манифест синхронизации и пользоваться им (diffMode = hash)
+    private SyncManifest mNewManifest;      // манифест текущей синхронизации: строки записаны, ждет записи изменений в БД
+    private boolean mIncrementalExport;     // инкрементальная выгрузка по журналу изменений БД (exportMode = incremental)
+    private File mExportStateFile;          // состояние инкрементальной выгрузки (имя файла с данными + .export): отметка журнала и сведения о файле
+    private int mCommitChunk;               // фиксировать изменения кусками по столько строк, с журналом для продолжения после сбоя; 0 - одной транзакцией
+    private File mJournalFile;              // журнал синхронизации по кускам (имя файла с данными + .journal)
+    private int mReloadThreshold;           // доля изменений (процент строк), начиная с которой таблица перезагружается целиком; 0 - не перезагружать
+    private boolean mReloadTruncate;        // перезагрузка таблицы через TRUNCATE (иначе - DELETE в одной транзакции)
+    private String mEmptyFilePolicy;        // что делать, если файл пустой (удалить все из БД): ask - спросить пользователя, delete - удалить, skip - не синхронизировать
+    private long mWatchQuietMs;             // режим слежения: пауза без изменений файла, после которой файл синхронизируется, мс
+    private long mWatchVerifyMs;            // режим слежения: как часто сверять снимок БД с самой БД, мс
+    private boolean mWatching = false;      // идет слежение за файлом (watch): БД берется из снимка в памяти
+    private Map<Pair,Dep> mDbSnapshot;      // режим слежения: снимок DZ_COMPANY в памяти, обновляется записанными изменениями; null - не загружен
+    private String mSnapshotState;          // состояние БД (см. DbController.getDbState), которому соответствует снимок
+    private long mSnapshotVerified;         // когда снимок последний раз сверялся с БД (или загружался)
+    private String mRowStore;               // хранение строк файла и БД при diffMode = hash: hashmap, table (DepTable) или offheap (БД - в OffHeapDepTable)
+    private KeyDictionary mKeyDictionary;   // словарь значений ключа текущей синхронизации (в режиме слежения - снимка БД), см. Pair
+    private boolean mKeysUnique = false;    // уже предупредили, что значения ключа почти не повторяются
 
     /**
-     * Создание коммандера. По имени файла создается контроллер файла.
+     * Создание коммандера. По имени файла создается контроллер файла. Настройки синхронизации берутся из datasync.properties.
      * @param iFilename имя файла
      * @throws HardException выход из приложения из-за ошибки (обработанный)
      */
@@ -23,45 +50,114 @@ class Commander {
             mDbController = new DbController();
             logger.trace("mDbController created");
 
-            mFileController = new FileController(iFilename);
+            Settings settings = new Settings("src/main/resources/datasync.properties");
+
+            // 0 - по количеству ядер
+            int parseThreads = settings.getInt("parseThreads", 1, 0);
+            if (parseThreads == 0) {
+                parseThreads = Runtime.getRuntime().availableProcessors();
+            }
+
+            boolean fastParser = settings.getChoice("xmlParser", "stax", "stax", "fast").equals("fast");
+
+            mFileController = new FileController(iFilename, parseThreads, fastParser);
             logger.trace("mFileController created");
 
+            mDiffMode = settings.getChoice("diffMode", "hash", "hash", "sortmerge", "dbmerge");
+            mMemoryBudget = settings.getLong("memoryBudgetMb", 0, 0) * 1024 * 1024;
+            mSpillDir = new File(settings.getString("spillDir", System.getProperty("java.io.tmpdir")));
+
+            mDiffThreads = settings.getInt("diffThreads", 1, 0);
+            if (mDiffThreads == 0) {
+                mDiffThreads = Runtime.getRuntime().availableProcessors();
+            }
+
+            mDigestRead = settings.getChoice("dbRead", "full", "full", "digest").equals("digest");
+            mRowStore = settings.getChoice("rowStore", "hashmap", "hashmap", "table", "offheap");
+
+            mDataFile = new File(iFilename);
+            mManifestFile = new File(iFilename + ".manifest");
+            mUseManifest = settings.getBoolean("manifest", false);
+
+            mIncrementalExport = settings.getChoice("exportMode", "full", "full", "incremental").equals("incremental");
+            mExportStateFile = new File(iFilename + ".export");
+
+            mCommitChunk = settings.getInt("commitChunk", 0, 0);
+            mJournalFile = new File(iFilename + ".journal");
+
+            mReloadThreshold = settings.getInt("reloadThreshold", 0, 0);
+            mReloadTruncate = settings.getChoice("reloadMode", "delete", "delete", "truncate").equals("truncate");
+
+            mFileController.setOverwritePolicy(settings.getChoice("onExistingFile", "ask", "ask", "overwrite", "exit"));
+            mEmptyFilePolicy = settings.getChoice("onEmptyFile", "ask", "ask", "delete", "skip");
+            mWatchQuietMs = settings.getLong("watchQuietMs", 500, 0);
+            mWatchVerifyMs = settings.getLong("watchVerifySec", 60, 1) * 1000;
+
+            resetKeyDictionary();
+
         } catch(Exception ex) {
             logger.error("Error: unable to start core element");
             throw new HardException(ex);
         }
     }
 
+    /**
+     * Завершение работы: закрываются подключения к БД, освобождается снимок БД.
+     */
+    @Override
+    public void close() {
+        logger.debug("Closing Commander");
+        dropSnapshot();
+        mDbController.close();
+    }
+
     /**
      * Осуществляет обработку команды на экспорт данных из БД в файл. Если в БД ничего нет - создаст пустой файл.
+     * Строки из БД сразу, по мере чтения, пишутся в файл, без сборки всех данных в мап.
      * @throws SoftException контролируемый выход из приложения
      * @throws HardException выход из приложения из-за ошибки (обработанный)
      */
     void export() throws SoftException, HardException {
         try {
             logger.info("Running export from DB to file");
+            resetKeyDictionary();
 
-            // получение данных из БД
-            Map<Pair, Dep> dbMap = mDbController.getDataFromDb();
-
-            logger.trace("dbMap.size() = " + dbMap.size());
-
-            // если в БД пусто, создаем пустой файл
-            if (dbMap.size() == 0) {
-                logger.info("No data found in DB; empty file will be created");
-            }
-            else {
-                logger.info("Successfully got data from DB; going to write data to file");
+            // файл уже выгружен и с тех пор не менялся - накладываем на него только изменения из журнала БД
+            if (mIncrementalExport && exportChanges()) {
+                return;
             }
 
-            // проверяем возможность записи данных в файл
+            // проверяем возможность записи данных в файл; делаем это до чтения БД, т.к. данные из БД пойдут сразу в файл
             mFileController.checkFileOnWrite();
             logger.debug("File successfully checked before write");
 
-            // запись данных в файл
-            mFileController.writeDataToFile(dbMap);
+            // отметку журнала берем до чтения таблицы: изменения после нее попадут в следующую выгрузку
+            Long mark = mIncrementalExport ? mDbController.getChangeLogMark() : null;
+            if (mIncrementalExport && mark == null) {
+                logger.info("DB change log is not available; incremental export is not possible, running full export");
+            }
+
+            // получение данных из БД и запись их в файл
+            try (XmlDepWriter writer = mFileController.openFileWriter()) {
+                long numRows = mDbController.readDataFromDb(writer);
+                logger.trace("numRows = " + numRows);
+
+                // если в БД пусто, создаем пустой файл
+                if (numRows == 0) {
+                    logger.info("No data found in DB; empty file will be created");
+                }
+                else {
+                    logger.info("Successfully got data from DB");
+                }
+
+                writer.commit();
+            }
             logger.info("Successfully wrote data to file");
 
+            if (mark != null) {
+                saveExportState(mark);
+            }
+
         } catch(SoftException sofEx) {
             throw new SoftException(sofEx);
         } catch(Exception ex) {
@@ -70,6 +166,73 @@ class Commander {
         }
     }
 
+    /**
+     * Инкрементальная выгрузка: если файл выгружался раньше (есть состояние выгрузки) и с тех пор не менялся, из БД читаются только строки,
+     * изменившиеся с отметки журнала, и накладываются на файл ({@link FileController#patchFile(Map)}).
+     * @return true, если выгрузка сделана; false - нужна полная выгрузка
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private boolean exportChanges() throws HardException {
+        Properties state = new Properties();
+
+        try (InputStream in = new FileInputStream(mExportStateFile)) {
+            state.load(in);
+        } catch (IOException ioEx) {
+            logger.debug("No export state " + mExportStateFile);
+            return false;
+        }
+
+        long mark;
+        try {
+            mark = Long.parseLong(state.getProperty("mark"));
+
+            if (!mDataFile.isFile() || mDataFile.length() != Long.parseLong(state.getProperty("fileSize"))
+                    || mDataFile.lastModified() != Long.parseLong(state.getProperty("fileModified"))) {
+                logger.info("File has changed since last export; running full export");
+                return false;
+            }
+        } catch (NumberFormatException nfEx) {
+            logger.info("Export state " + mExportStateFile + " is damaged and will be ignored");
+            return false;
+        }
+
+        Map<Pair,Dep> changes = new HashMap<>();
+        long newMark = mDbController.readChangesFromDb(mark, changes);
+
+        if (changes.isEmpty()) {
+            logger.info("No changes in DB since last export, file is up to date");
+            return true;
+        }
+
+        int numChanges = changes.size();
+        long numRows = mFileController.patchFile(changes);
+        logger.trace("numRows = " + numRows);
+        logger.info("Successfully applied " + numChanges + " changes to file");
+
+        saveExportState(newMark);
+        return true;
+    }
+
+    /**
+     * Запись состояния инкрементальной выгрузки: отметка журнала изменений и размер и время изменения выгруженного файла
+     * (по ним следующая выгрузка проверит, что файл не меняли). Если записать не вышло, следующая выгрузка будет полной.
+     * @param mark отметка журнала изменений, до которой изменения есть в файле
+     */
+    private void saveExportState(long mark) {
+        Properties state = new Properties();
+        state.setProperty("mark", Long.toString(mark));
+        state.setProperty("fileSize", Long.toString(mDataFile.length()));
+        state.setProperty("fileModified", Long.toString(mDataFile.lastModified()));
+
+        try (OutputStream out = new FileOutputStream(mExportStateFile)) {
+            state.store(out, "DataSync incremental export state");
+            logger.debug("Export state saved; mark = " + mark);
+        } catch (IOException ioEx) {
+            logger.info("Unable to save export state " + mExportStateFile + "; next export will be full");
+            logger.debug(ioEx);
+        }
+    }
+
     /**
      * Осуществляет обработку команды на синхронизацию данных в БД в соответствии с файлом.
      * Если файл пустой - спросит у пользователя, точно ли он хочет обновить БД в соответствии с файлом (т.е. удалить все данные);
@@ -80,50 +243,830 @@ class Commander {
     void sync() throws SoftException, HardException {
         try {
             logger.info("Running synchronization of file and DB");
+            resetKeyDictionary();
 
-            // получение данных из БД. Если в БД пусто - не предупреждаем, для синхронизации это нормально
-            Map<Pair, Dep> dbMap = mDbController.getDataFromDb();
-            logger.info("Successfully got data from DB; going to get data from file");
-            logger.trace("dbMap.size() = " + dbMap.size());
-
-            // проверяем возможность получения данных из файла
-            mFileController.checkFileOnRead();
-            logger.debug("File successfully checked before read");
+            // сравнение и изменение данных целиком в БД
+            if (mDiffMode.equals("dbmerge")) {
+                syncInDb();
+                return;
+            }
 
-            // получаем данные из файла
-            Map<Pair, Dep> fileMap = mFileController.getDataFromFile();
-            logger.trace("fileMap.size() = " + fileMap.size());
+            // синхронизация по кускам (или частям) была прервана, а файл с тех пор не менялся - дописываем оставшиеся изменения из журнала
+            if (isJournaled() && resumeFromJournal()) {
+                return;
+            }
 
-            // Если файл был пустой, то в соответствии с ним придется стереть все данные из БД; здесь спросим у пользователя, точно ли это то, что ему нужно.
-            checkZeroMapSize(fileMap.size());
+            // для сравнения из БД достаточно ключей и отпечатков Description: изменения пишутся из файла, удаление - по ключу
+            mDbController.setDigestRead(mDigestRead);
 
             // расчитываем различия между файлом и БД, составляем три списка - какие строки удалить из БД, какие изменить, какие добавить.
             // все три списка (Set<Dep>) выгрузим одним мапом; ключом будет предназначение сета.
-            Map<String,Set<Dep>> mergedMap = mergeMaps(fileMap, dbMap);
+            Map<String,Set<Dep>> mergedMap;
+
+            if (mDiffMode.equals("sortmerge")) {
+                mergedMap = calculateChangesSorted();
+            }
+            else if (mMemoryBudget > 0) {
+                mergedMap = calculateChangesSpilled();
+            }
+            else {
+                mergedMap = calculateChanges();
+            }
             logger.info("Successfully calculated changes; going to write new data to DB");
 
             // обновляем БД в соответствии с файлом, точнее - с полученными выше списками-сетами.
-            mDbController.writeDataToDb(mergedMap);
+            if (mergedMap.containsKey("reloadSet")) {
+                mDbController.reloadDataInDb(mergedMap.get("reloadSet"), mReloadTruncate);
+            }
+            else if (isJournaled()) {
+                writeInChunks(mergedMap);
+            }
+            else {
+                mDbController.writeDataToDb(mergedMap);
+            }
             logger.info("Successfully wrote new data to DB");
 
+            if (mDbSnapshot != null) {
+                updateSnapshot(mergedMap);
+            }
+            saveManifest();
+
         } catch(SoftException sofEx) {
             throw new SoftException(sofEx);
         } catch(Exception ex) {
             logger.error("Error: failed to synchronize file and DB data");
             throw new HardException(ex);
+        } finally {
+            // манифест не сохранен (ошибка, отказ пользователя) - временный файл не нужен
+            if (mNewManifest != null) {
+                mNewManifest.discard();
+                mNewManifest = null;
+            }
+        }
+    }
+
+    /**
+     * Режим слежения: приложение не завершается, а синхронизирует БД при каждом изменении файла ({@link FileWatcher}).
+     * Подключения к БД остаются открытыми, а при diffMode = hash (без memoryBudgetMb) таблица читается один раз - в снимок в памяти,
+     * который дальше обновляется записанными изменениями, так что на каждое изменение файла читается только файл.
+     * Снимок раз в watchVerifySec сверяется с БД по ее состоянию ({@link DbController#getDbState()}); если таблицу меняли в обход приложения,
+     * снимок загружается заново, и БД снова приводится в соответствие с файлом.
+     * Спросить пользователя в этом режиме некого, поэтому при onEmptyFile = ask пустой файл не синхронизируется.
+     * Ошибка синхронизации слежение не прерывает: снимок сбрасывается, и синхронизация повторится при следующем изменении файла.
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    void watch() throws HardException {
+        if (mEmptyFilePolicy.equals("ask")) {
+            logger.info("Questions are not possible in watch mode; empty file will not be synchronized (onEmptyFile = skip)");
+            mEmptyFilePolicy = "skip";
+        }
+        mWatching = mDiffMode.equals("hash") && mMemoryBudget == 0;
+
+        try (FileWatcher watcher = new FileWatcher(mDataFile, mWatchQuietMs)) {
+            logger.info("Watching file " + mDataFile + " for changes; press Ctrl+C to stop");
+            syncWatched();
+
+            while (true) {
+                long untilVerify = mSnapshotVerified + mWatchVerifyMs - System.currentTimeMillis();
+
+                if (watcher.awaitChange(Math.max(untilVerify, 1))) {
+                    logger.info("File has changed");
+                    syncWatched();
+                }
+                else if (mDbSnapshot != null && !verifySnapshot()) {
+                    syncWatched();
+                }
+                else {
+                    mSnapshotVerified = System.currentTimeMillis();
+                }
+            }
+        } catch (InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+            logger.info("Watch interrupted");
+        }
+    }
+
+    /**
+     * Одна синхронизация в режиме слежения. Если она упала на снимке, который мог устареть, - повторяется один раз на свежем снимке.
+     */
+    private void syncWatched() {
+        for (int attempt = 1; attempt <= 2; attempt++) {
+            boolean warmSnapshot = mDbSnapshot != null;
+
+            try {
+                sync();
+                return;
+            } catch (SoftException sofEx) {
+                // изменений нет, либо синхронизация пропущена - ждем следующего изменения
+                logger.debug(sofEx);
+                return;
+            } catch (HardException hardEx) {
+                logger.debug(hardEx);
+                dropSnapshot();
+
+                if (!warmSnapshot || attempt == 2) {
+                    logger.error("Error: synchronization failed; waiting for next file change");
+                    return;
+                }
+                logger.info("Retrying synchronization with fresh DB snapshot");
+            }
+        }
+    }
+
+    /**
+     * Расчет изменений в режиме слежения: файл сравнивается со снимком БД в памяти; снимок загружается, если его еще нет.
+     * @return мап, в котором ключом служит строка-обозначение сета (deleteSet, updateSet, insertSet), а значением - сам сет
+     * @throws SoftException контролируемый выход из приложения
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private Map<String,Set<Dep>> calculateChangesFromSnapshot() throws SoftException, HardException {
+        if (mDbSnapshot == null) {
+            loadSnapshot();
+        }
+
+        mFileController.checkFileOnRead();
+        logger.debug("File successfully checked before read");
+
+        Map<Pair,Dep> fileMap = mFileController.getDataFromFile(newRowMap());
+        logger.trace("fileMap.size() = " + fileMap.size());
+
+        // Если файл был пустой, то в соответствии с ним придется стереть все данные из БД; здесь решение задано настройкой onEmptyFile.
+        checkZeroMapSize(fileMap.size());
+
+        return diffMaps(fileMap, mDbSnapshot);
+    }
+
+    /**
+     * Загрузка снимка БД. Состояние БД снимается до чтения: если таблицу изменят во время чтения, при сверке состояние не совпадет,
+     * и снимок будет загружен заново.
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private void loadSnapshot() throws HardException {
+        dropSnapshot();
+        long start = System.currentTimeMillis();
+
+        String state = mDbController.getDbState();
+        Map<Pair,Dep> target = mRowStore.equals("offheap") ? new OffHeapDepTable(mSpillDir, mKeyDictionary) : newRowMap();
+
+        try {
+            mDbSnapshot = mDbController.getDataFromDb(target);
+        } finally {
+            if (mDbSnapshot == null && target instanceof OffHeapDepTable) {
+                ((OffHeapDepTable) target).close();
+            }
+        }
+
+        mSnapshotState = state;
+        mSnapshotVerified = System.currentTimeMillis();
+        logger.info("DB snapshot loaded; rows = " + mDbSnapshot.size() + ", time = " + (mSnapshotVerified - start) + " ms");
+    }
+
+    /**
+     * Обновление снимка БД записанными в БД изменениями; запоминается состояние БД после записи.
+     * Предполагается, что между записью в БД и снятием ее состояния таблицу никто другой не меняет.
+     * @param mergedMap записанные изменения: мап, в котором ключом служит строка-обозначение сета (deleteSet, updateSet, insertSet), а значением - сам сет
+     */
+    private void updateSnapshot(Map<String,Set<Dep>> mergedMap) {
+        if (mergedMap.containsKey("reloadSet")) {
+            mDbSnapshot.clear();
+            for (Dep dep : mergedMap.get("reloadSet")) {
+                mDbSnapshot.put(dep.getPair(), dep);
+            }
+        }
+
+        for (Dep dep : mergedMap.getOrDefault("deleteSet", Collections.emptySet())) {
+            mDbSnapshot.remove(dep.getPair());
+        }
+        for (Dep dep : mergedMap.getOrDefault("updateSet", Collections.emptySet())) {
+            mDbSnapshot.put(dep.getPair(), dep);
+        }
+        for (Dep dep : mergedMap.getOrDefault("insertSet", Collections.emptySet())) {
+            mDbSnapshot.put(dep.getPair(), dep);
+        }
+
+        mSnapshotState = mDbController.getDbState();
+        mSnapshotVerified = System.currentTimeMillis();
+        logger.debug("DB snapshot updated; rows = " + mDbSnapshot.size() + ", key dictionary size = " + mKeyDictionary.size());
+
+        // значения из словаря не удаляются, а в снимке на строку их не больше двух: если словарь разросся значениями удаленных строк -
+        // снимок сбрасывается, и следующая синхронизация загрузит его заново, с новым словарем
+        if (mKeyDictionary.size() > 4L * mDbSnapshot.size() + 4096) {
+            logger.info("Key dictionary holds many values of deleted rows; DB snapshot will be reloaded");
+            dropSnapshot();
+        }
+    }
+
+    /**
+     * Сверка снимка с БД по ее состоянию. Если состояние не совпадает (или БД его посчитать не может), снимок сбрасывается.
+     * @return true, если снимок соответствует БД
+     */
+    private boolean verifySnapshot() {
+        String state = mDbController.getDbState();
+
+        if (state != null && state.equals(mSnapshotState)) {
+            logger.debug("DB snapshot verified; state = " + state);
+            return true;
+        }
+
+        logger.info("DB has changed since last sync; DB snapshot will be reloaded");
+        dropSnapshot();
+        return false;
+    }
+
+    /**
+     * Сброс снимка БД; снимок вне кучи удаляет свои временные файлы.
+     */
+    private void dropSnapshot() {
+        if (mDbSnapshot instanceof OffHeapDepTable) {
+            ((OffHeapDepTable) mDbSnapshot).close();
+        }
+        mDbSnapshot = null;
+        mSnapshotState = null;
+
+        // мапов с ключами снимка больше нет - словарь тоже заводим заново
+        resetKeyDictionary();
+    }
+
+    /**
+     * Новый словарь значений ключа ({@link KeyDictionary}) для очередной синхронизации или выгрузки; задается контроллерам файла и БД.
+     * Значения из словаря не удаляются, поэтому он заводится заново, как только не остается мапов с его ключами.
+     * Пока загружен снимок БД (режим слежения), остается словарь снимка: строки файла сравниваются со снимком и должны быть из того же словаря.
+     */
+    private void resetKeyDictionary() {
+        if (mDbSnapshot != null) return;
+
+        mKeyDictionary = new KeyDictionary();
+        mFileController.setKeyDictionary(mKeyDictionary);
+        mDbController.setKeyDictionary(mKeyDictionary);
+    }
+
+    /**
+     * Проверка, что словарь значений ключа себя оправдывает. Если различных значений почти столько же, сколько строк
+     * (DepJob, а то и DepCode, у каждой строки свой), словарь ничего не экономит: на каждое значение уходит еще и его запись в словаре.
+     * Ключи без словаря не поддерживаются (на номерах в словаре построены DepTable и OffHeapDepTable), поэтому об этом только предупреждаем, один раз.
+     * @param rows количество строк в мапах файла и БД (большее из двух)
+     */
+    private void checkKeyDictionary(long rows) {
+        int distinct = mKeyDictionary.size();
+        logger.debug("Key dictionary size = " + distinct + ", rows = " + rows);
+
+        if (!mKeysUnique && rows >= 10000 && distinct > rows * 9 / 10) {
+            mKeysUnique = true;
+            logger.warn("Key values are nearly unique (" + distinct + " distinct values for " + rows + " rows); "
+                    + "key dictionary saves no memory and adds about 50 bytes per value");
+        }
+    }
+
+    /**
+     * Изменения пишутся через журнал синхронизации: при фиксации кусками (commitChunk), либо по частям параллельно (writePartitions) -
+     * части фиксируются друг за другом, и без журнала БД после сбоя посреди фиксаций осталась бы синхронизированной частично.
+     * @return true, если запись идет через журнал
+     */
+    private boolean isJournaled() {
+        return mCommitChunk > 0 || mDbController.getWritePartitions() > 1;
+    }
+
+    /**
+     * Запись изменений через журнал синхронизации ({@link SyncJournal}): изменения сначала пишутся в журнал (кусками по commitChunk,
+     * либо по частям параллельной записи), потом куски фиксируются в БД с отметкой в журнале. По завершении журнал удаляется;
+     * при сбое - остается для продолжения.
+     * @param mergedMap мап, в котором ключом служит строка-обозначение сета (deleteSet, updateSet, insertSet), а значением - сам сет
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private void writeInChunks(Map<String,Set<Dep>> mergedMap) throws HardException {
+        SyncJournal journal = (mCommitChunk > 0)
+                ? SyncJournal.create(mJournalFile, mDataFile, mergedMap, mCommitChunk, mKeyDictionary)
+                : SyncJournal.create(mJournalFile, mDataFile, mDbController.splitPartitions(mergedMap), mKeyDictionary);
+
+        try {
+            mDbController.writeDataToDb(journal);
+        } finally {
+            journal.close();
+        }
+        journal.delete();
+    }
+
+    /**
+     * Продолжение прерванной синхронизации по журналу: изменения не считаются заново, в БД пишутся только незафиксированные куски (части).
+     * @return true, если синхронизация продолжена и завершена; false - журнала нет (или файл менялся), нужна обычная синхронизация
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private boolean resumeFromJournal() throws HardException {
+        SyncJournal journal = SyncJournal.open(mJournalFile, mDataFile, mKeyDictionary);
+
+        if (journal == null) {
+            return false;
+        }
+
+        try {
+            mDbController.writeDataToDb(journal);
+        } finally {
+            journal.close();
         }
+        journal.delete();
+
+        // записанные изменения в снимок не попали
+        dropSnapshot();
+        logger.info("Successfully finished interrupted synchronization");
+        return true;
     }
 
     /**
-     * Если файл был пустой, то в соответствии с ним придется стереть все данные из БД; здесь спросим у пользователя, точно ли это то, что ему нужно.
-     * В зависимости от ответа пользователя либо выходим, либо идем дальше.
-     * @param mapSize размер мапа файла
+     * Синхронизация силами БД: строки файла потоком грузятся в промежуточную таблицу, а удаление, изменение и добавление строк
+     * выполняет сама БД ({@link DbController#mergeDataIntoDb(DepSource)}). Снимок БД в приложение не читается.
      * @throws SoftException контролируемый выход из приложения
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
      */
-    private void checkZeroMapSize(int mapSize) throws SoftException {
+    private void syncInDb() throws SoftException, HardException {
+        logger.debug("Synchronizing with staging table in DB");
+
+        // проверяем возможность получения данных из файла
+        mFileController.checkFileOnRead();
+        logger.debug("File successfully checked before read");
+
+        // Если файл пустой, то в соответствии с ним придется стереть все данные из БД; здесь спросим у пользователя, точно ли это то, что ему нужно.
+        // Для этого достаточно прочитать из файла первую строку.
+        try (DepSource fileSource = mFileController.getDataSourceFromFile(false)) {
+            checkZeroMapSize((fileSource.next() == null) ? 0 : 1);
+        }
+
+        long numChanged;
+        try (DepSource fileSource = mFileController.getDataSourceFromFile(true)) {
+            numChanged = mDbController.mergeDataIntoDb(fileSource);
+        }
+
+        if (numChanged == 0) {
+            logger.info("File and DB are identical, no changes required");
+            throw new SoftException();
+        }
+
+        logger.info("Successfully wrote new data to DB");
+    }
+
+    /**
+     * Расчет изменений мапами: данные файла и БД целиком загружаются в память и сравниваются в {@link #mergeMaps(Map, Map)},
+     * либо, если задано несколько потоков сравнения, в {@link #diffParallel(Map, Map)}.
+     * Чтение БД и разбор файла друг от друга не зависят, поэтому идут одновременно, в двух потоках. Если одна из загрузок упала,
+     * вторая отменяется; ошибка пробрасывается наверх. Вопрос про пустой файл задается сразу, как только файл прочитан, не дожидаясь БД.
+     * @return мап, в котором ключом служит строка-обозначение сета (deleteSet, updateSet, insertSet), а значением - сам сет
+     * @throws SoftException контролируемый выход из приложения
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private Map<String,Set<Dep>> calculateChanges() throws SoftException, HardException {
+        if (mWatching) {
+            return calculateChangesFromSnapshot();
+        }
+
+        if (mUseManifest) {
+            Map<String,Set<Dep>> changes = calculateChangesFromManifest();
+
+            if (changes != null) {
+                return changes;
+            }
+        }
+
+        // снимок БД вне кучи лежит во временных файлах - по завершении (в том числе с ошибкой) их надо удалить
+        Map<Pair,Dep> dbTarget = mRowStore.equals("offheap") ? new OffHeapDepTable(mSpillDir, mKeyDictionary) : newRowMap();
+
+        try {
+            return calculateChanges(dbTarget);
+        } finally {
+            if (dbTarget instanceof OffHeapDepTable) {
+                ((OffHeapDepTable) dbTarget).close();
+            }
+        }
+    }
+
+    /**
+     * Расчет изменений мапами, с заданным мапом для строк БД.
+     * @param dbTarget пустой мап для строк БД; null - HashMap
+     * @return мап, в котором ключом служит строка-обозначение сета (deleteSet, updateSet, insertSet), а значением - сам сет
+     * @throws SoftException контролируемый выход из приложения
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private Map<String,Set<Dep>> calculateChanges(Map<Pair,Dep> dbTarget) throws SoftException, HardException {
+        ExecutorService executor = WorkerThreads.newPool("sync-load", 2);
+        CompletionService<Map<Pair,Dep>> completion = new ExecutorCompletionService<>(executor);
+
+        // получение данных из БД. Если в БД пусто - не предупреждаем, для синхронизации это нормально
+        Future<Map<Pair,Dep>> dbFuture = completion.submit(() -> mDbController.getDataFromDb(dbTarget));
+
+        // проверяем возможность получения данных из файла, и получаем их
+        Future<Map<Pair,Dep>> fileFuture = completion.submit(() -> {
+            mFileController.checkFileOnRead();
+            logger.debug("File successfully checked before read");
+
+            // состояние файла снимаем до чтения: если файл изменится во время синхронизации, манифест с ним не совпадет
+            if (mUseManifest) {
+                mNewManifest = SyncManifest.ofFile(mDataFile);
+            }
+            return mFileController.getDataFromFile(newRowMap());
+        });
+
+        Map<Pair, Dep> dbMap = null;
+        Map<Pair, Dep> fileMap = null;
+
+        try {
+            // разбираем загрузки в порядке завершения
+            for (int i = 0; i < 2; i++) {
+                Future<Map<Pair,Dep>> done = completion.take();
+                Map<Pair, Dep> result;
+
+                try {
+                    result = done.get();
+                } catch (ExecutionException exEx) {
+                    // одна из загрузок упала - вторую дальше ждать незачем
+                    (done == dbFuture ? fileFuture : dbFuture).cancel(true);
+                    throw (exEx.getCause() instanceof HardException) ? (HardException) exEx.getCause() : new HardException(exEx.getCause());
+                }
+
+                if (done == dbFuture) {
+                    dbMap = result;
+                    logger.info("Successfully got data from DB");
+                    logger.trace("dbMap.size() = " + dbMap.size());
+                } else {
+                    fileMap = result;
+                    logger.trace("fileMap.size() = " + fileMap.size());
+
+                    // Если файл был пустой, то в соответствии с ним придется стереть все данные из БД; здесь спросим у пользователя, точно ли это то, что ему нужно.
+                    checkZeroMapSize(fileMap.size());
+                }
+            }
+        } catch (InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+            logger.error("Error: interrupted while getting data");
+            throw new HardException(iEx);
+        } finally {
+            // при выходе с ошибкой или по отказу пользователя - отменяем незавершенную загрузку и ждем ее остановки,
+            // чтобы подключение к БД вернулось в пул
+            dbFuture.cancel(true);
+            fileFuture.cancel(true);
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException iEx) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (mNewManifest != null) {
+            mNewManifest.writeRows(mManifestFile, fileMap);
+        }
+
+        return diffMaps(fileMap, dbMap);
+    }
+
+    /**
+     * Расчет изменений по манифесту прошлой синхронизации ({@link SyncManifest}). Если состояние БД (количество строк и сумма хэшей)
+     * совпадает с запомненным, таблица не читается: ее строки (ключи и отпечатки Description) берутся из манифеста.
+     * Если при этом не изменился и файл, то и сравнивать нечего - синхронизация завершается сразу.
+     * @return мап, в котором ключом служит строка-обозначение сета (deleteSet, updateSet, insertSet), а значением - сам сет;
+     * либо null, если манифеста нет или БД с ним не совпадает - тогда изменения считаются обычным путем
+     * @throws SoftException контролируемый выход из приложения
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private Map<String,Set<Dep>> calculateChangesFromManifest() throws SoftException, HardException {
+        SyncManifest lastManifest = SyncManifest.read(mManifestFile);
+
+        if (lastManifest == null) {
+            return null;
+        }
+
+        String dbState = mDbController.getDbState();
+        if (dbState == null) {
+            logger.info("DB state is not available; reading full data");
+            return null;
+        }
+
+        if (!dbState.equals(lastManifest.getDbState())) {
+            logger.info("DB has changed since last sync; reading full data");
+            return null;
+        }
+
+        mFileController.checkFileOnRead();
+        logger.debug("File successfully checked before read");
+
+        mNewManifest = SyncManifest.ofFile(mDataFile);
+        if (mNewManifest.sameFile(lastManifest)) {
+            logger.info("File and DB have not changed since last sync, no changes required");
+            throw new SoftException();
+        }
+
+        logger.info("DB has not changed since last sync; comparing file with sync manifest instead of reading DB");
+
+        Map<Pair,Dep> fileMap = mFileController.getDataFromFile(newRowMap());
+        logger.trace("fileMap.size() = " + fileMap.size());
+
+        // Если файл был пустой, то в соответствии с ним придется стереть все данные из БД; здесь спросим у пользователя, точно ли это то, что ему нужно.
+        checkZeroMapSize(fileMap.size());
+
+        Map<Pair,Dep> dbMap = lastManifest.readRows(mRowStore.equals("hashmap") ? new HashMap<>() : new DepTable(mKeyDictionary), mKeyDictionary);
+        mNewManifest.writeRows(mManifestFile, fileMap);
+
+        return diffMaps(fileMap, dbMap);
+    }
+
+    /**
+     * Сохранение манифеста текущей синхронизации, с состоянием БД после записи изменений.
+     * Манифест только ускоряет следующую синхронизацию, поэтому ошибка при его сохранении синхронизацию не прерывает:
+     * следующая синхронизация просто пойдет обычным путем.
+     */
+    private void saveManifest() {
+        if (mNewManifest == null) return;
+
+        try {
+            String dbState = mDbController.getDbState();
+
+            if (dbState == null) {
+                logger.info("DB state is not available; sync manifest is not saved");
+                return;
+            }
+
+            if (!mNewManifest.sameFileAttributes(mDataFile)) {
+                logger.info("File has changed during sync; sync manifest is not saved");
+                return;
+            }
+
+            mNewManifest.commit(dbState);
+            mNewManifest = null;
+        } catch (IOException ioEx) {
+            logger.info("Unable to save sync manifest " + mManifestFile);
+            logger.debug(ioEx);
+        }
+    }
+
+    /**
+     * Файл и БД совпадают, изменений нет: манифест текущей синхронизации сохраняется (БД уже соответствует файлу), и выходим.
+     * @throws SoftException контролируемый выход из приложения
+     */
+    private void noChanges() throws SoftException {
+        logger.info("File and DB are identical, no changes required");
+        saveManifest();
+        throw new SoftException();
+    }
+
+    /**
+     * Сравнение мапов файла и БД: в одном потоке ({@link #mergeMaps(Map, Map)}, а для DepTable и OffHeapDepTable - {@link #probeMaps(Map, Map)})
+     * или параллельно ({@link #diffParallel(Map, Map)}).
+     * Если доля изменений не меньше reloadThreshold, построчные изменения не считаются: таблица будет перезагружена строками файла
+     * ({@link DbController#reloadDataInDb(Collection, boolean)}) - тогда в мапе один сет, reloadSet, со всеми строками файла.
+     * При записи кусками (commitChunk) перезагрузка не используется: ее не продолжить по журналу.
+     * @param fileMap мап файла
+     * @param dbMap мап БД
+     * @return мап, в котором ключом служит строка-обозначение сета (deleteSet, updateSet, insertSet, либо reloadSet), а значением - сам сет
+     * @throws SoftException контролируемый выход из приложения
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private Map<String,Set<Dep>> diffMaps(Map<Pair,Dep> fileMap, Map<Pair,Dep> dbMap) throws SoftException, HardException {
+        checkKeyDictionary(Math.max(fileMap.size(), dbMap.size()));
+
+        if (mReloadThreshold > 0 && mCommitChunk == 0) {
+            int ratio = estimateChangeRatio(fileMap, dbMap);
+
+            if (ratio >= mReloadThreshold) {
+                logger.info("Estimated change ratio " + ratio + "% is not less than reloadThreshold = " + mReloadThreshold + "%; DB table will be reloaded from file");
+
+                // все строки файла, без копирования
+                Set<Dep> reloadSet = new AbstractSet<Dep>() {
+                    @Override
+                    public Iterator<Dep> iterator() {
+                        return fileMap.values().iterator();
+                    }
+
+                    @Override
+                    public int size() {
+                        return fileMap.size();
+                    }
+                };
+
+                Map<String,Set<Dep>> oMap = new HashMap<>();
+                oMap.put("reloadSet", reloadSet);
+                return oMap;
+            }
+
+            logger.info("Estimated change ratio " + ratio + "% is less than reloadThreshold = " + mReloadThreshold + "%; changes will be applied row by row");
+        }
+
+        if (mDiffThreads > 1) {
+            return diffParallel(fileMap, dbMap);
+        }
+        return (isCompactStore(fileMap) || isCompactStore(dbMap)) ? probeMaps(fileMap, dbMap) : mergeMaps(fileMap, dbMap);
+    }
+
+    /**
+     * Мап строк хранит не объекты Dep, а их содержимое ({@link DepTable}, {@link OffHeapDepTable}): Dep создается при каждом обращении.
+     * @param map мап
+     * @return true, если мап - DepTable или OffHeapDepTable
+     */
+    private static boolean isCompactStore(Map<Pair,Dep> map) {
+        return (map instanceof DepTable) || (map instanceof OffHeapDepTable);
+    }
+
+    /**
+     * Сравнение мапов без копирования: в {@link #mergeMaps(Map, Map)} больший мап копируется в HashSet целиком, а копия DepTable
+     * или OffHeapDepTable - это новые Pair, Dep и строки Description на каждую строку в куче, то есть вся экономия памяти пропадает.
+     * Поэтому здесь два прохода, как в {@link ParallelHashDiff}: по файлу с поиском в БД (добавление, изменение),
+     * затем по БД с поиском в файле (удаление). В куче остаются только изменения.
+     * @param iFileMap мап файла
+     * @param iDbMap мап БД
+     * @return мап, в котором ключом служит строка-обозначение сета (deleteSet, updateSet, insertSet), а значением - сам сет
+     * @throws SoftException контролируемый выход из приложения
+     */
+    private Map<String,Set<Dep>> probeMaps(Map<Pair,Dep> iFileMap, Map<Pair,Dep> iDbMap) throws SoftException {
+        logger.debug("probeMaps started; iFileMap.size() = " + iFileMap.size() + ", iDbMap.size() = " + iDbMap.size());
+        ChangeSets changes = new ChangeSets();
+
+        for (Dep fileDep : iFileMap.values()) {
+            Dep dbDep = iDbMap.get(fileDep.getPair());
+
+            if (dbDep == null) {
+                // в БД такого элемента нет
+                changes.insert(fileDep);
+            } else if (!fileDep.sameContent(dbDep)) {
+                // совпадение по ключу, но целиком не совпадают - элемент изменился
+                changes.update(fileDep);
+            }
+        }
+
+        for (Dep dbDep : iDbMap.values()) {
+            // в файле такого элемента нет
+            if (!iFileMap.containsKey(dbDep.getPair())) {
+                changes.delete(dbDep);
+            }
+        }
+
+        // если все три списка пустые, значит файл и БД совпадают - выходим
+        if (changes.isEmpty()) {
+            noChanges();
+        }
+
+        return changes.toMap();
+    }
+
+    /**
+     * Оценка доли изменений по выборке строк файла (до 10000, каждая k-я строка по всему мапу: порядок перебора задан хэшами ключей,
+     * поэтому первые строки перебора - это ключи из младших ячеек, а не случайная выборка):
+     * доля строк файла, чей ключ есть в БД, и доля совпадающих целиком переносятся на весь файл.
+     * Изменений - добавления, изменения и удаления; доля считается от количества различных ключей файла и БД.
+     * @param fileMap мап файла
+     * @param dbMap мап БД
+     * @return доля изменений, процентов
+     */
+    private static int estimateChangeRatio(Map<Pair,Dep> fileMap, Map<Pair,Dep> dbMap) {
+        long fileRows = fileMap.size();
+        long dbRows = dbMap.size();
+        int sample = 0;   // строк в выборке
+        int matched = 0;  // из них с ключом в БД
+        int unchanged = 0; // из них совпадающих целиком
+        long stride = Math.max(1, (fileRows + 9999) / 10000); // шаг выборки: выборка покрывает весь мап
+        long index = 0;
+
+        for (Dep fileDep : fileMap.values()) {
+            if (index++ % stride != 0) continue;
+            if (sample == 10000) break;
+            sample++;
+
+            Dep dbDep = dbMap.get(fileDep.getPair());
+            if (dbDep != null) {
+                matched++;
+                if (dbDep.sameContent(fileDep)) {
+                    unchanged++;
+                }
+            }
+        }
+
+        // оценка строк с ключом и в файле, и в БД, и совпадающих целиком; в БД их не больше, чем строк в ней
+        long sameKeys = (sample == 0) ? 0 : Math.min(fileRows * matched / sample, dbRows);
+        long sameRows = (sample == 0) ? 0 : Math.min(fileRows * unchanged / sample, sameKeys);
+        long allKeys = fileRows + dbRows - sameKeys;
+        long changes = allKeys - sameRows;
+        logger.debug("Change ratio estimate: fileRows = " + fileRows + ", dbRows = " + dbRows + ", sample = " + sample
+                + ", matched = " + matched + ", unchanged = " + unchanged);
+
+        return (allKeys == 0) ? 0 : (int) (changes * 100 / allKeys);
+    }
+
+    /**
+     * Пустой мап для строк файла (и БД, кроме rowStore = offheap) в зависимости от настройки rowStore.
+     * @return DepTable, либо null - тогда мап выбирает сам загрузчик (HashMap)
+     */
+    private Map<Pair,Dep> newRowMap() {
+        return mRowStore.equals("hashmap") ? null : new DepTable(mKeyDictionary);
+    }
+
+    /**
+     * Параллельное сравнение мапов файла и БД по кускам ({@link ParallelHashDiff}); результат - как у {@link #mergeMaps(Map, Map)}.
+     * @param iFileMap мап файла
+     * @param iDbMap мап БД
+     * @return мап, в котором ключом служит строка-обозначение сета (deleteSet, updateSet, insertSet), а значением - сам сет
+     * @throws SoftException контролируемый выход из приложения
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private Map<String,Set<Dep>> diffParallel(Map<Pair,Dep> iFileMap, Map<Pair,Dep> iDbMap) throws SoftException, HardException {
+        ChangeSets changes = new ChangeSets();
+        new ParallelHashDiff(mDiffThreads).diff(iFileMap, iDbMap, changes);
+
+        // если все три списка пустые, значит файл и БД совпадают - выходим
+        if (changes.isEmpty()) {
+            noChanges();
+        }
+
+        return changes.toMap();
+    }
+
+    /**
+     * Расчет изменений слиянием упорядоченных по ключу потоков файла и БД ({@link SortMergeDiff}): ни файл, ни БД в память целиком не загружаются.
+     * Файл должен быть упорядочен по DepCode, DepJob (например, выгружен сортированным), иначе сравнение остановится с ошибкой.
+     * @return мап, в котором ключом служит строка-обозначение сета (deleteSet, updateSet, insertSet), а значением - сам сет
+     * @throws SoftException контролируемый выход из приложения
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private Map<String,Set<Dep>> calculateChangesSorted() throws SoftException, HardException {
+        logger.debug("Calculating changes with sort-merge diff");
+
+        // проверяем возможность получения данных из файла
+        mFileController.checkFileOnRead();
+        logger.debug("File successfully checked before read");
+
+        // повтор ключа в файле ловит сам SortMergeDiff по порядку ключей, набор ключей не нужен
+        try (DepSource fileSource = mFileController.getDataSourceFromFile(false);
+             DepSource dbSource = mDbController.getSortedDataSourceFromDb()) {
+            return diffSorted(fileSource, dbSource);
+        }
+    }
+
+    /**
+     * Расчет изменений с ограничением по памяти: данные файла и БД сортируются по ключу, и, если не помещаются в бюджет,
+     * сбрасываются на диск ({@link ExternalSorter}); потом сравниваются слиянием ({@link SortMergeDiff}).
+     * Бюджет делится поровну между файлом и БД. Файл может быть не упорядочен.
+     * @return мап, в котором ключом служит строка-обозначение сета (deleteSet, updateSet, insertSet), а значением - сам сет
+     * @throws SoftException контролируемый выход из приложения
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private Map<String,Set<Dep>> calculateChangesSpilled() throws SoftException, HardException {
+        logger.debug("Calculating changes with memory budget " + mMemoryBudget + " bytes");
+
+        // получение данных из БД. Если в БД пусто - не предупреждаем, для синхронизации это нормально
+        try (DepSource dbSource = mDbController.getSortedDataFromDb(mMemoryBudget / 2, mSpillDir)) {
+            logger.info("Successfully got data from DB; going to get data from file");
+
+            // проверяем возможность получения данных из файла
+            mFileController.checkFileOnRead();
+            logger.debug("File successfully checked before read");
+
+            try (DepSource fileSource = mFileController.getSortedDataFromFile(mMemoryBudget / 2, mSpillDir)) {
+                return diffSorted(fileSource, dbSource);
+            }
+        }
+    }
+
+    /**
+     * Сравнение упорядоченных по ключу потоков файла и БД ({@link SortMergeDiff}).
+     * @param fileSource упорядоченные строки файла
+     * @param dbSource упорядоченные строки БД
+     * @return мап, в котором ключом служит строка-обозначение сета (deleteSet, updateSet, insertSet), а значением - сам сет
+     * @throws SoftException контролируемый выход из приложения
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private Map<String,Set<Dep>> diffSorted(DepSource fileSource, DepSource dbSource) throws SoftException, HardException {
+        ChangeSets changes = new ChangeSets();
+        SortMergeDiff diff = new SortMergeDiff();
+
+        diff.diff(fileSource, dbSource, changes);
+        logger.trace("fileRows = " + diff.getFileRows() + ", dbRows = " + diff.getDbRows());
+
+        // Если файл был пустой, то в соответствии с ним придется стереть все данные из БД; здесь спросим у пользователя, точно ли это то, что ему нужно.
+        checkZeroMapSize(diff.getFileRows());
+
+        // если все три списка пустые, значит файл и БД совпадают - выходим
+        if (changes.isEmpty()) {
+            logger.info("File and DB are identical, no changes required");
+            throw new SoftException();
+        }
+
+        return changes.toMap();
+    }
+
+    /**
+     * Если файл был пустой, то в соответствии с ним придется стереть все данные из БД; здесь спросим у пользователя, точно ли это то, что ему нужно
+     * (если решение не задано настройкой onEmptyFile). В зависимости от ответа пользователя либо выходим, либо идем дальше.
+     * @param mapSize размер мапа файла (количество строк в файле)
+     * @throws SoftException контролируемый выход из приложения
+     */
+    private void checkZeroMapSize(long mapSize) throws SoftException {
         // если размер мапа нулевой, значит файл совсем пустой. Если файла нет, если он кривой,
         // если в нем некорректные данные, и прочие проверки происходят на этапе получения данных.
         if (mapSize == 0) {
+            // решение задано настройкой - не спрашиваем
+            if (mEmptyFilePolicy.equals("delete")) {
+                logger.info("No data found in file; ALL data from DB will be deleted (onEmptyFile = delete)");
+                return;
+            }
+            if (mEmptyFilePolicy.equals("skip")) {
+                logger.info("No data found in file; synchronization skipped (onEmptyFile = skip)");
+                throw new SoftException();
+            }
+
             logger.info("No data found in file; if proceed, ALL data from DB will be deleted; continue? (y - delete, n - exit application)");
             String inputString;
 
@@ -205,7 +1148,7 @@ class Commander {
                     mDeleteSet.remove(mDbDep);
 
                     // смотрим, совпадают ли они целиком. Если целиком совпадают, то ничего не делаем
-                    if (!mDbDep.equals(mFileDep)) {
+                    if (!mDbDep.sameContent(mFileDep)) {
                         logger.trace("Not equal Deps with equal Pairs; Adding mFileDep to mEditedSet");
                         // целиком не совпадают - то есть элемент изменился
                         mEditedSet.add(mFileDep);
@@ -240,7 +1183,7 @@ class Commander {
                     mInsertSet.remove(mFileDep);
 
                     // смотрим, совпадают ли они целиком. Если целиком совпадают, то ничего не делаем
-                    if (!mFileDep.equals(mDbDep)) {
+                    if (!mFileDep.sameContent(mDbDep)) {
                         logger.trace("Not equal Deps with equal Pairs; Adding mFileDep to mEditedSet");
                         // целиком не совпадают - то есть элемент изменился
                         mEditedSet.add(mFileDep);
@@ -256,8 +1199,7 @@ class Commander {
 
         // если все три списка пустые, значит файл и БД совпадают - выходим
         if (mDeleteSet.size() == 0 && mInsertSet.size() == 0 && mEditedSet.size() == 0) {
-            logger.info("File and DB are identical, no changes required");
-            throw new SoftException();
+            noChanges();
         }
 
         // выходной мап
@@ -0,0 +1,298 @@
+package DataSyncApp;
+
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+
+import static DataSyncApp.DataSync.logger;
+
+/**
+ * Небольшой пул подключений к БД. Подключения открываются по мере надобности (не больше заданного размера) и после использования
+ * не закрываются, а возвращаются в пул, так что следующие этапы работы (чтение, запись, параллельные потоки) не платят за новый вход в БД.
+ * Перед выдачей подключение проверяется (isValid); подключения, простоявшие без дела дольше заданного времени, закрываются.
+ * Выдается обертка над подключением: ее close() возвращает подключение в пул, поэтому код может работать с ним как с обычным,
+ * через try-with-resources. Незавершенная транзакция при возврате откатывается.
+ */
+class ConnectionPool implements AutoCloseable {
+    private String mUrl;
+    private String mUsername;
+    private String mPassword;
+    private int mMaxSize;            // максимальное количество подключений
+    private int mValidationTimeout;  // время на проверку подключения, сек
+    private long mIdleTimeout;       // время простоя, после которого подключение закрывается, мс
+    private long mBorrowTimeout;     // сколько ждать свободного подключения, мс
+
+    private Deque<IdleConnection> mIdle = new ArrayDeque<>(); // свободные подключения; последним вернувшееся - первым выдается, оно самое "теплое"
+    private int mTotal = 0;          // всего открытых подключений (свободных и выданных)
+    private boolean mClosed = false;
+    private Timer mEvictionTimer;    // периодическое закрытие простаивающих подключений
+
+    /**
+     * Свободное подключение и время его возврата в пул.
+     */
+    private static class IdleConnection {
+        Connection conn;
+        long releasedAt;
+
+        IdleConnection(Connection conn, long releasedAt) {
+            this.conn = conn;
+            this.releasedAt = releasedAt;
+        }
+    }
+
+    /**
+     * Создание пула. Подключения при создании не открываются.
+     * @param url строка подключения к БД
+     * @param username имя пользователя
+     * @param password пароль
+     * @param maxSize максимальное количество подключений
+     * @param validationTimeout время на проверку подключения перед выдачей, сек
+     * @param idleTimeout время простоя, после которого подключение закрывается, сек
+     * @param borrowTimeout сколько ждать свободного подключения, если все заняты, сек
+     */
+    ConnectionPool(String url, String username, String password, int maxSize, int validationTimeout, int idleTimeout, int borrowTimeout) {
+        logger.debug("Creating new ConnectionPool; maxSize = " + maxSize + ", validationTimeout = " + validationTimeout
+                + ", idleTimeout = " + idleTimeout + ", borrowTimeout = " + borrowTimeout);
+        mUrl = url;
+        mUsername = username;
+        mPassword = password;
+        mMaxSize = maxSize;
+        mValidationTimeout = validationTimeout;
+        mIdleTimeout = idleTimeout * 1000L;
+        mBorrowTimeout = borrowTimeout * 1000L;
+
+        mEvictionTimer = new Timer("ConnectionPool-eviction", true);
+        long period = Math.max(1000L, mIdleTimeout / 2);
+        mEvictionTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, period, period);
+    }
+
+    /**
+     * Получение подключения из пула: свободное проверенное, либо новое, если пул еще не заполнен; если все заняты - ждем.
+     * @return подключение; его close() возвращает подключение в пул
+     * @throws SQLException не удалось подключиться к БД или дождаться свободного подключения
+     */
+    Connection getConnection() throws SQLException {
+        long deadline = System.currentTimeMillis() + mBorrowTimeout;
+
+        while (true) {
+            IdleConnection idle = null;
+
+            synchronized (this) {
+                if (mClosed) {
+                    throw new SQLException("Connection pool is closed");
+                }
+
+                if (!mIdle.isEmpty()) {
+                    idle = mIdle.pollFirst();
+                } else if (mTotal < mMaxSize) {
+                    mTotal++; // место под новое подключение занимаем сразу, открываем вне блокировки
+                } else {
+                    long wait = deadline - System.currentTimeMillis();
+
+                    if (wait <= 0) {
+                        throw new SQLException("No free DB connection in pool within " + (mBorrowTimeout / 1000) + " s (poolSize = " + mMaxSize + ")");
+                    }
+
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException iEx) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for DB connection", iEx);
+                    }
+                    continue;
+                }
+            }
+
+            if (idle != null) {
+                // проверка подключения перед выдачей; нерабочее закрываем и берем следующее
+                if (isAlive(idle.conn)) {
+                    logger.trace("Reusing pooled connection " + idle.conn);
+                    return wrap(idle.conn);
+                }
+                logger.debug("Pooled connection is not valid, closing it");
+                discard(idle.conn);
+                continue;
+            }
+
+            try {
+                Connection conn = DriverManager.getConnection(mUrl, mUsername, mPassword);
+                logger.debug("Opened new pooled connection " + conn + "; total = " + mTotal);
+                return wrap(conn);
+            } catch (SQLException | RuntimeException ex) {
+                synchronized (this) {
+                    mTotal--;
+                    notifyAll();
+                }
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Проверка подключения.
+     * @param conn подключение
+     * @return true, если подключение рабочее
+     */
+    private boolean isAlive(Connection conn) {
+        try {
+            return conn.isValid(mValidationTimeout);
+        } catch (SQLException sqlEx) {
+            logger.debug(sqlEx);
+            return false;
+        }
+    }
+
+    /**
+     * Возврат подключения в пул. Незавершенная транзакция откатывается, автокоммит включается обратно.
+     * @param conn подключение
+     */
+    private void release(Connection conn) {
+        try {
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException sqlEx) {
+            logger.debug("Unable to reset connection state, closing it");
+            logger.debug(sqlEx);
+            discard(conn);
+            return;
+        }
+
+        synchronized (this) {
+            if (!mClosed) {
+                mIdle.addFirst(new IdleConnection(conn, System.currentTimeMillis()));
+                notifyAll();
+                logger.trace("Connection returned to pool " + conn);
+                return;
+            }
+        }
+
+        // пул уже закрыт - закрываем и подключение
+        discard(conn);
+    }
+
+    /**
+     * Закрытие подключения, которое больше не вернется в пул.
+     * @param conn подключение
+     */
+    private void discard(Connection conn) {
+        synchronized (this) {
+            mTotal--;
+            notifyAll();
+        }
+
+        try {
+            conn.close();
+        } catch (SQLException sqlEx) {
+            logger.debug(sqlEx);
+        }
+    }
+
+    /**
+     * Закрытие подключений, простоявших без дела дольше idleTimeout.
+     */
+    private void evictIdle() {
+        List<Connection> expired = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            Iterator<IdleConnection> it = mIdle.iterator();
+
+            while (it.hasNext()) {
+                IdleConnection idle = it.next();
+
+                if (now - idle.releasedAt >= mIdleTimeout) {
+                    it.remove();
+                    expired.add(idle.conn);
+                }
+            }
+        }
+
+        for (Connection conn : expired) {
+            logger.debug("Closing idle pooled connection " + conn);
+            discard(conn);
+        }
+    }
+
+    /**
+     * Закрытие пула: свободные подключения закрываются сразу, выданные - при возврате.
+     */
+    @Override
+    public void close() {
+        List<IdleConnection> idle;
+
+        synchronized (this) {
+            if (mClosed) return;
+            mClosed = true;
+            idle = new ArrayList<>(mIdle);
+            mIdle.clear();
+            notifyAll();
+        }
+
+        mEvictionTimer.cancel();
+        logger.debug("Closing connection pool; idle connections = " + idle.size());
+
+        for (IdleConnection ic : idle) {
+            discard(ic.conn);
+        }
+    }
+
+    /**
+     * Обертка над подключением, у которой close() возвращает подключение в пул.
+     * @param conn подключение
+     * @return обертка
+     */
+    private Connection wrap(Connection conn) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, new PooledHandler(conn));
+    }
+
+    /**
+     * Обработчик вызовов обертки: все вызовы передаются подключению, кроме close() и isClosed().
+     */
+    private class PooledHandler implements InvocationHandler {
+        private Connection mConn;
+        private boolean mReleased = false;
+
+        PooledHandler(Connection conn) {
+            mConn = conn;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!mReleased) {
+                        mReleased = true;
+                        release(mConn);
+                    }
+                    return null;
+                case "isClosed":
+                    return mReleased || mConn.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "pooled " + mConn;
+                default:
+                    break;
+            }
+
+            if (mReleased) {
+                throw new SQLException("Connection has already been returned to the pool");
+            }
+
+            try {
+                return method.invoke(mConn, args);
+            } catch (InvocationTargetException itEx) {
+                throw itEx.getCause();
+            }
+        }
+    }
+}
@@ -15,11 +15,11 @@ public class DataSync {
     static Logger logger;
 
     /**
-     * Вызываемый метод приложения. Принимает на вход название комманды (export/sync) и имя файла с расширением xml.
+     * Вызываемый метод приложения. Принимает на вход название комманды (export/sync/watch) и имя файла с расширением xml.
      * @param args параметры командной строки
      */
     public static void main(String[] args) {
-        // комманда (export/sync) и имя файла
+        // комманда (export/sync/watch) и имя файла
         String mCommand, mFileName;
 
         try {
@@ -29,7 +29,7 @@ public class DataSync {
             logger.debug("args.length = " + args.length);
 
             if (args.length != 2) {
-                logger.info("Enter command and filename: 'DataSync.bat [export/sync] [filename]'");
+                logger.info("Enter command and filename: 'DataSync.bat [export/sync/watch] [filename]'");
                 throw new SoftException();
             }
 
@@ -39,20 +39,24 @@ public class DataSync {
             logger.trace("mCommand = " + mCommand);
             logger.trace("mFileName = " + mFileName);
 
-            if (!mCommand.equals("export") && !mCommand.equals("sync")) {
-                logger.info("Incorrect command: choose 'export' or 'sync'");
+            if (!mCommand.equals("export") && !mCommand.equals("sync") && !mCommand.equals("watch")) {
+                logger.info("Incorrect command: choose 'export', 'sync' or 'watch'");
                 throw new SoftException();
             }
 
-            Commander commander = new Commander(mFileName);
+            try (Commander commander = new Commander(mFileName)) {
+                if (mCommand.equals("export")) {
+                    logger.info("Starting export from DB to file");
+                    commander.export();
 
-            if (mCommand.equals("export")) {
-                logger.info("Starting export from DB to file");
-                commander.export();
+                } else if (mCommand.equals("sync")) {
+                    logger.info("Starting synchronization of file and DB");
+                    commander.sync();
 
-            } else if (mCommand.equals("sync")) {
-                logger.info("Starting synchronization of file and DB");
-                commander.sync();
+                } else if (mCommand.equals("watch")) {
+                    logger.info("Starting synchronization of DB on every file change");
+                    commander.watch();
+                }
             }
         } catch (SoftException sofEx) {
             logger.debug("Caught soft exception in Main block");
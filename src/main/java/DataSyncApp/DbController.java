@@ -3,16 +3,87 @@ package DataSyncApp;
 import java.io.*;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static DataSyncApp.DataSync.logger;
 
 /**
  * Класс отвечает за взаимодействие с БД: осуществляет подключениек БД, загрузку данных из мапа в БД, выгрузку данных в мап из БД.
  */
-class DbController {
+class DbController implements AutoCloseable {
+    private static boolean driverRegistered = false; // драйвер регистрируется один раз на приложение
+
     private String dbUrl;
     private String dbUsername;
     private String dbPassword;
+    private int batchSize; // начальный размер пачки команд, которая будет передаваться в БД (дальше подбирается, см. BatchSizer)
+    private int batchSizeMin; // границы подбора размера пачки
+    private int batchSizeMax;
+    private long batchMaxBytes; // предел объема данных одной пачки, байт
+    private volatile int learnedBatchSize; // размер пачки, подобранный при прошлой записи; с него начинается следующая
+    private int fetchSize; // количество строк, получаемых из БД за одно обращение при чтении
+    private int readPartitions; // на сколько частей делится чтение таблицы; части читаются параллельно, каждая на своем подключении
+    private int writePartitions; // на сколько частей делятся изменения; части применяются параллельно, каждая на своем подключении
+    private Boolean oracleDb; // БД - Oracle (определяется при первом обращении)
+    private ConnectionPool connectionPool; // подключения к БД, переиспользуемые между вызовами
+    private boolean digestRead = false; // читать из БД отпечатки Description вместо самих значений (см. setDigestRead)
+    private volatile KeyDictionary keyDictionary = new KeyDictionary(); // словарь значений ключа для читаемых строк (см. Pair)
+
+    // чтение всех строк: без порядка и упорядоченное по ключу; колонки читаются по номеру (см. DbDepSource)
+    private static final String SELECT_SQL = "SELECT DEPCODE, DEPJOB, DESCRIPTION FROM DZ_COMPANY";
+    private static final String SELECT_SORTED_SQL = SELECT_SQL + " ORDER BY DEPCODE, DEPJOB";
+    // чтение одной части таблицы: строки делятся на части по хэшу ключа; параметры - (количество частей - 1) и номер части
+    private static final String SELECT_PARTITION_SQL = SELECT_SQL + " WHERE ORA_HASH(DEPCODE || DEPJOB, ?) = ?";
+    private static final String SELECT_PARTITION_SORTED_SQL = SELECT_PARTITION_SQL + " ORDER BY DEPCODE, DEPJOB";
+    // то же, но вместо DESCRIPTION - его отпечаток: первые 8 байт MD5 (16 шестнадцатеричных символов, см. Dep.digestOf); у NULL - NULL
+    private static final String SELECT_DIGEST_SQL = "SELECT DEPCODE, DEPJOB, "
+            + "NVL2(DESCRIPTION, SUBSTR(RAWTOHEX(STANDARD_HASH(DESCRIPTION, 'MD5')), 1, 16), NULL) FROM DZ_COMPANY";
+    // кодировка БД: отпечатки из БД совпадают с отпечатками файла, только если строки в БД хранятся в UTF-8
+    private static final String CHARSET_SQL = "SELECT VALUE FROM NLS_DATABASE_PARAMETERS WHERE PARAMETER = 'NLS_CHARACTERSET'";
+    private static final String SELECT_DIGEST_SORTED_SQL = SELECT_DIGEST_SQL + " ORDER BY DEPCODE, DEPJOB";
+    private static final String SELECT_DIGEST_PARTITION_SQL = SELECT_DIGEST_SQL + " WHERE ORA_HASH(DEPCODE || DEPJOB, ?) = ?";
+    private static final String SELECT_DIGEST_PARTITION_SORTED_SQL = SELECT_DIGEST_PARTITION_SQL + " ORDER BY DEPCODE, DEPJOB";
+
+    // состояние таблицы для манифеста синхронизации: количество строк и сумма хэшей строк (от порядка строк не зависит)
+    private static final String STATE_SQL = "SELECT COUNT(*), SUM(ORA_HASH(DEPCODE || CHR(1) || DEPJOB || CHR(1) || DESCRIPTION)) FROM DZ_COMPANY";
+
+    // инкрементальная выгрузка по журналу изменений DZ_COMPANY_LOG (заполняется триггером, см. backup.sql); отметка - ORA_ROWSCN записей журнала.
+    // изменившиеся ключи и текущие строки по ним читаются одним запросом, т.е. на одном снимке БД; нет строки в DZ_COMPANY - строка удалена
+    private static final String LOG_MARK_SQL = "SELECT NVL(MAX(ORA_ROWSCN), 0) FROM DZ_COMPANY_LOG";
+    private static final String LOG_CHANGES_SQL = "SELECT l.DEPCODE, l.DEPJOB, c.DESCRIPTION, c.DEPCODE, l.SCN FROM "
+            + "(SELECT DEPCODE, DEPJOB, MAX(ORA_ROWSCN) SCN FROM DZ_COMPANY_LOG WHERE ORA_ROWSCN > ? GROUP BY DEPCODE, DEPJOB) l "
+            + "LEFT JOIN DZ_COMPANY c ON (c.DEPCODE = l.DEPCODE AND c.DEPJOB = l.DEPJOB)";
+
+    // параметризованные команды изменения данных: по одной на вид операции, чтобы БД разбирала каждую один раз
+    private static final String DELETE_SQL = "DELETE FROM DZ_COMPANY WHERE (DEPCODE = ? AND DEPJOB = ?)";
+    private static final String UPDATE_SQL = "UPDATE DZ_COMPANY SET DESCRIPTION = ? WHERE (DEPCODE = ? AND DEPJOB = ?)";
+    private static final String INSERT_SQL = "INSERT INTO DZ_COMPANY (DEPCODE, DEPJOB, DESCRIPTION) VALUES (?, ?, ?)";
+    // добавление, пропускающее уже существующую строку: для куска, который мог быть уже зафиксирован (см. SyncJournal)
+    private static final String INSERT_MISSING_SQL = "INSERT INTO DZ_COMPANY (DEPCODE, DEPJOB, DESCRIPTION) SELECT ?, ?, ? FROM DUAL "
+            + "WHERE NOT EXISTS (SELECT 1 FROM DZ_COMPANY WHERE DEPCODE = ? AND DEPJOB = ?)";
+
+    // перезагрузка таблицы целиком (см. reloadDataInDb): удаление всех строк одной командой (в транзакции, триггеры срабатывают),
+    // либо TRUNCATE (без undo и триггеров, но фиксируется сразу); добавление с APPEND_VALUES - прямая запись (Oracle 11.2 и выше),
+    // которая возможна только на таблице без включенных триггеров (иначе Oracle молча пишет обычным путем) и требует фиксации после каждой пачки
+    private static final String DELETE_ALL_SQL = "DELETE FROM DZ_COMPANY";
+    private static final String TRUNCATE_SQL = "TRUNCATE TABLE DZ_COMPANY";
+    private static final String INSERT_APPEND_SQL = "INSERT /*+ APPEND_VALUES */ INTO DZ_COMPANY (DEPCODE, DEPJOB, DESCRIPTION) VALUES (?, ?, ?)";
+    private static final String TRIGGERS_SQL = "SELECT COUNT(*) FROM USER_TRIGGERS WHERE TABLE_NAME = 'DZ_COMPANY' AND STATUS = 'ENABLED'";
+    // TRUNCATE не запускает триггер журнала изменений (AIUD_DZ_COMPANY_LOG), поэтому удаляемые строки пишутся в журнал до очистки
+    private static final String LOG_TRIGGER_SQL = "SELECT COUNT(*) FROM USER_TRIGGERS WHERE TRIGGER_NAME = 'AIUD_DZ_COMPANY_LOG' AND STATUS = 'ENABLED'";
+    private static final String LOG_ALL_SQL = "INSERT INTO DZ_COMPANY_LOG (SEQ, DEPCODE, DEPJOB) SELECT DZ_COMPANY_LOG_SEQ.NEXTVAL, DEPCODE, DEPJOB FROM DZ_COMPANY";
+
+    // синхронизация через промежуточную таблицу: файл грузится в DZ_COMPANY_STAGE (глобальная временная таблица, см. backup.sql),
+    // дальше БД сама удаляет строки, которых нет в файле, и одной командой MERGE изменяет и добавляет остальные
+    private static final String STAGE_INSERT_SQL = "INSERT INTO DZ_COMPANY_STAGE (DEPCODE, DEPJOB, DESCRIPTION) VALUES (?, ?, ?)";
+    private static final String STAGE_DELETE_SQL = "DELETE FROM DZ_COMPANY t WHERE NOT EXISTS "
+            + "(SELECT 1 FROM DZ_COMPANY_STAGE s WHERE s.DEPCODE = t.DEPCODE AND s.DEPJOB = t.DEPJOB)";
+    private static final String STAGE_MERGE_SQL = "MERGE INTO DZ_COMPANY t USING DZ_COMPANY_STAGE s "
+            + "ON (t.DEPCODE = s.DEPCODE AND t.DEPJOB = s.DEPJOB) "
+            + "WHEN MATCHED THEN UPDATE SET t.DESCRIPTION = s.DESCRIPTION "
+            + "WHERE (t.DESCRIPTION <> s.DESCRIPTION OR (t.DESCRIPTION IS NULL AND s.DESCRIPTION IS NOT NULL) OR (t.DESCRIPTION IS NOT NULL AND s.DESCRIPTION IS NULL)) "
+            + "WHEN NOT MATCHED THEN INSERT (DEPCODE, DEPJOB, DESCRIPTION) VALUES (s.DEPCODE, s.DEPJOB, s.DESCRIPTION)";
 
     /**
      * Создание контроллера БД. При создании автоматически определяются свойства подключения из файла свойств.
@@ -20,20 +91,16 @@ class DbController {
      * @throws HardException выход из приложения из-за ошибки (обработанный)
      */
     DbController() throws HardException {
-        Properties dbConnProps;
-        // проверяем наличие файла свойств подключения, и всех необходимых параметров
-        try {
-            logger.debug("Creating new DbController");
-
-            dbConnProps = new Properties();
-            dbConnProps.load(new FileInputStream("src/main/resources/dbconnection.properties"));
-            logger.debug("properties loaded");
-
-        } catch (IOException ioEx) {
-            logger.error("Error: can't reach file with DB connection properties!");
-            throw new HardException(ioEx);
-        }
+        this(loadConnectionProperties());
+    }
 
+    /**
+     * Создание контроллера БД с заданными свойствами подключения (те же параметры, что в dbconnection.properties).
+     * @param dbConnProps свойства подключения
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    DbController(Properties dbConnProps) throws HardException {
+        // проверяем наличие всех необходимых параметров
         if (!dbConnProps.containsKey("dbUrl")) {
             logger.error("Error: file with DB connection properties doesn't contain connection URL!");
             throw new HardException();
@@ -58,26 +125,618 @@ class DbController {
         dbPassword = dbConnProps.getProperty("dbPassword");
         logger.debug("dbPassword = " + dbPassword);
 
+        // необязательные параметры производительности
+        Settings dbSettings = new Settings(dbConnProps);
+        batchSize = dbSettings.getInt("batchSize", 1000, 1);
+        batchSizeMin = dbSettings.getInt("batchSizeMin", Math.min(100, batchSize), 1);
+        batchSizeMax = dbSettings.getInt("batchSizeMax", Math.max(10000, batchSize), batchSizeMin);
+        batchMaxBytes = dbSettings.getInt("batchMaxMb", 16, 1) * 1024L * 1024;
+        learnedBatchSize = batchSize;
+        fetchSize = dbSettings.getInt("fetchSize", 1000, 1);
+        readPartitions = dbSettings.getInt("readPartitions", 1, 1);
+        writePartitions = dbSettings.getInt("writePartitions", 1, 1);
+
+        registerDriver();
+
+        // каждой части чтения и записи нужно свое подключение, иначе части будут ждать друг друга
+        int poolSize = dbSettings.getInt("poolSize", 4, 1);
+        int partitions = Math.max(readPartitions, writePartitions);
+        if (poolSize < partitions) {
+            logger.info("poolSize = " + poolSize + " is less than readPartitions/writePartitions; using poolSize = " + partitions);
+            poolSize = partitions;
+        }
+
+        connectionPool = new ConnectionPool(dbUrl, dbUsername, dbPassword,
+                poolSize,
+                dbSettings.getInt("poolValidationTimeout", 5, 0),
+                dbSettings.getInt("poolIdleTimeout", 300, 1),
+                dbSettings.getInt("poolBorrowTimeout", 60, 0));
+    }
+
+    /**
+     * Чтение свойств подключения из файла dbconnection.properties.
+     * @return свойства подключения
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private static Properties loadConnectionProperties() throws HardException {
+        // проверяем наличие файла свойств подключения
+        try {
+            logger.debug("Creating new DbController");
+
+            Properties dbConnProps = new Properties();
+            dbConnProps.load(new FileInputStream("src/main/resources/dbconnection.properties"));
+            logger.debug("properties loaded");
+            return dbConnProps;
+
+        } catch (IOException ioEx) {
+            logger.error("Error: can't reach file with DB connection properties!");
+            throw new HardException(ioEx);
+        }
+    }
+
+    /**
+     * Регистрация драйвера БД; повторные вызовы ничего не делают.
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private static synchronized void registerDriver() throws HardException {
+        if (driverRegistered) return;
+
         try {
             DriverManager.registerDriver(new oracle.jdbc.OracleDriver());
             DriverManager.setLoginTimeout(10);
+            driverRegistered = true;
         } catch (SQLException sqlEx) {
             logger.error("Error: can't register driver for DB connection!");
             throw new HardException(sqlEx);
         }
     }
 
+    /**
+     * Получение подключения из пула. Закрытие подключения возвращает его в пул.
+     * @return подключение к БД
+     * @throws SQLException не удалось подключиться к БД
+     */
+    private Connection getConnection() throws SQLException {
+        return connectionPool.getConnection();
+    }
+
+    /**
+     * Закрытие контроллера: закрываются все подключения пула.
+     */
+    @Override
+    public void close() {
+        connectionPool.close();
+    }
+
+    /**
+     * Режим чтения для синхронизации: вместо Description из БД читается только его отпечаток (STANDARD_HASH, Oracle 12c и выше).
+     * Значения Description из БД при синхронизации не нужны: изменения пишутся из файла, а удаление идет по ключу,
+     * так что сравнения по отпечаткам достаточно, а по сети идет 16 символов на строку вместо Description целиком.
+     * Для других БД, для Oracle старше 12c (нет STANDARD_HASH) и для кодировки БД не AL32UTF8 (отпечатки не совпадут с отпечатками файла)
+     * режим не поддерживается - читаются полные строки.
+     * @param digestRead читать отпечатки
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    void setDigestRead(boolean digestRead) throws HardException {
+        if (digestRead && !isOracleDb()) {
+            logger.info("Reading description digests from DB is supported for Oracle only; reading full rows");
+            digestRead = false;
+        }
+        else if (digestRead && !isDigestSupported()) {
+            digestRead = false;
+        }
+        logger.debug("digestRead = " + digestRead);
+        this.digestRead = digestRead;
+    }
+
+    /**
+     * Проверка, что Oracle умеет считать отпечатки так же, как приложение: версия не ниже 12c (STANDARD_HASH)
+     * и кодировка БД - AL32UTF8 (отпечаток считается от байтов строки в кодировке БД, а у файла - от UTF-8).
+     * Если нет - пишется, почему, и читаются полные строки.
+     * @return true, если отпечатки из БД можно сравнивать с отпечатками файла
+     */
+    private boolean isDigestSupported() {
+        try (Connection conn = getConnection()) {
+            int version = conn.getMetaData().getDatabaseMajorVersion();
+            if (version < 12) {
+                logger.info("Reading description digests from DB requires Oracle 12c or later (STANDARD_HASH), DB version is "
+                        + version + "; reading full rows");
+                return false;
+            }
+
+            try (Statement st = conn.createStatement();
+                 ResultSet rs = st.executeQuery(CHARSET_SQL)) {
+                String charset = rs.next() ? rs.getString(1) : null;
+                if (!"AL32UTF8".equals(charset)) {
+                    logger.info("Reading description digests from DB requires AL32UTF8 database character set, DB character set is "
+                            + charset + "; reading full rows");
+                    return false;
+                }
+            }
+        } catch (SQLException sqlEx) {
+            logger.debug(sqlEx);
+            logger.info("Unable to check DB version and character set for reading description digests; reading full rows");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Задание словаря значений ключа, в котором создаются ключи читаемых строк: строки БД сравниваются только с ключами того же словаря.
+     * @param keyDictionary словарь значений ключа
+     */
+    void setKeyDictionary(KeyDictionary keyDictionary) {
+        this.keyDictionary = keyDictionary;
+    }
+
+    /**
+     * Состояние таблицы: количество строк и сумма ORA_HASH строк. Считается в БД, по сети идет одна строка;
+     * если состояние совпадает с запомненным в манифесте синхронизации ({@link SyncManifest}), таблицу можно не читать.
+     * @return состояние в виде строки, либо null, если БД его посчитать не может
+     */
+    String getDbState() {
+        long start = System.currentTimeMillis();
+
+        try (Connection conn = getConnection();
+             Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery(STATE_SQL)) {
+            rs.next();
+            String state = rs.getLong(1) + ":" + ((rs.getBigDecimal(2) == null) ? "0" : rs.getBigDecimal(2).toPlainString());
+            logger.debug("DB state = " + state + ", time = " + (System.currentTimeMillis() - start) + " ms");
+            return state;
+        } catch (SQLException sqlEx) {
+            logger.debug("Unable to get DB state");
+            logger.debug(sqlEx);
+            return null;
+        }
+    }
+
+    /**
+     * Отметка журнала изменений: наибольший ORA_ROWSCN его записей. Берется до полной выгрузки: все, что зафиксировано до отметки,
+     * в выгрузку попадет; что позже - попадет в следующую инкрементальную (возможно, повторно, что не страшно).
+     * @return отметка, либо null, если журнала изменений в БД нет
+     */
+    Long getChangeLogMark() {
+        try (Connection conn = getConnection();
+             Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery(LOG_MARK_SQL)) {
+            rs.next();
+            long mark = rs.getLong(1);
+            logger.debug("Change log mark = " + mark);
+            return mark;
+        } catch (SQLException sqlEx) {
+            logger.debug("Unable to get change log mark");
+            logger.debug(sqlEx);
+            return null;
+        }
+    }
+
+    /**
+     * Строки, изменившиеся с отметки журнала изменений. Читаются только ключи из журнала и строки по ним, так что время запроса
+     * зависит от количества изменений, а не от размера таблицы (ORA_ROWSCN журнала не индексируется, но журнал чистится, см. backup.sql).
+     * Отметка, до которой прочитаны изменения, - наибольший ORA_ROWSCN прочитанных записей: изменения, не зафиксированные на момент запроса,
+     * будут зафиксированы с большим SCN и попадут в следующую выгрузку.
+     * @param mark отметка предыдущей выгрузки
+     * @param oChanges мап для изменений: ключ - строка (Dep), удаленная строка - null
+     * @return новая отметка
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    long readChangesFromDb(long mark, Map<Pair,Dep> oChanges) throws HardException {
+        logger.info("Getting changes from DB");
+        long start = System.currentTimeMillis();
+        long newMark = mark;
+
+        try (Connection conn = getConnection();
+             PreparedStatement ps = conn.prepareStatement(LOG_CHANGES_SQL)) {
+            ps.setFetchSize(fetchSize);
+            ps.setLong(1, mark);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Pair pair = new Pair(keyDictionary, rs.getString(1), rs.getString(2));
+                    // DEPCODE из DZ_COMPANY null - строки по ключу больше нет
+                    oChanges.put(pair, (rs.getString(4) == null) ? null : new Dep(pair, rs.getString(3)));
+                    newMark = Math.max(newMark, rs.getLong(5));
+                }
+            }
+        } catch (SQLException sqlEx) {
+            logger.error("Error: failed to get changes from DB change log");
+            throw new HardException(sqlEx);
+        }
+
+        logger.debug("Changes read; rows = " + oChanges.size() + ", mark = " + newMark + ", time = " + (System.currentTimeMillis() - start) + " ms");
+        return newMark;
+    }
+
     /**
      * Подключение к БД и получение данных из нее в мап.
      * @return мап-коллекция (Map({@link Pair}, {@link Dep})), в которой ключом служит экземпляр Pair (пара DepCode и DepJob), а значением - экземпляр Dep (вся строка таблицы, кроме id)
      * @throws HardException выход из приложения из-за ошибки (обработанный)
      */
     Map<Pair,Dep> getDataFromDb() throws HardException {
+        return getDataFromDb(null);
+    }
+
+    /**
+     * Подключение к БД и получение данных из нее в заданный мап (например, {@link DepTable}).
+     * @param target пустой мап для строк БД; если он не потокобезопасен, при чтении по частям строки пишутся в него по очереди; null - HashMap
+     * @return мап со строками БД
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    Map<Pair,Dep> getDataFromDb(Map<Pair,Dep> target) throws HardException {
+        logger.info("Getting data from DB");
+        int partitions = getReadPartitions();
+
+        // при чтении по частям мап заполняется сразу из всех потоков
+        Map<Pair,Dep> oMap = (target != null) ? target : (partitions > 1) ? new ConcurrentHashMap<>() : new HashMap<>();
+
+        // формируем выходной мап
+        readDataFromDb(dep -> oMap.put(dep.getPair(), dep), partitions, oMap instanceof ConcurrentMap);
+
+        return oMap;
+    }
+
+    /**
+     * Подключение к БД и получение данных из нее, упорядоченных по ключу DepCode-DepJob, с ограничением по памяти.
+     * Сортировка идет на стороне приложения ({@link ExternalSorter}): если данные не помещаются в бюджет,
+     * они сбрасываются на диск упорядоченными прогонами и потом сливаются.
+     * @param memoryBudget бюджет памяти, байт
+     * @param spillDir папка для сброса данных на диск
+     * @return упорядоченный источник строк БД; закрывается вызывающим
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    DepSource getSortedDataFromDb(long memoryBudget, File spillDir) throws HardException {
         logger.info("Getting data from DB");
-        Map<Pair,Dep> oMap = new HashMap<>();
+        ExternalSorter sorter = new ExternalSorter("db", memoryBudget, spillDir, keyDictionary);
+
+        try {
+            readDataFromDb(sorter);
+        } catch (HardException hEx) {
+            sorter.discard();
+            throw hEx;
+        }
+
+        return sorter.finish();
+    }
+
+    /**
+     * Подключение к БД и потоковое чтение данных из нее: строки отдаются получателю по одной, по мере чтения, без сборки в мап.
+     * При чтении по частям (readPartitions) строки приходят в произвольном порядке, но получатель вызывается строго по очереди.
+     * @param visitor получатель строк (Dep)
+     * @return количество прочитанных строк
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    long readDataFromDb(DepVisitor visitor) throws HardException {
+        return readDataFromDb(visitor, getReadPartitions(), false);
+    }
+
+    /**
+     * Потоковое чтение данных из БД, целиком или по частям.
+     * @param visitor получатель строк (Dep)
+     * @param partitions количество частей
+     * @param concurrentVisitor получатель потокобезопасен; иначе при чтении по частям вызовы получателя идут по очереди
+     * @return количество прочитанных строк
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private long readDataFromDb(DepVisitor visitor, int partitions, boolean concurrentVisitor) throws HardException {
+        logger.debug("Reading data from DB; partitions = " + partitions);
+        long numRows;
+
+        if (partitions == 1) {
+            try (DepSource source = getDataSourceFromDb()) {
+                numRows = readAll(source, visitor, new AtomicBoolean());
+            }
+        } else if (concurrentVisitor) {
+            numRows = readPartitioned(visitor, partitions);
+        } else {
+            Object lock = new Object();
+            numRows = readPartitioned(dep -> {
+                synchronized (lock) {
+                    visitor.visit(dep);
+                }
+            }, partitions);
+        }
+
+        logger.debug("numRows = " + numRows);
+        return numRows;
+    }
+
+    /**
+     * Параллельное чтение таблицы по частям: каждая часть (строки с одинаковым ORA_HASH ключа) читается в своем потоке,
+     * на своем подключении из пула. Если одна из частей упала, остальные останавливаются, ошибка пробрасывается наверх.
+     * @param visitor потокобезопасный получатель строк
+     * @param partitions количество частей
+     * @return количество прочитанных строк
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private long readPartitioned(DepVisitor visitor, int partitions) throws HardException {
+        long start = System.currentTimeMillis();
+        ExecutorService executor = WorkerThreads.newPool("db-read", partitions);
+        AtomicBoolean cancelled = new AtomicBoolean(); // сигнал остальным частям остановиться
+        List<Future<Long>> futures = new ArrayList<>();
+        long numRows = 0;
+
+        try {
+            for (int i = 0; i < partitions; i++) {
+                final int partition = i;
+                futures.add(executor.submit(() -> {
+                    try (DepSource source = openDataSource(digestRead ? SELECT_DIGEST_PARTITION_SQL : SELECT_PARTITION_SQL, false, partitions, partition)) {
+                        long partRows = readAll(source, visitor, cancelled);
+                        logger.debug("Partition " + partition + " read; rows = " + partRows);
+                        return partRows;
+                    }
+                }));
+            }
+
+            for (Future<Long> future : futures) {
+                numRows += future.get();
+            }
+        } catch (ExecutionException exEx) {
+            cancelled.set(true);
+            logger.error("Error: failed to get data from DB");
+            throw (exEx.getCause() instanceof HardException) ? (HardException) exEx.getCause() : new HardException(exEx.getCause());
+        } catch (InterruptedException iEx) {
+            cancelled.set(true);
+            Thread.currentThread().interrupt();
+            logger.error("Error: interrupted while getting data from DB");
+            throw new HardException(iEx);
+        } finally {
+            // ждем завершения всех частей: после выхода получатель не должен вызываться, а подключения должны вернуться в пул
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException iEx) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        logger.info("Read " + numRows + " rows from DB in " + partitions + " partitions; time = " + (System.currentTimeMillis() - start) + " ms");
+        return numRows;
+    }
+
+    /**
+     * Передача всех строк источника получателю.
+     * @param source источник строк
+     * @param visitor получатель строк
+     * @param cancelled сигнал остановиться
+     * @return количество переданных строк
+     * @throws HardException выход из приложения из-за ошибки (обработанный), либо чтение отменено прерыванием потока
+     */
+    private static long readAll(DepSource source, DepVisitor visitor, AtomicBoolean cancelled) throws HardException {
+        long numRows = 0;
+        Dep dep;
+
+        while (!cancelled.get() && (dep = source.next()) != null) {
+            WorkerThreads.checkInterrupted();
+            visitor.visit(dep);
+            numRows++;
+        }
+        return numRows;
+    }
+
+    /**
+     * Подключение к БД и открытие курсора по всем строкам, без упорядочивания. Строки читаются по мере запроса, пачками по fetchSize.
+     * @return источник строк БД; закрывается вызывающим, вместе с ним подключение возвращается в пул
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    DepSource getDataSourceFromDb() throws HardException {
+        return openDataSource(digestRead ? SELECT_DIGEST_SQL : SELECT_SQL, false, 1, 0);
+    }
+
+    /**
+     * Подключение к БД и открытие курсора по всем строкам, упорядоченным по ключу (DepCode, DepJob), для сравнения слиянием ({@link SortMergeDiff}).
+     * Порядок должен совпадать с {@link Pair#compareTo(Pair)}, поэтому для Oracle сортировка сессии переключается на двоичную.
+     * При чтении по частям (readPartitions) каждая часть сортируется в БД отдельно, на своем подключении, а упорядоченные части
+     * сливаются в один поток ({@link MergedDepSource}).
+     * @return источник строк БД; закрывается вызывающим, вместе с ним подключения возвращаются в пул
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    DepSource getSortedDataSourceFromDb() throws HardException {
+        logger.info("Opening sorted data stream from DB");
+        int partitions = getReadPartitions();
+
+        if (partitions == 1) {
+            return openDataSource(digestRead ? SELECT_DIGEST_SORTED_SQL : SELECT_SORTED_SQL, true, 1, 0);
+        }
+
+        // курсоры открываем параллельно: открытие упорядоченного курсора ждет сортировки в БД
+        ExecutorService executor = WorkerThreads.newPool("db-read", partitions);
+        List<Future<DepSource>> futures = new ArrayList<>();
+        List<DepSource> sources = new ArrayList<>();
+        int collected = 0; // сколько курсоров уже дождались (открытые - в sources)
+
+        try {
+            for (int i = 0; i < partitions; i++) {
+                final int partition = i;
+                futures.add(executor.submit(() -> openDataSource(digestRead ? SELECT_DIGEST_PARTITION_SORTED_SQL : SELECT_PARTITION_SORTED_SQL, true, partitions, partition)));
+            }
+
+            HardException error = null;
+            for (Future<DepSource> future : futures) {
+                try {
+                    sources.add(future.get());
+                } catch (ExecutionException exEx) {
+                    error = (exEx.getCause() instanceof HardException) ? (HardException) exEx.getCause() : new HardException(exEx.getCause());
+                }
+                collected++;
+            }
+
+            if (error != null) {
+                throw error;
+            }
+        } catch (HardException | InterruptedException ex) {
+            if (ex instanceof InterruptedException) {
+                collectOpened(executor, futures.subList(collected, futures.size()), sources);
+            }
+
+            // уже открытые курсоры закрываем здесь, наружу они не уйдут
+            for (DepSource source : sources) {
+                try {
+                    source.close();
+                } catch (HardException hEx) {
+                    logger.debug(hEx);
+                }
+            }
+
+            if (ex instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            logger.error("Error: failed to get data from DB");
+            throw (ex instanceof HardException) ? (HardException) ex : new HardException(ex);
+        } finally {
+            executor.shutdown();
+        }
+
+        logger.debug("Sorted partitions opened; partitions = " + partitions);
+        return new MergedDepSource(sources);
+    }
+
+    /**
+     * Сбор курсоров, которые еще открываются, когда открытие прервано: не начавшие открываться отменяются,
+     * открывающиеся дожидаются, и все открытые курсоры добавляются к списку на закрытие - иначе их подключения не вернутся в пул.
+     * @param executor потоки открытия курсоров
+     * @param futures курсоры, которых еще не дождались
+     * @param sources открытые курсоры; сюда добавляются дождавшиеся
+     */
+    private static void collectOpened(ExecutorService executor, List<Future<DepSource>> futures, List<DepSource> sources) {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Future<DepSource> future : futures) {
+            if (!future.isDone()) {
+                future.cancel(true);
+                continue;
+            }
+            try {
+                sources.add(future.get());
+            } catch (ExecutionException | CancellationException | InterruptedException ex) {
+                logger.debug(ex);
+            }
+        }
+    }
+
+    /**
+     * Количество частей, на которые делится чтение таблицы. Деление идет по ORA_HASH, поэтому только для Oracle; для других БД - 1.
+     * @return количество частей
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private int getReadPartitions() throws HardException {
+        if (readPartitions > 1 && !isOracleDb()) {
+            logger.debug("readPartitions = " + readPartitions + " is supported for Oracle only; reading in one partition");
+            return 1;
+        }
+        return readPartitions;
+    }
+
+    /**
+     * Проверка, что БД - Oracle; результат запоминается.
+     * @return true, если БД - Oracle
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private synchronized boolean isOracleDb() throws HardException {
+        if (oracleDb == null) {
+            try (Connection conn = getConnection()) {
+                oracleDb = isOracle(conn);
+            } catch (SQLException sqlEx) {
+                logger.error("Error: can't connect to DB");
+                throw new HardException(sqlEx);
+            }
+        }
+        return oracleDb;
+    }
+
+    /**
+     * Подключение к БД и открытие курсора по запросу.
+     * @param sql запрос; колонки - DEPCODE, DEPJOB, DESCRIPTION (или его отпечаток, если включено чтение отпечатков)
+     * @param binarySort переключить сортировку сессии Oracle на двоичную
+     * @param partitions количество частей; если больше 1, запрос читает одну часть
+     * @param partition номер части, от 0
+     * @return источник строк БД
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private DepSource openDataSource(String sql, boolean binarySort, int partitions, int partition) throws HardException {
+        Connection conn = null;
+        PreparedStatement st = null;
+
+        try {
+            // подключение к БД
+            conn = getConnection();
+            logger.debug("conn = " + conn);
+            logger.trace("Checking connection");
+
+            // проверка успешности подключения
+            if (conn == null) {
+                logger.error("Error: Invalid connection");
+                throw new HardException();
+            }
+            logger.trace("Valid connection");
+
+            if (binarySort && isOracle(conn)) {
+                try (Statement alter = conn.createStatement()) {
+                    alter.execute("ALTER SESSION SET NLS_SORT = BINARY");
+                    alter.execute("ALTER SESSION SET NLS_COMP = BINARY");
+                }
+                logger.trace("Binary sort set for session");
+            }
+
+            // по умолчанию Oracle отдает по 10 строк за обращение; на больших таблицах это сотни тысяч обращений к БД
+            st = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            st.setFetchSize(fetchSize);
+
+            if (partitions > 1) {
+                st.setInt(1, partitions - 1);
+                st.setInt(2, partition);
+            }
+
+            ResultSet rs = st.executeQuery();
+            logger.debug("Cursor opened; fetchSize = " + fetchSize + ", partition = " + partition + " of " + partitions);
+
+            return new DbDepSource(conn, st, rs, digestRead, keyDictionary);
+        } catch (Exception ex) {
+            // при ошибке подключение закрываем здесь, наружу оно не уйдет
+            if (st != null) {
+                try {
+                    st.close();
+                } catch (SQLException sqlEx) {
+                    logger.debug(sqlEx);
+                }
+            }
+
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException sqlEx) {
+                    logger.debug(sqlEx);
+                }
+            }
+
+            // отмененное чтение (поток прерван) - не ошибка, о настоящей ошибке сообщит тот, кто отменил
+            if (Thread.currentThread().isInterrupted()) {
+                logger.debug("Opening DB cursor cancelled");
+            } else {
+                logger.error("Error: failed to get data from DB");
+            }
+            throw new HardException(ex);
+        }
+    }
+
+    /**
+     * Синхронизация БД с файлом силами самой БД: строки файла пачками грузятся в промежуточную таблицу DZ_COMPANY_STAGE,
+     * затем одной командой удаляются строки, которых нет в файле, и одной командой MERGE изменяются и добавляются остальные.
+     * Снимок БД в приложение не читается, сравнение идет в БД. Все в одной транзакции; при ошибке откатываемся.
+     * @param fileSource строки файла
+     * @return количество измененных строк БД (удаленных, измененных и добавленных); 0 - файл и БД совпадали
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    long mergeDataIntoDb(DepSource fileSource) throws HardException {
+        logger.info("Merging data into DB");
 
         // подключение к БД
-        try (Connection conn = DriverManager.getConnection(dbUrl, dbUsername, dbPassword)) {
+        try (Connection conn = getConnection()) {
             logger.debug("conn = " + conn);
             logger.trace("Checking connection");
 
@@ -88,27 +747,187 @@ class DbController {
             }
             logger.trace("Valid connection");
 
-            try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("SELECT DEPCODE, DEPJOB, DESCRIPTION FROM DZ_COMPANY")) {
-                while (rs.next()) {
-                    Pair pair = new Pair((String) rs.getObject("DEPCODE"), (String) rs.getObject("DEPJOB"));
-                    Dep dep = new Dep(pair, (String) rs.getObject("DESCRIPTION"));
-                    logger.trace("dep = " + dep.toString());
-                    // формируем выходной мап
-                    oMap.put(pair, dep);
+            // выключаем автокоммит и создаем точку сохранения
+            conn.setAutoCommit(false);
+            Savepoint sv = conn.setSavepoint();
+
+            try {
+                long numStaged = stageData(conn, fileSource);
+                logger.debug("numStaged = " + numStaged);
+
+                long numDeleted, numMerged;
+                try (Statement st = conn.createStatement()) {
+                    logger.trace("sql = " + STAGE_DELETE_SQL);
+                    numDeleted = st.executeUpdate(STAGE_DELETE_SQL);
+                    logger.trace("sql = " + STAGE_MERGE_SQL);
+                    numMerged = st.executeUpdate(STAGE_MERGE_SQL);
                 }
-            } catch (SQLException sqlEx) {
-                logger.error("Error: can't get data from DB");
-                throw new HardException(sqlEx);
+                logger.info("Deleted rows: " + numDeleted + ", updated and inserted rows: " + numMerged);
+
+                // сохраняем; промежуточная таблица очищается при коммите
+                conn.commit();
+                logger.debug("commited");
+
+                return numDeleted + numMerged;
+            } catch (Exception ex) {
+                // откатываемся в случае ошибки
+                conn.rollback(sv);
+                logger.error("Error: unable to merge changes in DB (staging table DZ_COMPANY_STAGE must exist, see backup.sql)");
+                throw new HardException(ex);
             }
         } catch (SQLException sqlEx) {
             logger.error("Error: can't connect to DB");
             throw new HardException(sqlEx);
-        } catch(Exception ex) {
-            logger.error("Error: failed to get data from DB");
+        } catch (Exception ex) {
+            logger.error("Error: failed to write data to DB");
             throw new HardException(ex);
         }
+    }
 
-        return oMap;
+    /**
+     * Загрузка строк файла в промежуточную таблицу пачками (размер пачки подбирается, см. {@link BatchSizer}).
+     * @param conn подключение к БД
+     * @param fileSource строки файла
+     * @return количество загруженных строк
+     * @throws SQLException ошибка выполнения команды
+     * @throws HardException ошибка чтения файла
+     */
+    private long stageData(Connection conn, DepSource fileSource) throws SQLException, HardException {
+        logger.debug("Loading file data into staging table");
+        long numStaged = 0;
+
+        // временная таблица сессии и так пустая, но если промежуточная таблица обычная (в БД без временных таблиц) - в ней могли остаться строки
+        try (Statement st = conn.createStatement()) {
+            st.executeUpdate("DELETE FROM DZ_COMPANY_STAGE");
+        }
+
+        try (PreparedStatement ps = conn.prepareStatement(STAGE_INSERT_SQL)) {
+            BatchSizer batches = newBatchSizer();
+            Dep dep;
+
+            while ((dep = fileSource.next()) != null) {
+                bindDep(ps, "insertSet", dep);
+                ps.addBatch();
+                numStaged++;
+
+                if (batches.add(dep)) {
+                    logger.debug("executing (numStaged = " + numStaged + ")");
+                    batches.execute(ps);
+                }
+            }
+
+            if (batches.hasPending()) {
+                logger.debug("last executing (numStaged = " + numStaged + ")");
+                batches.execute(ps);
+            }
+            finishBatches(batches, "staging table");
+        }
+
+        return numStaged;
+    }
+
+    /**
+     * Применение одного сета изменений: одна параметризованная команда на весь сет, строки передаются в БД пачками
+     * (размер пачки подбирается, см. {@link BatchSizer}).
+     * @param conn подключение к БД
+     * @param setName вид сета (deleteSet, updateSet, insertSet; insertMissingSet - добавление с пропуском существующих строк)
+     * @param set строки сета
+     * @throws SQLException ошибка выполнения команды
+     */
+    private void applySet(Connection conn, String setName, Collection<Dep> set) throws SQLException {
+        logger.debug("Applying " + setName + "; size = " + set.size());
+
+        if (set.isEmpty()) return;
+
+        String sql = setName.equals("deleteSet") ? DELETE_SQL : setName.equals("updateSet") ? UPDATE_SQL
+                : setName.equals("insertMissingSet") ? INSERT_MISSING_SQL : INSERT_SQL;
+        logger.trace("sql = " + sql);
+
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            BatchSizer batches = newBatchSizer();
+
+            for (Dep dep : set) {
+                logger.trace("dep = " + dep.toString());
+                bindDep(ps, setName, dep);
+                ps.addBatch();
+
+                if (batches.add(dep)) {
+                    logger.debug("executing (batch size = " + batches.getSize() + ")");
+                    batches.execute(ps);
+                }
+            }
+
+            if (batches.hasPending()) {
+                logger.debug("last executing");
+                batches.execute(ps);
+            }
+            finishBatches(batches, setName);
+        }
+    }
+
+    /**
+     * Подборщик размера пачки для очередной записи: начинает с размера, подобранного прошлой записью.
+     * @return подборщик размера пачки
+     */
+    private BatchSizer newBatchSizer() {
+        return new BatchSizer(learnedBatchSize, batchSizeMin, batchSizeMax, batchMaxBytes);
+    }
+
+    /**
+     * Завершение записи пачками: история размеров пачек пишется в лог, подобранный размер запоминается для следующей записи.
+     * @param batches подборщик размера пачки
+     * @param what что писалось (для лога)
+     */
+    private void finishBatches(BatchSizer batches, String what) {
+        batches.logHistory(what);
+        learnedBatchSize = batches.getSize();
+    }
+
+    /**
+     * Подстановка значений строки в параметры команды.
+     * @param ps команда ({@link #DELETE_SQL}, {@link #UPDATE_SQL}, {@link #INSERT_SQL} или {@link #INSERT_MISSING_SQL})
+     * @param setName вид сета (deleteSet, updateSet, insertSet, insertMissingSet), определяет порядок параметров
+     * @param dep строка
+     * @throws SQLException ошибка подстановки
+     */
+    private static void bindDep(PreparedStatement ps, String setName, Dep dep) throws SQLException {
+        Pair pair = dep.getPair();
+
+        if (setName.equals("deleteSet")) {
+            ps.setString(1, pair.getCode());
+            ps.setString(2, pair.getJob());
+        } else if (setName.equals("updateSet")) {
+            setDescription(ps, 1, dep.getDescription());
+            ps.setString(2, pair.getCode());
+            ps.setString(3, pair.getJob());
+        } else {
+            ps.setString(1, pair.getCode());
+            ps.setString(2, pair.getJob());
+            setDescription(ps, 3, dep.getDescription());
+
+            if (setName.equals("insertMissingSet")) {
+                ps.setString(4, pair.getCode());
+                ps.setString(5, pair.getJob());
+            }
+        }
+    }
+
+    private static void setDescription(PreparedStatement ps, int index, String description) throws SQLException {
+        if (description == null) {
+            ps.setNull(index, Types.VARCHAR);
+        } else {
+            ps.setString(index, description);
+        }
+    }
+
+    /**
+     * Проверка, что БД - Oracle; для нее используются специфичные команды и функции.
+     * @param conn подключение к БД
+     * @return true, если БД - Oracle
+     * @throws SQLException ошибка получения метаданных
+     */
+    static boolean isOracle(Connection conn) throws SQLException {
+        return conn.getMetaData().getDatabaseProductName().toLowerCase().contains("oracle");
     }
 
     /**
@@ -122,7 +941,7 @@ class DbController {
         logger.trace("iMap = " + iMap.toString());
 
         // подключение к БД
-        try (Connection conn = DriverManager.getConnection(dbUrl, dbUsername, dbPassword)) {
+        try (Connection conn = getConnection()) {
             logger.debug("conn = " + conn);
             logger.trace("Checking connection");
 
@@ -137,93 +956,387 @@ class DbController {
             conn.setAutoCommit(false);
             Savepoint sv = conn.setSavepoint();
 
-            try (Statement stmt = conn.createStatement()) {
-                final int BATCH_SIZE = 5; // размер пачки команд, которая будет передаваться в БД
-                int numRows = 0; // счетчик команд
+            try {
+                // удаляем, изменяем, добавляем строки
+                applySet(conn, "deleteSet", iMap.get("deleteSet"));
+                applySet(conn, "updateSet", iMap.get("updateSet"));
+                applySet(conn, "insertSet", iMap.get("insertSet"));
 
-                // команды для удаления строк
-                for (Dep delDep : iMap.get("deleteSet")) {
-                    Pair delPair = delDep.getPair();
-                    logger.trace("delPair = " + delPair.toString());
+                // сохраняем
+                conn.commit();
+                logger.debug("commited");
 
-                    String sql = "DELETE FROM DZ_COMPANY WHERE (DEPCODE = '" + delPair.getCode() + "' AND DEPJOB = '" + delPair.getJob() + "')";
-                    logger.trace("sql = " + sql);
-                    stmt.addBatch(sql);
+            } catch (Exception ex) {
+                // откатываемся в случае ошибки
+                conn.rollback(sv);
+                logger.error("Error: unable to make changes in DB");
+                throw new HardException(ex);
+            }
+        } catch (SQLException sqlEx) {
+            logger.error("Error: can't connect to DB");
+            throw new HardException(sqlEx);
+        } catch (Exception ex) {
+            logger.error("Error: failed to write data to DB");
+            throw new HardException(ex);
+        }
+    }
 
-                    if (++numRows % BATCH_SIZE == 0) {
-                        logger.debug("executing (numRows = " + numRows + ")");
-                        stmt.executeBatch();
-                    }
-                }
+    /**
+     * Перезагрузка таблицы строками файла: все строки удаляются, строки файла добавляются пачками. Дешевле построчных изменений,
+     * когда файл почти целиком отличается от таблицы (или таблица пустая).
+     * Без truncate удаление идет одной командой DELETE в одной транзакции с добавлением: при ошибке откатывается все, триггеры срабатывают
+     * (журнал изменений для инкрементальной выгрузки остается верным).
+     * С truncate таблица очищается командой TRUNCATE: без undo, но без отката (при ошибке добавления таблица останется пустой, и ее заполнит
+     * повторная синхронизация) и без срабатывания триггеров. Поэтому, если включен триггер журнала изменений, ключи всех строк таблицы
+     * сначала пишутся в журнал одной командой - TRUNCATE зафиксирует их вместе с очисткой, и инкрементальная выгрузка увидит удаления.
+     * В Oracle, если на таблице нет включенных триггеров, строки добавляются прямой записью (APPEND_VALUES, с фиксацией после каждой пачки);
+     * иначе, и в других БД, - обычными пачками.
+     * @param rows строки файла
+     * @param truncate очищать таблицу командой TRUNCATE
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    void reloadDataInDb(Collection<Dep> rows, boolean truncate) throws HardException {
+        logger.info("Reloading DB table; rows = " + rows.size());
+        long start = System.currentTimeMillis();
 
-                // команды для апдейта строк
-                for (Dep updDep : iMap.get("updateSet")) {
-                    logger.trace("updDep = " + updDep.toString());
-                    Pair updPair = updDep.getPair();
-                    String desc;
+        try (Connection conn = getConnection()) {
+            boolean directPath = truncate && isOracleDb() && !hasEnabledTriggers(conn);
 
-                    if (updDep.getDescription() == null) {
-                        desc = "NULL";
-                    } else if (updDep.getDescription().equals("")) {
-                        desc = "''";
+            logger.info(!truncate ? "Reload strategy: DELETE of all rows and batch insert in one transaction"
+                    : directPath ? "Reload strategy: TRUNCATE and direct-path insert (APPEND_VALUES)"
+                    : !isOracleDb() ? "Reload strategy: TRUNCATE and batch insert (direct-path insert is supported for Oracle only)"
+                    : "Reload strategy: TRUNCATE and batch insert (direct-path insert is not possible: table has enabled triggers)");
+
+            conn.setAutoCommit(false);
+
+            try {
+                try (Statement st = conn.createStatement()) {
+                    if (truncate) {
+                        // TRUNCATE - DDL: фиксирует транзакцию до очистки, так что записи журнала останутся, даже если очистка не пройдет
+                        // (лишние записи журнала безвредны - выгрузка перечитает строки по ним)
+                        if (isChangeLogged(conn)) {
+                            logger.debug("Rows written to change log before truncate: " + st.executeUpdate(LOG_ALL_SQL));
+                        }
+                        st.execute(TRUNCATE_SQL);
+                        logger.debug("Table truncated; time = " + (System.currentTimeMillis() - start) + " ms");
                     } else {
-                        desc = "'" + updDep.getDescription() + "'";
+                        logger.debug("Rows deleted: " + st.executeUpdate(DELETE_ALL_SQL));
                     }
+                }
+
+                try (PreparedStatement ps = conn.prepareStatement(directPath ? INSERT_APPEND_SQL : INSERT_SQL)) {
+                    BatchSizer batches = newBatchSizer();
+
+                    for (Dep dep : rows) {
+                        bindDep(ps, "insertSet", dep);
+                        ps.addBatch();
+
+                        if (batches.add(dep)) {
+                            batches.execute(ps);
 
-                    String sql = "UPDATE DZ_COMPANY SET DESCRIPTION = " + desc + " WHERE (DEPCODE = '" + updPair.getCode() + "' AND DEPJOB = '" + updPair.getJob() + "')";
-                    logger.trace("sql = " + sql);
-                    stmt.addBatch(sql);
+                            // после прямой записи таблицу нельзя менять в той же транзакции
+                            if (directPath) {
+                                conn.commit();
+                            }
+                        }
+                    }
 
-                    if (++numRows % BATCH_SIZE == 0) {
-                        logger.debug("executing (numRows = " + numRows + ")");
-                        stmt.executeBatch();
+                    if (batches.hasPending()) {
+                        batches.execute(ps);
                     }
+                    finishBatches(batches, "reload");
                 }
 
-                // команды для вставки строк
-                for (Dep insDep : iMap.get("insertSet")) {
-                    logger.trace("insDep = " + insDep.toString());
-                    Pair insPair = insDep.getPair();
-                    String desc;
+                conn.commit();
+            } catch (SQLException sqlEx) {
+                conn.rollback();
+                logger.error(truncate ? "Error: unable to load data into DB; table was truncated, run sync again to load it"
+                        : "Error: unable to make changes in DB");
+                throw new HardException(sqlEx);
+            }
+        } catch (SQLException sqlEx) {
+            logger.error("Error: can't connect to DB");
+            throw new HardException(sqlEx);
+        }
 
-                    if (insDep.getDescription() == null) {
-                        desc = "NULL";
-                    } else if (insDep.getDescription().equals("")) {
-                        desc = "''";
-                    } else {
-                        desc = "'" + insDep.getDescription() + "'";
-                    }
+        logger.info("Reloaded DB table; time = " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Проверка, есть ли на таблице включенные триггеры (Oracle): с ними прямая запись невозможна.
+     * @param conn подключение к БД
+     * @return true, если есть включенные триггеры, либо если проверить не удалось
+     */
+    private static boolean hasEnabledTriggers(Connection conn) {
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery(TRIGGERS_SQL)) {
+            rs.next();
+            return rs.getInt(1) > 0;
+        } catch (SQLException sqlEx) {
+            logger.debug(sqlEx);
+            return true;
+        }
+    }
+
+    /**
+     * Проверка, ведется ли журнал изменений (включен триггер AIUD_DZ_COMPANY_LOG, Oracle; в других БД журнала нет).
+     * @param conn подключение к БД
+     * @return true, если журнал ведется, либо если проверить не удалось
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private boolean isChangeLogged(Connection conn) throws HardException {
+        if (!isOracleDb()) return false;
 
-                    String sql = "INSERT INTO DZ_COMPANY (DEPCODE, DEPJOB, DESCRIPTION) VALUES ('" + insPair.getCode() + "', '" + insPair.getJob() + "', " + desc + ")";
-                    logger.trace("sql = " + sql);
-                    stmt.addBatch(sql);
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery(LOG_TRIGGER_SQL)) {
+            rs.next();
+            return rs.getInt(1) > 0;
+        } catch (SQLException sqlEx) {
+            logger.debug(sqlEx);
+            return true;
+        }
+    }
+
+    /**
+     * Изменение данных по кускам из журнала синхронизации ({@link SyncJournal}): каждый кусок - своя транзакция, после фиксации куска
+     * в журнал пишется отметка. Если запись упала, зафиксированные куски остаются в БД, а повторный запуск продолжит с отметки.
+     * Так объем отката (undo) ограничен одним куском. Запись идет на одном подключении (writePartitions не используется);
+     * если же куски журнала - части параллельной записи, они пишутся параллельно (см. {@link #writePartitioned(SyncJournal)}).
+     * @param journal журнал с изменениями, установленный на первое незафиксированное изменение
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    void writeDataToDb(SyncJournal journal) throws HardException {
+        if (journal.isPartitioned()) {
+            writePartitioned(journal);
+            return;
+        }
 
-                    if (++numRows % BATCH_SIZE == 0) {
-                        logger.debug("executing (numRows = " + numRows + ")");
-                        stmt.executeBatch();
+        logger.info("Writing data to DB in chunks of " + journal.getChunkSize() + " changes; changes left = " + (journal.getTotal() - journal.getApplied()));
+        long start = System.currentTimeMillis();
+
+        if (writePartitions > 1) {
+            logger.info("writePartitions is not used when writing in chunks");
+        }
+
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+
+            for (Map<String,List<Dep>> chunk = journal.nextChunk(); chunk != null; chunk = journal.nextChunk()) {
+                try {
+                    applySet(conn, "deleteSet", chunk.get("deleteSet"));
+                    applySet(conn, "updateSet", chunk.get("updateSet"));
+                    // удаление и изменение повторить можно, а добавление уже добавленной строки нарушит уникальность ключа
+                    applySet(conn, journal.isUncertain() ? "insertMissingSet" : "insertSet", chunk.get("insertSet"));
+
+                    conn.commit();
+                } catch (SQLException sqlEx) {
+                    conn.rollback();
+                    logger.error("Error: unable to make changes in DB; " + journal.getApplied() + " of " + journal.getTotal()
+                            + " changes are committed, run sync again to continue");
+                    throw new HardException(sqlEx);
+                }
+
+                journal.checkpoint();
+                logger.info("Committed " + journal.getApplied() + " of " + journal.getTotal() + " changes");
+            }
+        } catch (SQLException sqlEx) {
+            logger.error("Error: can't connect to DB");
+            throw new HardException(sqlEx);
+        }
+
+        logger.debug("Wrote data to DB in chunks; time = " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    int getWritePartitions() {
+        return writePartitions;
+    }
+
+    /**
+     * Раскладка изменений по частям параллельной записи (writePartitions). Строки всех трех сетов раскладываются по хэшу ключа,
+     * так что все изменения одного ключа попадают в одну часть, и части не блокируют строки друг друга.
+     * @param iMap мап, в котором ключом служит строка-обозначение сета (deleteSet, updateSet, insertSet), а значением - сам сет
+     * @return сеты частей, в том же виде
+     */
+    List<Map<String,List<Dep>>> splitPartitions(Map<String,Set<Dep>> iMap) {
+        int partitions = writePartitions;
+        List<Map<String,List<Dep>>> parts = new ArrayList<>();
+        for (int i = 0; i < partitions; i++) {
+            Map<String,List<Dep>> part = new HashMap<>();
+            part.put("deleteSet", new ArrayList<>());
+            part.put("updateSet", new ArrayList<>());
+            part.put("insertSet", new ArrayList<>());
+            parts.add(part);
+        }
+
+        for (String setName : parts.get(0).keySet()) {
+            for (Dep dep : iMap.get(setName)) {
+                parts.get(Math.floorMod(dep.getPair().hashCode(), partitions)).get(setName).add(dep);
+            }
+        }
+
+        return parts;
+    }
+
+    /**
+     * Параллельное изменение данных по частям из журнала синхронизации (части разложены {@link #splitPartitions(Map)}).
+     * Каждая часть применяется в своем потоке, на своем подключении, в своей транзакции (удаление, изменение, добавление - как и без деления).
+     * Если хоть одна часть упала - откатываются все. Иначе транзакции частей фиксируются друг за другом, и после фиксации каждой части
+     * в журнал пишется отметка. Если БД откажет посреди фиксаций (или приложение упадет), уже зафиксированные части остаются в БД,
+     * а повторный запуск продолжит с отметки и применит только незафиксированные части.
+     * @param journal журнал с изменениями, установленный на первое незафиксированное изменение
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private void writePartitioned(SyncJournal journal) throws HardException {
+        long start = System.currentTimeMillis();
+
+        // первая часть после продолжения могла быть уже зафиксирована
+        boolean uncertain = journal.isUncertain();
+        List<Map<String,List<Dep>>> parts = new ArrayList<>();
+        for (Map<String,List<Dep>> part = journal.nextChunk(); part != null; part = journal.nextChunk()) {
+            parts.add(part);
+        }
+        int partitions = parts.size();
+        logger.info("Writing data to DB in " + partitions + " partitions; changes left = " + (journal.getTotal() - journal.getApplied()));
+        if (partitions == 0) return;
+
+        ExecutorService executor = WorkerThreads.newPool("db-write", partitions);
+        Connection[] connections = new Connection[partitions]; // подключения частей с незафиксированными изменениями, по номеру части
+        AtomicBoolean cancelled = new AtomicBoolean(); // сигнал остальным частям остановиться
+        List<Future<?>> futures = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < partitions; i++) {
+                final int partition = i;
+                futures.add(executor.submit(() -> {
+                    applyPartition(parts.get(partition), partition, uncertain && partition == 0, connections, cancelled);
+                    return null;
+                }));
+            }
+
+            // ждем все части; первая ошибка останавливает остальные
+            Throwable error = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException exEx) {
+                    cancelled.set(true);
+                    if (error == null) {
+                        error = exEx.getCause();
                     }
                 }
+            }
 
-                logger.debug("last executing (numRows = " + numRows + ")");
-                stmt.executeBatch();
-                logger.debug("executed");
+            if (error != null) {
+                rollbackAll(connections, 0);
+                logger.error("Error: unable to make changes in DB; " + journal.getApplied() + " of " + journal.getTotal()
+                        + " changes are committed, run sync again to continue");
+                throw (error instanceof HardException) ? (HardException) error : new HardException(error);
+            }
 
-                // сохраняем
-                conn.commit();
-                logger.debug("commited");
+            commitAll(connections, journal);
+        } catch (InterruptedException iEx) {
+            cancelled.set(true);
+            Thread.currentThread().interrupt();
+            logger.error("Error: interrupted while writing data to DB");
+            throw new HardException(iEx);
+        } finally {
+            // ждем завершения всех частей, и возвращаем подключения в пул; незафиксированное при возврате откатывается
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException iEx) {
+                Thread.currentThread().interrupt();
+            }
 
-            } catch (Exception ex) {
-                // откатываемся в случае ошибки
-                conn.rollback(sv);
-                logger.error("Error: unable to make changes in DB");
-                throw new HardException(ex);
+            for (Connection conn : connections) {
+                if (conn == null) continue;
+                try {
+                    conn.close();
+                } catch (SQLException sqlEx) {
+                    logger.debug(sqlEx);
+                }
+            }
+        }
+
+        logger.info("Wrote data to DB in " + partitions + " partitions; time = " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Применение одной части изменений без фиксации. Подключение остается открытым, фиксирует или откатывает его вызывающий.
+     * @param part сеты части
+     * @param partition номер части
+     * @param uncertain часть могла быть уже зафиксирована (см. {@link SyncJournal#isUncertain()})
+     * @param connections подключения частей; сюда по номеру части кладется подключение этой части
+     * @param cancelled сигнал остановиться (другая часть упала)
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private void applyPartition(Map<String,List<Dep>> part, int partition, boolean uncertain, Connection[] connections, AtomicBoolean cancelled)
+            throws HardException {
+        try {
+            Connection conn = getConnection();
+            connections[partition] = conn;
+            conn.setAutoCommit(false);
+
+            // удаляем, изменяем, добавляем строки; добавление уже добавленной строки нарушит уникальность ключа
+            for (String setName : new String[]{"deleteSet", "updateSet", "insertSet"}) {
+                if (cancelled.get()) {
+                    logger.debug("Partition " + partition + " cancelled");
+                    return;
+                }
+                applySet(conn, (uncertain && setName.equals("insertSet")) ? "insertMissingSet" : setName, part.get(setName));
             }
+
+            logger.debug("Partition " + partition + " applied; delete = " + part.get("deleteSet").size()
+                    + ", update = " + part.get("updateSet").size() + ", insert = " + part.get("insertSet").size());
         } catch (SQLException sqlEx) {
-            logger.error("Error: can't connect to DB");
+            logger.error("Error: unable to make changes in DB (partition " + partition + ")");
             throw new HardException(sqlEx);
-        } catch (Exception ex) {
-            logger.error("Error: failed to write data to DB");
-            throw new HardException(ex);
         }
     }
+
+    /**
+     * Фиксация изменений всех частей по порядку, с отметкой в журнале после каждой. Если не удалась одна из фиксаций - откатываются
+     * оставшиеся части, а уже зафиксированные остаются в БД и отмечены в журнале.
+     * @param connections подключения частей, по номеру части
+     * @param journal журнал синхронизации
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private static void commitAll(Connection[] connections, SyncJournal journal) throws HardException {
+        long start = System.currentTimeMillis();
+        int committed = 0;
+
+        for (Connection conn : connections) {
+            try {
+                conn.commit();
+            } catch (SQLException sqlEx) {
+                rollbackAll(connections, committed);
+
+                logger.error("Error: commit failed after " + committed + " of " + connections.length
+                        + " partitions were committed; committed partitions are recorded in sync journal, run sync again to finish the rest");
+                throw new HardException(sqlEx);
+            }
+
+            committed++;
+            journal.checkpoint();
+        }
+
+        logger.debug("commited " + committed + " partitions; commit time = " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Откат изменений частей.
+     * @param connections подключения частей, по номеру части
+     * @param from номер первой откатываемой части
+     */
+    private static void rollbackAll(Connection[] connections, int from) {
+        for (int partition = from; partition < connections.length; partition++) {
+            if (connections[partition] == null) continue;
+            try {
+                connections[partition].rollback();
+            } catch (SQLException sqlEx) {
+                logger.debug(sqlEx);
+            }
+        }
+        logger.debug("rolled back " + (connections.length - from) + " partitions");
+    }
 }
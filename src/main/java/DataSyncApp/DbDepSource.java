@@ -0,0 +1,76 @@
+package DataSyncApp;
+
+import java.sql.*;
+
+import static DataSyncApp.DataSync.logger;
+
+/**
+ * Источник строк из открытого курсора БД: строки читаются из ResultSet по одной, по мере запроса.
+ * Владеет подключением, запросом и курсором, и закрывает их в {@link #close()} (подключение из пула при этом возвращается в пул).
+ */
+class DbDepSource implements DepSource {
+    private Connection mConn;
+    private Statement mStatement;
+    private ResultSet mResultSet;
+    private boolean mDigestOnly; // третья колонка - не DESCRIPTION, а его отпечаток
+    private KeyDictionary mKeyDictionary; // словарь значений ключа, в котором создаются ключи строк
+
+    /**
+     * Создание источника по открытому курсору.
+     * @param conn подключение к БД
+     * @param statement запрос
+     * @param resultSet курсор запроса; колонки - DEPCODE, DEPJOB, DESCRIPTION, именно в таком порядке
+     * @param digestOnly вместо DESCRIPTION запрос отдает его отпечаток (16 шестнадцатеричных символов, см. {@link Dep#digestOf(String)})
+     * @param keyDictionary словарь значений ключа, в котором создаются ключи строк
+     */
+    DbDepSource(Connection conn, Statement statement, ResultSet resultSet, boolean digestOnly, KeyDictionary keyDictionary) {
+        mConn = conn;
+        mStatement = statement;
+        mResultSet = resultSet;
+        mDigestOnly = digestOnly;
+        mKeyDictionary = keyDictionary;
+    }
+
+    @Override
+    public Dep next() throws HardException {
+        try {
+            if (!mResultSet.next()) return null;
+
+            // колонки по номеру, в порядке запроса: без поиска по имени на каждой строке
+            Pair pair = new Pair(mKeyDictionary, mResultSet.getString(1), mResultSet.getString(2));
+            Dep dep;
+
+            if (mDigestOnly) {
+                String digest = mResultSet.getString(3);
+                dep = new Dep(pair, (digest == null) ? 0L : Long.parseUnsignedLong(digest, 16));
+            } else {
+                dep = new Dep(pair, mResultSet.getString(3));
+            }
+            logger.trace("dep = " + dep.toString());
+            return dep;
+        } catch (SQLException | NumberFormatException ex) {
+            logger.error("Error: can't get data from DB");
+            throw new HardException(ex);
+        }
+    }
+
+    @Override
+    public void close() throws HardException {
+        logger.trace("Closing DB cursor");
+
+        // подключение из пула при закрытии не закрывается, поэтому запрос с курсором закрываем явно
+        try {
+            mResultSet.close();
+            mStatement.close();
+        } catch (SQLException sqlEx) {
+            logger.debug(sqlEx);
+        }
+
+        try {
+            mConn.close();
+        } catch (SQLException sqlEx) {
+            logger.error("Error: can't close DB connection");
+            throw new HardException(sqlEx);
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package DataSyncApp;
 
-import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.Objects;
 
 /**
  * Класс, инкапсулирующий поля строки БД (кроме id), и участвующий в обмене данными между БД и файлом.
@@ -11,16 +15,63 @@ import java.util.Arrays;
  * Не допускается наличие двух и более одинаковых объектов класса в файле и БД.
  * Объект, у которого совпадают ключи Pair, но отличаются Description, считает измененным.
  * При выгрузке из файла используются соответствующие теги DepCode, DepJob и Description.
+ * Если у обеих строк есть Description, он сравнивается напрямую. По 64-битному отпечатку (первые 8 байт MD5 от UTF-8
+ * представления) строки сравниваются, когда у одной из них Description нет (строки БД в режиме dbRead = digest, строки манифеста)
+ * или когда оба отпечатка уже известны - тогда сравнение сводится к сравнению чисел.
+ * Вероятность совпадения отпечатков у разных Description (около 2^-64 на пару) пренебрежимо мала.
  */
 class Dep {
+    /**
+     * Порядок строк по ключу (Pair) - для упорядоченной обработки и сортировки.
+     */
+    static final Comparator<Dep> KEY_ORDER = Comparator.comparing(Dep::getPair);
+
     private Pair pair;
     private String description; // Description
+    private long digest;                  // отпечаток Description, см. digestOf
+    private volatile boolean digestKnown; // отпечаток посчитан (запись digest видна после чтения флага)
+    private boolean digestOnly;           // строка без Description, только с отпечатком (прочитана из БД в режиме dbRead = digest)
+
+    // MessageDigest не потокобезопасен - у каждого потока свой
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException nsaEx) {
+            throw new IllegalStateException(nsaEx);
+        }
+    });
 
     Dep(Pair pr, String description) {
         this.pair = pr;
         this.description = description;
     }
 
+    /**
+     * Создание строки с уже посчитанным отпечатком Description (например, хранимым в {@link DepTable}): при сравнении он не пересчитывается.
+     * @param pr ключ
+     * @param description Description
+     * @param digest отпечаток Description (см. {@link #digestOf(String)})
+     */
+    Dep(Pair pr, String description, long digest) {
+        this.pair = pr;
+        this.description = description;
+        this.digest = digest;
+        this.digestKnown = true;
+    }
+
+    /**
+     * Создание строки без Description, только с его отпечатком (см. {@link #digestOf(String)}).
+     * Такую строку можно сравнивать с другими, но не записывать: годится для строк БД, которые могут только удаляться (по ключу).
+     * @param pr ключ
+     * @param digest отпечаток Description
+     */
+    Dep(Pair pr, long digest) {
+        this.pair = pr;
+        this.digest = digest;
+        this.digestKnown = true;
+        this.digestOnly = true;
+    }
+
     /*public Dep(String code, String job, String description) {
         this.pair = new Pair(code, job);
         this.description = description;
@@ -42,14 +93,70 @@ class Dep {
         this.description = description;
     }*/
 
+    boolean isDigestOnly() {
+        return digestOnly;
+    }
+
+    /**
+     * Отпечаток Description; считается при первом обращении.
+     * @return отпечаток
+     */
+    long getDigest() {
+        if (!digestKnown) {
+            digest = digestOf(description);
+            digestKnown = true;
+        }
+        return digest;
+    }
+
+    /**
+     * Совпадение содержимого (Description) со строкой с тем же ключом.
+     * Отпечатки сравниваются, только если у одной из строк нет Description или оба отпечатка уже посчитаны;
+     * иначе Description сравнивается напрямую, без подсчета MD5.
+     * @param other строка с тем же ключом
+     * @return true, если Description совпадают
+     */
+    boolean sameContent(Dep other) {
+        if (this.digestOnly || other.digestOnly || (this.digestKnown && other.digestKnown)) {
+            return this.getDigest() == other.getDigest();
+        }
+        return Objects.equals(this.description, other.description);
+    }
+
+    /**
+     * Отпечаток Description: первые 8 байт MD5 от UTF-8 представления (big-endian), так же, как их дает
+     * STANDARD_HASH(DESCRIPTION, 'MD5') в БД с кодировкой AL32UTF8; у отсутствующего Description (null) - 0.
+     * @param description Description
+     * @return отпечаток
+     */
+    static long digestOf(String description) {
+        if (description == null) return 0L;
+
+        byte[] md5 = MD5.get().digest(description.getBytes(StandardCharsets.UTF_8));
+        long result = 0;
+
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (md5[i] & 0xFF);
+        }
+        return result;
+    }
+
     @Override
     public String toString() {
+        if (digestOnly) {
+            return "Dep{pair='" + pair + "', digest=" + Long.toHexString(digest) + "}";
+        }
         return "Dep{pair='" + pair + "', description='" + description + "'}";
     }
 
+    /**
+     * Хэш - по ключу: у одинаковых строк одинаковые ключи, а в пределах одного набора ключи уникальны,
+     * так что Description (и его отпечаток) для хэша не нужен.
+     * @return хэш
+     */
     @Override
     public int hashCode() {
-        return Arrays.hashCode(new Object[]{this.pair, this.description});
+        return pair.hashCode();
     }
 
     @Override
@@ -62,13 +169,6 @@ class Dep {
 
         Dep other = (Dep) obj;
 
-        if (this.description == null) {
-            if (other.description != null) return false;
-        }
-        else {
-            if (!this.description.equals(other.description)) return false;
-        }
-
-        return this.getPair().equals(other.getPair());
+        return this.getPair().equals(other.getPair()) && sameContent(other);
     }
 }
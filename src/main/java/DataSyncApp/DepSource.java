@@ -0,0 +1,21 @@
+package DataSyncApp;
+
+/**
+ * Источник строк ({@link Dep}), выдающий их по одной, без загрузки всех данных в память.
+ * Используется для потоковой обработки больших файлов и таблиц, когда Map({@link Pair}, {@link Dep}) целиком в память не помещается.
+ */
+interface DepSource extends AutoCloseable {
+    /**
+     * Получение следующей строки.
+     * @return очередная строка (Dep), либо null, если строк больше нет
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    Dep next() throws HardException;
+
+    /**
+     * Освобождение ресурсов источника (файлов, курсоров и т.п.).
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    @Override
+    void close() throws HardException;
+}
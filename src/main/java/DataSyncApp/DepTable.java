@@ -0,0 +1,346 @@
+package DataSyncApp;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Компактный мап строк (Map({@link Pair}, {@link Dep})) - замена HashMap для больших объемов.
+ * Таблица с открытой адресацией (линейное пробирование) по отпечатку ключа ({@link Pair#getFingerprint()}, однозначен):
+ * ключи лежат в массиве long, Description - в параллельном массиве строк.
+ * Объекты Pair, Dep и узлы HashMap на каждую строку не хранятся, поэтому на строку уходит около 16-32 байт сверх самих строк Description
+ * (в зависимости от заполнения таблицы), и сборщику мусора почти нечего обходить.
+ * Pair и Dep создаются заново при каждом обращении (get, перебор); они равны исходным (equals), но не те же объекты.
+ * Отпечаток ключа однозначен только в пределах словаря значений ключа, поэтому все ключи таблицы - из одного словаря, заданного при создании.
+ * Строки только с отпечатком Description (см. {@link Dep#isDigestOnly()}) хранят вместо Description метку, а сам отпечаток -
+ * в массиве long, который заводится только при появлении первой такой строки.
+ * Не потокобезопасен; одновременное чтение без изменений безопасно. Удаление через итератор не поддерживается.
+ */
+class DepTable extends AbstractMap<Pair,Dep> {
+    private static final long EMPTY = Long.MIN_VALUE; // пустая ячейка; такого отпечатка не бывает (номер DepCode в словаре не бывает отрицательным, кроме -1)
+    private static final int MIN_CAPACITY = 16;
+    private static final String DIGEST_ONLY = new String("digest only"); // метка строки только с отпечатком (сравнивается по ссылке)
+
+    private KeyDictionary mKeyDictionary; // словарь значений ключа, по которому получены отпечатки
+    private long[] mKeys;           // отпечатки ключей
+    private String[] mDescriptions; // Description, либо метка DIGEST_ONLY
+    private long[] mDigests;        // отпечатки Description строк с меткой DIGEST_ONLY; null, пока таких строк нет
+    private int mSize = 0;
+    private int mMask;              // capacity - 1
+    private int mShift;             // 64 - log2(capacity), для выбора ячейки по старшим битам хэша
+    private int mThreshold;         // при каком количестве строк таблица увеличивается (заполнение 3/4)
+
+    /**
+     * Создание таблицы.
+     * @param keyDictionary словарь значений ключа строк таблицы
+     */
+    DepTable(KeyDictionary keyDictionary) {
+        this(keyDictionary, MIN_CAPACITY);
+    }
+
+    /**
+     * Создание таблицы под ожидаемое количество строк (чтобы не увеличивать ее на ходу).
+     * @param keyDictionary словарь значений ключа строк таблицы
+     * @param expectedSize ожидаемое количество строк
+     */
+    DepTable(KeyDictionary keyDictionary, int expectedSize) {
+        mKeyDictionary = keyDictionary;
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3L / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        Arrays.fill(mKeys, EMPTY);
+        mDescriptions = new String[capacity];
+        mDigests = (mDigests == null) ? null : new long[capacity];
+        mMask = capacity - 1;
+        mShift = 64 - Integer.numberOfTrailingZeros(capacity);
+        mThreshold = capacity / 4 * 3;
+    }
+
+    /**
+     * Начальная ячейка ключа: фибоначчиево хэширование, старшие биты произведения.
+     * @param key отпечаток ключа
+     * @return номер ячейки
+     */
+    private int slotOf(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> mShift);
+    }
+
+    /**
+     * Поиск ячейки ключа.
+     * @param key отпечаток ключа
+     * @return номер ячейки, либо -1, если ключа нет
+     */
+    private int find(long key) {
+        for (int i = slotOf(key); ; i = (i + 1) & mMask) {
+            long k = mKeys[i];
+
+            if (k == key) return i;
+
+            if (k == EMPTY) return -1;
+        }
+    }
+
+    private Dep depAt(int i) {
+        Pair pair = Pair.fromFingerprint(mKeyDictionary, mKeys[i]);
+        String description = mDescriptions[i];
+        return (description == DIGEST_ONLY) ? new Dep(pair, mDigests[i]) : new Dep(pair, description);
+    }
+
+    private void store(int i, long key, Dep dep) {
+        mKeys[i] = key;
+        if (dep.isDigestOnly()) {
+            if (mDigests == null) {
+                mDigests = new long[mKeys.length];
+            }
+            mDescriptions[i] = DIGEST_ONLY;
+            mDigests[i] = dep.getDigest();
+        } else {
+            mDescriptions[i] = dep.getDescription();
+        }
+    }
+
+    /**
+     * Ключ ли это из словаря таблицы: отпечатки ключей из другого словаря с отпечатками таблицы несравнимы.
+     * @param key ключ
+     * @return true, если ключ - Pair словаря таблицы
+     */
+    private boolean isOwnKey(Object key) {
+        return (key instanceof Pair) && ((Pair) key).getDictionary() == mKeyDictionary;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return isOwnKey(key) && find(((Pair) key).getFingerprint()) >= 0;
+    }
+
+    @Override
+    public Dep get(Object key) {
+        if (!isOwnKey(key)) return null;
+
+        int i = find(((Pair) key).getFingerprint());
+        return (i < 0) ? null : depAt(i);
+    }
+
+    @Override
+    public Dep put(Pair key, Dep value) {
+        if (!key.equals(value.getPair())) {
+            throw new IllegalArgumentException("Key " + key + " does not match row " + value);
+        }
+        if (key.getDictionary() != mKeyDictionary) {
+            throw new IllegalArgumentException("Key " + key + " belongs to another key dictionary");
+        }
+
+        long k = key.getFingerprint();
+        int i = slotOf(k);
+
+        for (; mKeys[i] != EMPTY; i = (i + 1) & mMask) {
+            if (mKeys[i] == k) {
+                Dep previous = depAt(i);
+                store(i, k, value);
+                return previous;
+            }
+        }
+
+        store(i, k, value);
+        if (++mSize > mThreshold) {
+            grow();
+        }
+        return null;
+    }
+
+    @Override
+    public Dep remove(Object key) {
+        if (!isOwnKey(key)) return null;
+
+        int i = find(((Pair) key).getFingerprint());
+        if (i < 0) return null;
+
+        Dep previous = depAt(i);
+        deleteAt(i);
+        mSize--;
+        return previous;
+    }
+
+    /**
+     * Удаление из ячейки со сдвигом следующих за ней ключей назад, чтобы цепочки пробирования не рвались (без "надгробий").
+     * @param hole освобождаемая ячейка
+     */
+    private void deleteAt(int hole) {
+        for (int i = (hole + 1) & mMask; mKeys[i] != EMPTY; i = (i + 1) & mMask) {
+            int home = slotOf(mKeys[i]);
+
+            // ключ можно перенести в дыру, если его начальная ячейка не лежит (циклически) между дырой и текущей ячейкой
+            if (((i - home) & mMask) >= ((i - hole) & mMask)) {
+                mKeys[hole] = mKeys[i];
+                mDescriptions[hole] = mDescriptions[i];
+                if (mDigests != null) {
+                    mDigests[hole] = mDigests[i];
+                }
+                hole = i;
+            }
+        }
+
+        mKeys[hole] = EMPTY;
+        mDescriptions[hole] = null;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(mKeys, EMPTY);
+        Arrays.fill(mDescriptions, null);
+        mSize = 0;
+    }
+
+    private void grow() {
+        long[] keys = mKeys;
+        String[] descriptions = mDescriptions;
+        long[] digests = mDigests;
+
+        allocate(keys.length << 1);
+
+        for (int j = 0; j < keys.length; j++) {
+            if (keys[j] == EMPTY) continue;
+
+            int i = slotOf(keys[j]);
+            while (mKeys[i] != EMPTY) {
+                i = (i + 1) & mMask;
+            }
+            mKeys[i] = keys[j];
+            mDescriptions[i] = descriptions[j];
+            if (digests != null) {
+                mDigests[i] = digests[j];
+            }
+        }
+    }
+
+    @Override
+    public Collection<Dep> values() {
+        return new AbstractCollection<Dep>() {
+            @Override
+            public Iterator<Dep> iterator() {
+                return new SlotIterator<Dep>() {
+                    @Override
+                    Dep at(int i) {
+                        return depAt(i);
+                    }
+                };
+            }
+
+            @Override
+            public Spliterator<Dep> spliterator() {
+                return new SlotSpliterator(0, mKeys.length);
+            }
+
+            @Override
+            public int size() {
+                return mSize;
+            }
+        };
+    }
+
+    @Override
+    public Set<Entry<Pair,Dep>> entrySet() {
+        return new AbstractSet<Entry<Pair,Dep>>() {
+            @Override
+            public Iterator<Entry<Pair,Dep>> iterator() {
+                return new SlotIterator<Entry<Pair,Dep>>() {
+                    @Override
+                    Entry<Pair,Dep> at(int i) {
+                        Dep dep = depAt(i);
+                        return new SimpleImmutableEntry<>(dep.getPair(), dep);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return mSize;
+            }
+        };
+    }
+
+    /**
+     * Перебор строк диапазона ячеек; делится пополам по ячейкам, без перебора строк - для параллельной обработки ({@link ParallelHashDiff}).
+     */
+    private class SlotSpliterator implements Spliterator<Dep> {
+        private int mFrom; // следующая ячейка
+        private int mTo;   // конец диапазона (не включая)
+
+        SlotSpliterator(int from, int to) {
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Dep> action) {
+            while (mFrom < mTo) {
+                int i = mFrom++;
+                if (mKeys[i] != EMPTY) {
+                    action.accept(depAt(i));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<Dep> trySplit() {
+            if (mTo - mFrom < MIN_CAPACITY * 2) return null;
+
+            int mid = (mFrom + mTo) >>> 1;
+            Spliterator<Dep> prefix = new SlotSpliterator(mFrom, mid);
+            mFrom = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return (long) mSize * (mTo - mFrom) / mKeys.length;
+        }
+
+        @Override
+        public int characteristics() {
+            return NONNULL | DISTINCT;
+        }
+    }
+
+    /**
+     * Перебор занятых ячеек по порядку.
+     */
+    private abstract class SlotIterator<T> implements Iterator<T> {
+        private int mNext = advance(0);
+
+        private int advance(int i) {
+            while (i < mKeys.length && mKeys[i] == EMPTY) {
+                i++;
+            }
+            return i;
+        }
+
+        abstract T at(int i);
+
+        @Override
+        public boolean hasNext() {
+            return mNext < mKeys.length;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) throw new NoSuchElementException();
+
+            T result = at(mNext);
+            mNext = advance(mNext + 1);
+            return result;
+        }
+    }
+}
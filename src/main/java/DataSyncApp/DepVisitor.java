@@ -0,0 +1,14 @@
+package DataSyncApp;
+
+/**
+ * Получатель строк ({@link Dep}), которые отдаются ему по одной, по мере чтения из БД или файла.
+ * Позволяет обрабатывать данные потоково, не собирая их целиком в Map({@link Pair}, {@link Dep}).
+ */
+interface DepVisitor {
+    /**
+     * Обработка очередной строки.
+     * @param dep строка
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    void visit(Dep dep) throws HardException;
+}
@@ -0,0 +1,27 @@
+package DataSyncApp;
+
+/**
+ * Получатель решений, которые принимает сравнение файла и БД: какие строки удалить из БД, какие изменить, какие добавить.
+ */
+interface DiffHandler {
+    /**
+     * Строки БД нет в файле - ее нужно удалить.
+     * @param dbDep строка из БД
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    void delete(Dep dbDep) throws HardException;
+
+    /**
+     * Строка с таким ключом есть и в файле, и в БД, но отличается - ее нужно изменить.
+     * @param fileDep строка из файла (новое значение)
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    void update(Dep fileDep) throws HardException;
+
+    /**
+     * Строки файла нет в БД - ее нужно добавить.
+     * @param fileDep строка из файла
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    void insert(Dep fileDep) throws HardException;
+}
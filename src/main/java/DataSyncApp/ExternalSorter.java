@@ -0,0 +1,306 @@
+package DataSyncApp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static DataSyncApp.DataSync.logger;
+
+/**
+ * Сортировка строк по ключу (DepCode, DepJob) с ограничением по памяти.
+ * Строки копятся в памяти, пока их примерный объем не превысит бюджет; после этого накопленное сортируется
+ * и сбрасывается на диск отдельным упорядоченным файлом (прогоном). В конце прогоны сливаются k-путевым слиянием ({@link MergedDepSource})
+ * в один упорядоченный поток, который можно отдать в {@link SortMergeDiff}. Если бюджет ни разу не превышен, диск не используется.
+ * Статистика сброса (прогоны, байты, время сброса и слияния) пишется в лог.
+ */
+class ExternalSorter implements DepVisitor {
+    private static final int ROW_OVERHEAD = 168; // примерный расход памяти на строку без учета символов: Dep, Pair, три String, ссылка в списке
+
+    private String mName;        // чьи строки сортируем (для лога)
+    private long mBudget;        // бюджет памяти, байт
+    private File mTempDir;       // папка для файлов прогонов
+    private KeyDictionary mKeyDictionary; // словарь значений ключа, в котором создаются ключи строк, прочитанных из прогонов
+
+    private List<Dep> mBuffer = new ArrayList<>(); // строки, накопленные в памяти
+    private long mBufferBytes = 0;                 // примерный объем накопленного
+    private List<File> mRuns = new ArrayList<>();  // файлы прогонов
+
+    private long mRows = 0;       // всего строк
+    private long mSpillBytes = 0; // записано на диск байт
+    private long mSpillNanos = 0; // время сортировки и записи прогонов
+
+    /**
+     * Создание сортировщика.
+     * @param name чьи строки сортируем (для лога)
+     * @param budget бюджет памяти, байт
+     * @param tempDir папка для файлов прогонов
+     * @param keyDictionary словарь значений ключа сортируемых строк
+     */
+    ExternalSorter(String name, long budget, File tempDir, KeyDictionary keyDictionary) {
+        logger.debug("Creating new ExternalSorter; name = " + name + ", budget = " + budget + ", tempDir = " + tempDir);
+        mName = name;
+        mBudget = budget;
+        mTempDir = tempDir;
+        mKeyDictionary = keyDictionary;
+    }
+
+    /**
+     * Добавление строки; при превышении бюджета накопленные строки сбрасываются на диск.
+     * @param dep строка
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    @Override
+    public void visit(Dep dep) throws HardException {
+        mBuffer.add(dep);
+        mBufferBytes += estimateSize(dep);
+        mRows++;
+
+        if (mBufferBytes > mBudget) {
+            spill();
+        }
+    }
+
+    /**
+     * Примерный объем строки в памяти.
+     * @param dep строка
+     * @return объем, байт
+     */
+    private static long estimateSize(Dep dep) {
+        int chars = dep.getPair().getCode().length() + dep.getPair().getJob().length()
+                + ((dep.getDescription() == null) ? 0 : dep.getDescription().length());
+        return ROW_OVERHEAD + 2L * chars;
+    }
+
+    /**
+     * Сортировка накопленных строк и запись их на диск отдельным прогоном.
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private void spill() throws HardException {
+        long start = System.nanoTime();
+        mBuffer.sort(Dep.KEY_ORDER);
+
+        File run;
+        try {
+            run = File.createTempFile("datasync-" + mName + "-run", ".tmp", mTempDir);
+            run.deleteOnExit();
+            mRuns.add(run);
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+                for (Dep dep : mBuffer) {
+                    writeString(out, dep.getPair().getCode());
+                    writeString(out, dep.getPair().getJob());
+                    writeContent(out, dep);
+                }
+                mSpillBytes += out.size();
+            }
+        } catch (IOException ioEx) {
+            logger.error("Error: failed to spill " + mName + " data to disk");
+            throw new HardException(ioEx);
+        }
+
+        logger.debug("Spilled run " + mRuns.size() + " for " + mName + ": rows = " + mBuffer.size() + ", file = " + run);
+        mBuffer.clear();
+        mBufferBytes = 0;
+        mSpillNanos += System.nanoTime() - start;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // у строки без Description (только с отпечатком) вместо длины пишется -2, за ней - отпечаток
+    private static void writeContent(DataOutputStream out, Dep dep) throws IOException {
+        if (dep.isDigestOnly()) {
+            out.writeInt(-2);
+            out.writeLong(dep.getDigest());
+        } else {
+            writeString(out, dep.getDescription());
+        }
+    }
+
+    private static Dep readDep(DataInputStream in, Pair pair) throws IOException {
+        int len = in.readInt();
+
+        if (len == -2) return new Dep(pair, in.readLong());
+
+        if (len < 0) return new Dep(pair, null);
+
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new Dep(pair, new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+
+        if (len < 0) return null;
+
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Завершение сбора строк.
+     * @return все добавленные строки, упорядоченные по ключу; источник закрывается вызывающим, при закрытии файлы прогонов удаляются
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    DepSource finish() throws HardException {
+        // все поместилось в память - просто сортируем
+        if (mRuns.isEmpty()) {
+            logger.debug("Sorted " + mName + " data in memory; rows = " + mRows);
+            mBuffer.sort(Dep.KEY_ORDER);
+            return new BufferSource(mBuffer);
+        }
+
+        if (!mBuffer.isEmpty()) {
+            try {
+                spill();
+            } catch (HardException hEx) {
+                discard();
+                throw hEx;
+            }
+        }
+
+        logger.info("Spilled " + mName + " data to disk: runs = " + mRuns.size() + ", rows = " + mRows
+                + ", bytes = " + mSpillBytes + ", spill time = " + (mSpillNanos / 1000000) + " ms");
+
+        return new MergeSource();
+    }
+
+    /**
+     * Источник строк из отсортированного списка в памяти.
+     */
+    private static class BufferSource implements DepSource {
+        private Iterator<Dep> mIterator;
+
+        BufferSource(List<Dep> buffer) {
+            mIterator = buffer.iterator();
+        }
+
+        @Override
+        public Dep next() {
+            return mIterator.hasNext() ? mIterator.next() : null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Чтение одного прогона по строкам.
+     */
+    private class RunSource implements DepSource {
+        private DataInputStream mIn;
+
+        RunSource(File run) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+        }
+
+        @Override
+        public Dep next() throws HardException {
+            try {
+                String code;
+                try {
+                    code = readString(mIn);
+                } catch (EOFException eofEx) {
+                    return null;
+                }
+                String job = readString(mIn);
+                return readDep(mIn, new Pair(mKeyDictionary, code, job));
+            } catch (IOException ioEx) {
+                logger.error("Error: failed to read spilled " + mName + " data");
+                throw new HardException(ioEx);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                mIn.close();
+            } catch (IOException ioEx) {
+                logger.debug(ioEx);
+            }
+        }
+    }
+
+    /**
+     * k-путевое слияние прогонов ({@link MergedDepSource}); при закрытии файлы прогонов удаляются.
+     */
+    private class MergeSource implements DepSource {
+        private MergedDepSource mMerged;
+        private long mMergeNanos = 0;
+
+        MergeSource() throws HardException {
+            List<DepSource> sources = new ArrayList<>();
+
+            try {
+                for (File run : mRuns) {
+                    sources.add(new RunSource(run));
+                }
+            } catch (IOException ioEx) {
+                for (DepSource source : sources) {
+                    source.close();
+                }
+                deleteRuns();
+                logger.error("Error: failed to read spilled " + mName + " data");
+                throw new HardException(ioEx);
+            }
+
+            try {
+                mMerged = new MergedDepSource(sources);
+            } catch (HardException hEx) {
+                deleteRuns();
+                throw hEx;
+            }
+        }
+
+        @Override
+        public Dep next() throws HardException {
+            long start = System.nanoTime();
+            Dep dep = mMerged.next();
+            mMergeNanos += System.nanoTime() - start;
+            return dep;
+        }
+
+        @Override
+        public void close() throws HardException {
+            logger.info("Merged spilled " + mName + " data: runs = " + mRuns.size() + ", merge time = " + (mMergeNanos / 1000000) + " ms");
+
+            try {
+                mMerged.close();
+            } finally {
+                deleteRuns();
+            }
+        }
+    }
+
+    /**
+     * Отказ от собранных строк (чтение упало): файлы прогонов удаляются сразу, а не при выходе из JVM -
+     * в режиме watch приложение не завершается, и без этого файлы копились бы в папке сброса.
+     */
+    void discard() {
+        deleteRuns();
+        mRuns.clear();
+        mBuffer.clear();
+        mBufferBytes = 0;
+    }
+
+    /**
+     * Удаление файлов прогонов.
+     */
+    private void deleteRuns() {
+        for (File run : mRuns) {
+            if (!run.delete()) {
+                logger.debug("Unable to delete run file " + run);
+            }
+        }
+    }
+}
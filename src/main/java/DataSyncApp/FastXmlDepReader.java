@@ -0,0 +1,547 @@
+package DataSyncApp;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.util.*;
+
+import static DataSyncApp.DataSync.logger;
+
+/**
+ * Быстрое чтение строк из xml файла нашего формата (корень, в нем Row, в них DEPCODE, DEPJOB, DESCRIPTION) без xml парсера:
+ * файл целиком читается в буфер в куче, и байты UTF-8 разбираются напрямую; строки декодируются только для значений полей,
+ * текст из одних ASCII символов копируется в строку без декодера.
+ * Разбирается только то, что пишет выгрузка: без атрибутов, комментариев, CDATA, DTD, других элементов; из ссылок -
+ * стандартные (&amp;amp; &amp;lt; &amp;gt; &amp;quot; &amp;apos;) и числовые. Как только встречается что-то другое (или ошибка в данных),
+ * чтение продолжается обычным StAX ридером ({@link XmlDepReader}) с той же строки: он перечитывает файл, пропуская уже выданные строки,
+ * поэтому результат и сообщения об ошибках всегда те же, что и у него.
+ * Файл не отображается в память: в Java 8 отображение нельзя освободить явно, а пока оно живо, в Windows файл нельзя
+ * ни заменить (наложение изменений при выгрузке, см. {@link FileController#patchFile(Map)}), ни удалить, ни переписать извне (режим наблюдения).
+ * Файл закрывается сразу после чтения, буфер отпускается, когда строки кончились, или при закрытии ридера.
+ */
+class FastXmlDepReader implements DepSource {
+    private static final byte[] ROW = ascii("Row");
+    private static final byte[] DEPCODE = ascii("DEPCODE");
+    private static final byte[] DEPJOB = ascii("DEPJOB");
+    private static final byte[] DESCRIPTION = ascii("DESCRIPTION");
+
+    private File mFile;                 // файл
+    private boolean mCheckDuplicates;   // проверять ли уникальность ключа
+    private Set<Pair> mKeys;            // встреченные ключи; null, если проверка не нужна
+    private KeyDictionary mKeyDictionary; // словарь значений ключа, в котором создаются ключи строк
+    private ByteBuffer mBuf;            // содержимое файла
+    private int mPos = 0;               // текущая позиция разбора
+    private int mLimit = 0;             // размер файла
+    private byte[] mRootName;           // имя корневого тега
+    private int mNameStart, mNameEnd;   // последнее прочитанное имя тега
+    private boolean mStarted = false;   // заголовок и корневой тег разобраны
+    private boolean mFinished = false;  // файл дочитан
+    private int mRowNum = 0;            // количество выданных строк
+    private char[] mChars = new char[256]; // буфер для ASCII текста
+    private CharsetDecoder mDecoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT);
+    private XmlDepReader mFallback;     // StAX ридер, если быстрый разбор не справился
+
+    /**
+     * Что-то, что быстрый разбор не поддерживает; чтение продолжается StAX ридером.
+     */
+    private static class UnsupportedContent extends Exception {
+        UnsupportedContent(String reason) {
+            super(reason, null, false, false);
+        }
+    }
+
+    /**
+     * Открытие файла на чтение.
+     * @param file файл с данными
+     * @param checkDuplicates проверять ли уникальность ключа DepCode-DepJob
+     * @param keyDictionary словарь значений ключа, в котором создаются ключи строк
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    FastXmlDepReader(File file, boolean checkDuplicates, KeyDictionary keyDictionary) throws HardException {
+        logger.debug("Creating new FastXmlDepReader; file = " + file + ", checkDuplicates = " + checkDuplicates);
+        mFile = file;
+        mCheckDuplicates = checkDuplicates;
+        mKeyDictionary = keyDictionary;
+
+        if (checkDuplicates) {
+            mKeys = new HashSet<>();
+        }
+
+        long length = file.length();
+
+        // пустой файл - пустой источник
+        if (length == 0) {
+            logger.debug("File is empty");
+            mFinished = true;
+            return;
+        }
+
+        // больше 2 Гб одним буфером не прочитать
+        if (length > Integer.MAX_VALUE) {
+            logger.debug("File is too large for one buffer; using StAX reader");
+            mFallback = new XmlDepReader(file, checkDuplicates, keyDictionary);
+            return;
+        }
+
+        // файл читается целиком и сразу закрывается
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            ByteBuffer buf = ByteBuffer.allocate((int) length);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf) < 0) break;
+            }
+            mLimit = buf.position();
+            buf.clear();
+            mBuf = buf;
+        } catch (IOException ioEx) {
+            logger.error("Error: failed to read data from file");
+            throw new HardException(ioEx);
+        }
+    }
+
+    /**
+     * Чтение следующей строки (Row) файла.
+     * @return очередная строка (Dep), либо null, если строк больше нет
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    @Override
+    public Dep next() throws HardException {
+        if (mFallback != null) return mFallback.next();
+        if (mFinished) return null;
+
+        Dep dep;
+        try {
+            if (!mStarted) {
+                readProlog();
+                mStarted = true;
+            }
+            dep = readRow();
+        } catch (UnsupportedContent ucEx) {
+            switchToFallback(ucEx.getMessage());
+            return mFallback.next();
+        }
+
+        if (dep == null) {
+            mFinished = true;
+            mBuf = null;
+            return null;
+        }
+
+        mRowNum++;
+
+        // проверка на уникальность ключа
+        if (mKeys != null && !mKeys.add(dep.getPair())) {
+            logger.error("Error: File contains multiple rows with the same key!");
+            throw new HardException();
+        }
+        return dep;
+    }
+
+    /**
+     * Переход на StAX ридер: он открывает файл заново и пропускает строки, уже выданные быстрым разбором.
+     * @param reason что не поддерживается (для лога)
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private void switchToFallback(String reason) throws HardException {
+        logger.debug("Fast parser falls back to StAX reader after " + mRowNum + " rows at byte " + mPos + ": " + reason);
+        mBuf = null;
+        mFallback = new XmlDepReader(mFile, mCheckDuplicates, mKeyDictionary);
+
+        for (int i = 0; i < mRowNum; i++) {
+            if (mFallback.next() == null) {
+                logger.error("Error: inappropriate file content");
+                throw new HardException("StAX reader found fewer rows than fast parser");
+            }
+        }
+    }
+
+    /**
+     * Разбор начала файла: BOM, xml декларация, открывающий корневой тег.
+     * @throws UnsupportedContent неподдерживаемое содержимое
+     */
+    private void readProlog() throws UnsupportedContent {
+        // BOM UTF-8
+        if (mLimit >= 3 && byteAt(0) == (byte) 0xEF && byteAt(1) == (byte) 0xBB && byteAt(2) == (byte) 0xBF) {
+            mPos = 3;
+        }
+
+        // декларация допустима только в самом начале
+        if (startsWith("<?xml")) {
+            int end = indexOf("?>", mPos);
+            if (end < 0) throw new UnsupportedContent("unterminated xml declaration");
+
+            String decl = asciiString(mPos, end);
+            checkDeclaration(decl);
+            mPos = end + 2;
+        }
+
+        skipWhitespace();
+        expect('<');
+
+        if (mPos < mLimit && (byteAt(mPos) == '!' || byteAt(mPos) == '?')) {
+            throw new UnsupportedContent("DTD, comment or processing instruction");
+        }
+
+        readName();
+
+        // имя не может начинаться с цифры, '-' или '.'
+        byte first = byteAt(mNameStart);
+        if ((first >= '0' && first <= '9') || first == '-' || first == '.') {
+            throw new UnsupportedContent("invalid root element name");
+        }
+
+        mRootName = new byte[mNameEnd - mNameStart];
+        for (int i = 0; i < mRootName.length; i++) {
+            mRootName[i] = byteAt(mNameStart + i);
+        }
+        expect('>');
+    }
+
+    /**
+     * Проверка xml декларации: версия 1.0 (обязательна), кодировка UTF-8 (или не указана).
+     * @param decl текст декларации
+     * @throws UnsupportedContent другая версия или кодировка
+     */
+    private static void checkDeclaration(String decl) throws UnsupportedContent {
+        String lower = decl.toLowerCase(Locale.ROOT).replaceAll("\\s*=\\s*", "=").replace('\'', '"');
+
+        if (!lower.contains("version=\"1.0\"")) {
+            throw new UnsupportedContent("xml version");
+        }
+
+        if (lower.contains("encoding=") && !lower.contains("encoding=\"utf-8\"") && !lower.contains("encoding=\"utf8\"")) {
+            throw new UnsupportedContent("encoding");
+        }
+    }
+
+    /**
+     * Разбор очередной строки (Row).
+     * @return строка, либо null, если дошли до закрывающего корневого тега (и после него ничего нет)
+     * @throws UnsupportedContent неподдерживаемое содержимое или ошибка в данных
+     */
+    private Dep readRow() throws UnsupportedContent {
+        skipWhitespace();
+        expect('<');
+
+        // закрывающий корневой тег - конец файла; после него допустимы только пробельные символы
+        if (mPos < mLimit && byteAt(mPos) == '/') {
+            mPos++;
+            readName();
+            if (!nameEquals(mRootName)) throw new UnsupportedContent("unexpected closing tag");
+            expect('>');
+            skipWhitespace();
+            if (mPos != mLimit) throw new UnsupportedContent("content after root element");
+            return null;
+        }
+
+        readName();
+        if (!nameEquals(ROW)) throw new UnsupportedContent("unexpected element");
+        expect('>');
+
+        String code = null, job = null, description = null;
+        int descCount = 0; // количество тегов DESCRIPTION в строке
+
+        while (true) {
+            skipWhitespace();
+            expect('<');
+
+            if (mPos < mLimit && byteAt(mPos) == '/') {
+                mPos++;
+                readName();
+                if (!nameEquals(ROW)) throw new UnsupportedContent("unexpected closing tag");
+                expect('>');
+                break;
+            }
+
+            readName();
+            int field = nameEquals(DEPCODE) ? 0 : nameEquals(DEPJOB) ? 1 : nameEquals(DESCRIPTION) ? 2 : -1;
+            if (field < 0) throw new UnsupportedContent("unexpected element");
+
+            int nameStart = mNameStart, nameEnd = mNameEnd;
+            String text;
+
+            if (mPos < mLimit && byteAt(mPos) == '/') {
+                // пустой элемент
+                mPos++;
+                expect('>');
+                text = "";
+            } else {
+                expect('>');
+                text = readText();
+
+                // закрывающий тег того же элемента
+                expect('<');
+                expect('/');
+                readName();
+                if (mNameEnd - mNameStart != nameEnd - nameStart || !regionEquals(mNameStart, nameStart, nameEnd - nameStart)) {
+                    throw new UnsupportedContent("nested element");
+                }
+                expect('>');
+            }
+
+            if (field == 0) {
+                if (code == null) code = text;
+            } else if (field == 1) {
+                if (job == null) job = text;
+            } else {
+                description = text;
+                descCount++;
+            }
+        }
+
+        // ошибки в данных разбирает и описывает StAX ридер
+        if (code == null || job == null || code.isEmpty() || job.isEmpty()) {
+            throw new UnsupportedContent("invalid row");
+        }
+
+        // если описание задано (даже пустой строкой) - берем его, если записи нет, значит там был нулл
+        return new Dep(new Pair(mKeyDictionary, code, job), (descCount == 1) ? description : null);
+    }
+
+    /**
+     * Чтение текста элемента до следующего тега.
+     * @return текст с раскрытыми ссылками на символы
+     * @throws UnsupportedContent неподдерживаемое содержимое текста
+     */
+    private String readText() throws UnsupportedContent {
+        int start = mPos;
+        boolean ascii = true;
+        boolean hasRefs = false;
+
+        while (mPos < mLimit) {
+            byte b = byteAt(mPos);
+
+            if (b == '<') break;
+
+            if (b < 0) {
+                ascii = false;
+            } else if (b == '&') {
+                hasRefs = true;
+            } else if (b < 0x20 && b != '\t' && b != '\n') {
+                // перевод каретки нормализуется парсером, прочие управляющие символы недопустимы
+                throw new UnsupportedContent("control character in text");
+            } else if (b == '>' && mPos - start >= 2 && byteAt(mPos - 1) == ']' && byteAt(mPos - 2) == ']') {
+                throw new UnsupportedContent("']]>' in text");
+            }
+            mPos++;
+        }
+
+        int len = mPos - start;
+        String text;
+
+        if (ascii) {
+            if (mChars.length < len) mChars = new char[Math.max(len, mChars.length * 2)];
+            for (int i = 0; i < len; i++) {
+                mChars[i] = (char) byteAt(start + i);
+            }
+            text = new String(mChars, 0, len);
+        } else {
+            text = decode(start, len);
+        }
+
+        return hasRefs ? expandReferences(text) : text;
+    }
+
+    /**
+     * Декодирование UTF-8 куска файла.
+     * @param start начало куска
+     * @param len длина куска
+     * @return строка
+     * @throws UnsupportedContent некорректный UTF-8 или недопустимые в xml символы
+     */
+    private String decode(int start, int len) throws UnsupportedContent {
+        ByteBuffer slice = mBuf.duplicate();
+        slice.position(start);
+        slice.limit(start + len);
+
+        String text;
+        try {
+            text = mDecoder.reset().decode(slice).toString();
+        } catch (CharacterCodingException ccEx) {
+            throw new UnsupportedContent("malformed UTF-8");
+        }
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == 0xFFFE || c == 0xFFFF) throw new UnsupportedContent("invalid xml character");
+        }
+        return text;
+    }
+
+    /**
+     * Раскрытие стандартных и числовых ссылок на символы.
+     * @param text текст со ссылками
+     * @return текст
+     * @throws UnsupportedContent другие ссылки (сущности DTD) или недопустимый символ
+     */
+    private static String expandReferences(String text) throws UnsupportedContent {
+        StringBuilder sb = new StringBuilder(text.length());
+        int i = 0;
+
+        while (i < text.length()) {
+            char c = text.charAt(i);
+
+            if (c != '&') {
+                sb.append(c);
+                i++;
+                continue;
+            }
+
+            int end = text.indexOf(';', i);
+            if (end < 0) throw new UnsupportedContent("unterminated reference");
+
+            String ref = text.substring(i + 1, end);
+
+            switch (ref) {
+                case "amp": sb.append('&'); break;
+                case "lt": sb.append('<'); break;
+                case "gt": sb.append('>'); break;
+                case "quot": sb.append('"'); break;
+                case "apos": sb.append('\''); break;
+                default:
+                    if (!ref.startsWith("#")) throw new UnsupportedContent("entity reference &" + ref + ";");
+
+                    int codePoint = ref.startsWith("#x") ? parseCharRef(ref, 2, 16) : parseCharRef(ref, 1, 10);
+                    if (!isXmlChar(codePoint)) throw new UnsupportedContent("invalid character reference");
+                    sb.appendCodePoint(codePoint);
+            }
+            i = end + 1;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Код символа из ссылки на символ: только ASCII цифры ([0-9]+, либо [0-9a-fA-F]+ после #x) - без знака, пробелов и прочего,
+     * что принял бы Integer.parseInt, но не принимает разбор xml.
+     * @param ref ссылка без '&' и ';'
+     * @param start начало цифр
+     * @param radix 10 или 16
+     * @return код символа
+     * @throws UnsupportedContent не цифры, или код вне диапазона символов
+     */
+    private static int parseCharRef(String ref, int start, int radix) throws UnsupportedContent {
+        if (start >= ref.length()) throw new UnsupportedContent("invalid character reference");
+
+        int codePoint = 0;
+        for (int i = start; i < ref.length(); i++) {
+            char c = ref.charAt(i);
+            int digit = (c >= '0' && c <= '9') ? c - '0'
+                    : (radix == 16 && c >= 'a' && c <= 'f') ? c - 'a' + 10
+                    : (radix == 16 && c >= 'A' && c <= 'F') ? c - 'A' + 10 : -1;
+
+            if (digit < 0) throw new UnsupportedContent("invalid character reference");
+
+            codePoint = codePoint * radix + digit;
+            if (codePoint > Character.MAX_CODE_POINT) throw new UnsupportedContent("invalid character reference");
+        }
+        return codePoint;
+    }
+
+    /**
+     * Допустимый символ xml 1.0.
+     * @param c код символа
+     * @return true, если допустим
+     */
+    private static boolean isXmlChar(int c) {
+        return c == 0x9 || c == 0xA || c == 0xD || (c >= 0x20 && c <= 0xD7FF) || (c >= 0xE000 && c <= 0xFFFD) || (c >= 0x10000 && c <= 0x10FFFF);
+    }
+
+    /**
+     * Чтение имени тега (только ASCII буквы, цифры, '_', '-', '.', ':'); границы имени - в mNameStart, mNameEnd.
+     * @throws UnsupportedContent пустое или не ASCII имя
+     */
+    private void readName() throws UnsupportedContent {
+        mNameStart = mPos;
+
+        while (mPos < mLimit) {
+            byte b = byteAt(mPos);
+            if ((b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9') || b == '_' || b == '-' || b == '.' || b == ':') {
+                mPos++;
+            } else {
+                break;
+            }
+        }
+
+        mNameEnd = mPos;
+        if (mNameEnd == mNameStart) throw new UnsupportedContent("unsupported tag name");
+    }
+
+    private boolean nameEquals(byte[] name) {
+        if (mNameEnd - mNameStart != name.length) return false;
+
+        for (int i = 0; i < name.length; i++) {
+            if (byteAt(mNameStart + i) != name[i]) return false;
+        }
+        return true;
+    }
+
+    private boolean regionEquals(int pos1, int pos2, int len) {
+        for (int i = 0; i < len; i++) {
+            if (byteAt(pos1 + i) != byteAt(pos2 + i)) return false;
+        }
+        return true;
+    }
+
+    private void expect(char c) throws UnsupportedContent {
+        if (mPos >= mLimit || byteAt(mPos) != c) {
+            throw new UnsupportedContent("expected '" + c + "'");
+        }
+        mPos++;
+    }
+
+    private void skipWhitespace() {
+        while (mPos < mLimit) {
+            byte b = byteAt(mPos);
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') break;
+            mPos++;
+        }
+    }
+
+    private boolean startsWith(String s) {
+        if (mPos + s.length() > mLimit) return false;
+
+        for (int i = 0; i < s.length(); i++) {
+            if (byteAt(mPos + i) != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private int indexOf(String s, int from) {
+        for (int i = from; i + s.length() <= mLimit; i++) {
+            int j = 0;
+            while (j < s.length() && byteAt(i + j) == s.charAt(j)) j++;
+            if (j == s.length()) return i;
+        }
+        return -1;
+    }
+
+    private String asciiString(int start, int end) {
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            sb.append((char) (byteAt(i) & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    private byte byteAt(int pos) {
+        return mBuf.get(pos);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Закрытие ридера.
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    @Override
+    public void close() throws HardException {
+        mBuf = null;
+
+        if (mFallback != null) {
+            mFallback.close();
+        }
+    }
+}
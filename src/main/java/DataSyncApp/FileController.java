@@ -3,21 +3,6 @@ package DataSyncApp;
 import java.io.*;
 import java.util.*;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Text;
-import org.w3c.dom.NodeList;
-import org.w3c.dom.Node;
-import org.xml.sax.SAXParseException;
-
 import static DataSyncApp.DataSync.logger;
 
 /**
@@ -26,6 +11,10 @@ import static DataSyncApp.DataSync.logger;
 class FileController {
     private String mFilename; // имя файла
     private File mFile;       // файл, из которого будем брать или в который будем записывать данные
+    private int mParseThreads = 1; // количество потоков разбора файла в мап (см. ChunkedXmlParser)
+    private boolean mFastParser = false; // читать файл быстрым разбором (см. FastXmlDepReader)
+    private String mOverwritePolicy = "ask"; // что делать при выгрузке, если файл уже есть: ask - спросить пользователя, overwrite - перезаписать, exit - выйти
+    private KeyDictionary mKeyDictionary = new KeyDictionary(); // словарь значений ключа для читаемых строк (см. Pair)
 
     /**
      * создание контроллера файла.
@@ -36,6 +25,46 @@ class FileController {
         mFilename = filename;
     }
 
+    /**
+     * создание контроллера файла с настройками разбора.
+     * @param filename имя файла
+     * @param parseThreads количество потоков разбора файла в мап; 1 - разбор в одном потоке
+     * @param fastParser читать файл быстрым разбором ({@link FastXmlDepReader}) вместо StAX
+     */
+    FileController(String filename, int parseThreads, boolean fastParser) {
+        this(filename);
+        logger.debug("parseThreads = " + parseThreads + ", fastParser = " + fastParser);
+        mParseThreads = parseThreads;
+        mFastParser = fastParser;
+    }
+
+    /**
+     * Задание решения о перезаписи существующего файла при выгрузке вместо вопроса пользователю (см. {@link #checkFileOnWrite()}).
+     * @param overwritePolicy ask - спросить пользователя, overwrite - перезаписать, exit - выйти
+     */
+    void setOverwritePolicy(String overwritePolicy) {
+        logger.debug("overwritePolicy = " + overwritePolicy);
+        mOverwritePolicy = overwritePolicy;
+    }
+
+    /**
+     * Задание словаря значений ключа, в котором создаются ключи читаемых строк: строки файла сравниваются только с ключами того же словаря.
+     * @param keyDictionary словарь значений ключа
+     */
+    void setKeyDictionary(KeyDictionary keyDictionary) {
+        mKeyDictionary = keyDictionary;
+    }
+
+    /**
+     * Открытие ридера файла: быстрого или StAX, в зависимости от настройки.
+     * @param checkDuplicates проверять ли уникальность ключа
+     * @return источник строк файла
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private DepSource openReader(boolean checkDuplicates) throws HardException {
+        return mFastParser ? new FastXmlDepReader(mFile, checkDuplicates, mKeyDictionary) : new XmlDepReader(mFile, checkDuplicates, mKeyDictionary);
+    }
+
     /**
      * Проверка файла перед попыткой чтения из него данных. Если будут ошибки, ругнется. Если нет, в mFile будет читаемый файл.
      * @throws HardException выход из приложения из-за ошибки (обработанный)
@@ -86,8 +115,18 @@ class FileController {
      * @throws HardException выход из приложения из-за ошибки (обработанный)
      */
     Map<Pair,Dep> getDataFromFile() throws HardException {
+        return getDataFromFile(null);
+    }
+
+    /**
+     * Открытие файла и получение данных из него в заданный мап (например, {@link DepTable}).
+     * @param target пустой мап для строк файла; null - HashMap
+     * @return мап со строками файла
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    Map<Pair,Dep> getDataFromFile(Map<Pair,Dep> target) throws HardException {
         logger.info("Getting data from file");
-        Map<Pair,Dep> oMap = new HashMap<>(); // выходной мап
+        Map<Pair,Dep> oMap = (target != null) ? target : new HashMap<>(); // выходной мап
 
         try {
             logger.trace("mFile.length() = " + mFile.length());
@@ -97,45 +136,22 @@ class FileController {
                 return oMap;
             }
 
-            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-            Document doc = dBuilder.parse(mFile);
-            doc.getDocumentElement().normalize();
-
-            NodeList nList = doc.getElementsByTagName("Row");
+            // большой файл разбираем по кускам в несколько потоков; если не вышло - обычным путем, он и сообщит об ошибке
+            if (mParseThreads > 1) {
+                Map<Pair,Dep> chunkedMap = new ChunkedXmlParser(mFile, mParseThreads, mKeyDictionary).parse(target);
 
-            for (int i = 0; i < nList.getLength(); i++) {
-                Node nNode = nList.item(i);
-
-                if (nNode.getNodeType() == Node.ELEMENT_NODE) {
-                    Element eElement = (Element) nNode;
-
-                    // проверяем, чтобы оба обязательных поля ключа были, при чем не пустые
-                    if (eElement.getElementsByTagName("DEPCODE").getLength() == 0) {
-                        logger.error("Error: Mandatory field DepCode is not found in node " + i + "!");
-                        throw new HardException();
-                    }
-
-                    if (eElement.getElementsByTagName("DEPJOB").getLength() == 0) {
-                        logger.error("Error: Mandatory field DepJob is not found in node " + i + "!");
-                        throw new HardException();
-                    }
-
-                    if (eElement.getElementsByTagName("DEPCODE").item(0).getTextContent().equals("")) {
-                        logger.error("Error: Mandatory field DepCode is empty in node " + i + "!");
-                        throw new HardException();
-                    }
-
-                    if (eElement.getElementsByTagName("DEPJOB").item(0).getTextContent().equals("")) {
-                        logger.error("Error: Mandatory field DepJob is empty in node " + i + "!");
-                        throw new HardException();
-                    }
+                if (chunkedMap != null) {
+                    return chunkedMap;
+                }
+            }
 
-                    // преобразуем сущности из xml в элементы Dep с ключом Pair
-                    Pair newPair = new Pair(eElement.getElementsByTagName("DEPCODE").item(0).getTextContent(),
-                                            eElement.getElementsByTagName("DEPJOB").item(0).getTextContent());
+            // читаем файл потоково, по одной строке (Row); уникальность ключа проверяем здесь же, по мапу
+            try (DepSource reader = openReader(false)) {
+                Dep newDep; // элемент выходного мапа
 
-                    logger.trace("newPair = " + newPair.toString());
+                while ((newDep = reader.next()) != null) {
+                    WorkerThreads.checkInterrupted();
+                    Pair newPair = newDep.getPair();
                     logger.trace("oMap.containsKey(newPair) = " + oMap.containsKey(newPair));
 
                     // проверка на уникальность ключа
@@ -144,29 +160,16 @@ class FileController {
                         throw new HardException();
                     }
 
-                    Dep newDep; // элемент выходного мапа
-
-                    if (eElement.getElementsByTagName("DESCRIPTION").getLength() == 1) {
-                        // если описание задано (даже пустой строкой)
-                        newDep = new Dep(newPair, eElement.getElementsByTagName("DESCRIPTION").item(0).getTextContent());
-                    }
-                    else {
-                        // если записи нет, значит там был нулл - пишем нулл
-                        newDep = new Dep(newPair, null);
-                    }
-                    logger.trace("newDep = " + newDep.toString());
-
                     oMap.put(newPair, newDep);
                 }
             }
-        } catch (IOException ioEx) {
-            logger.error("Error: failed to read data from file");
-            throw new HardException(ioEx);
-        } catch (SAXParseException saxEx) {
-            logger.error("Error: inappropriate file content");
-            throw new HardException(saxEx);
         } catch (Exception ex) {
-            logger.error("Error: failed to get data from file");
+            // отмененное чтение (поток прерван) - не ошибка, о настоящей ошибке сообщит тот, кто отменил
+            if (Thread.currentThread().isInterrupted()) {
+                logger.debug("Reading file cancelled");
+            } else {
+                logger.error("Error: failed to get data from file");
+            }
             throw new HardException(ex);
         }
 
@@ -174,7 +177,53 @@ class FileController {
     }
 
     /**
-     * Проверка файла перед попыткой записи в него данных. Если будут ошибки, ругнется. При перезаписи спросит решения пользователя.
+     * Открытие файла и получение данных из него, упорядоченных по ключу DepCode-DepJob, с ограничением по памяти.
+     * Если данные не помещаются в бюджет, они сбрасываются на диск упорядоченными прогонами и потом сливаются ({@link ExternalSorter}).
+     * Уникальность ключа здесь не проверяется - повтор ключа ловит {@link SortMergeDiff} по порядку ключей.
+     * Перед вызовом файл должен быть проверен через {@link #checkFileOnRead()}.
+     * @param memoryBudget бюджет памяти, байт
+     * @param spillDir папка для сброса данных на диск
+     * @return упорядоченный источник строк файла; закрывается вызывающим
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    DepSource getSortedDataFromFile(long memoryBudget, File spillDir) throws HardException {
+        logger.info("Getting data from file");
+        ExternalSorter sorter = new ExternalSorter("file", memoryBudget, spillDir, mKeyDictionary);
+
+        try (DepSource reader = openReader(false)) {
+            Dep newDep;
+
+            while ((newDep = reader.next()) != null) {
+                sorter.visit(newDep);
+            }
+        } catch (Exception ex) {
+            sorter.discard();
+            logger.error("Error: failed to get data from file");
+            throw new HardException(ex);
+        }
+
+        return sorter.finish();
+    }
+
+    /**
+     * Открытие файла на потоковое чтение: строки (Row) выдаются по одной, весь файл в память не загружается.
+     * Проверки данных те же, что и в {@link #getDataFromFile()}; уникальность ключа DepCode-DepJob проверяется по набору встреченных ключей,
+     * либо не проверяется, если ее проверяет вызывающий (например, {@link SortMergeDiff} - по порядку ключей).
+     * Перед вызовом файл должен быть проверен через {@link #checkFileOnRead()}.
+     * @param checkDuplicates проверять ли уникальность ключа
+     * @return источник строк файла; закрывается вызывающим
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    DepSource getDataSourceFromFile(boolean checkDuplicates) throws HardException {
+        logger.info("Opening file for streaming read");
+        logger.trace("mFile.length() = " + mFile.length());
+
+        return openReader(checkDuplicates);
+    }
+
+    /**
+     * Проверка файла перед попыткой записи в него данных. Если будут ошибки, ругнется. При перезаписи спросит решения пользователя,
+     * если оно не задано настройкой (см. {@link #setOverwritePolicy(String)}).
      * Если все ок, в mFile будет записываемый файл.
      * @throws SoftException контролируемый выход из приложения
      * @throws HardException выход из приложения из-за ошибки (обработанный)
@@ -209,6 +258,16 @@ class FileController {
                 throw new HardException();
             }
 
+            // решение задано настройкой - не спрашиваем
+            if (mOverwritePolicy.equals("overwrite")) {
+                logger.info("File already exists and will be overwrited (onExistingFile = overwrite)");
+                return;
+            }
+            if (mOverwritePolicy.equals("exit")) {
+                logger.info("File already exists; exiting application (onExistingFile = exit)");
+                throw new SoftException();
+            }
+
             logger.info("File already exists. Do you want to overwrite it? (y - overwrite, n - exit application)");
 
             String inputString;
@@ -236,74 +295,78 @@ class FileController {
     }
 
     /**
-     * Запись данных из мапа (Map({@link Pair}, {@link Dep})) в файл. При загрузке в файл, если файл уже существует, спросит у пользователя, желает ли он его перезаписать.
-     * @param iMap мап-коллекция (Map({@link Pair}, {@link Dep})), в которой ключом служит экземпляр Pair (пара DepCode и DepJob), а значением - экземпляр Dep (вся строка таблицы, кроме id)
+     * Открытие файла на потоковую запись: строки пишутся в файл по мере поступления, без сборки всего содержимого в памяти.
+     * Перед вызовом файл должен быть проверен через {@link #checkFileOnWrite()}.
+     * Записанный файл заменяет существующий только после {@link XmlDepWriter#commit()}.
+     * @return писатель строк в файл; закрывается вызывающим
      * @throws HardException выход из приложения из-за ошибки (обработанный)
      */
-    void writeDataToFile(Map<Pair,Dep> iMap) throws HardException {
-        logger.info("Writing data to file");
-        try {
-            String mDataToWrite = ""; // итоговая строка для записи в файл
-            logger.trace("iMap = " + iMap.toString());
-            logger.trace("iMap.size() = " + iMap.size());
-
-            // если входной мап не пустой
-            if (iMap.size() > 0) {
-                DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-                DocumentBuilder builder = factory.newDocumentBuilder();
-                Document doc = builder.newDocument();
-                Element eResults = doc.createElement("Results");
-                doc.appendChild(eResults);
-
-                // бежим по мапу, создаем поля сущностям xml
-                for (Map.Entry<Pair, Dep> entry : iMap.entrySet()) {
-                    Pair newPair = entry.getKey();
-                    Dep newDep = entry.getValue();
-                    logger.trace("newDep = " + newDep.toString());
-
-                    Element eRow = doc.createElement("Row");
-                    eResults.appendChild(eRow);
-
-                    Element nNode = doc.createElement("DEPCODE");
-                    Text tText = doc.createTextNode(newPair.getCode());
-                    nNode.appendChild(tText);
-                    eRow.appendChild(nNode);
-
-                    nNode = doc.createElement("DEPJOB");
-                    tText = doc.createTextNode(newPair.getJob());
-                    nNode.appendChild(tText);
-                    eRow.appendChild(nNode);
-
-                    // если значение null - не создаем для него запись. иначе, если задано или пустая строка - создаем. при загрузке обратно работает по такой логике.
-                    if (newDep.getDescription() != null) {
-                        nNode = doc.createElement("DESCRIPTION");
-                        tText = doc.createTextNode(newDep.getDescription());
-                        nNode.appendChild(tText);
-                        eRow.appendChild(nNode);
+    XmlDepWriter openFileWriter() throws HardException {
+        logger.debug("Opening file for streaming write");
+        return new XmlDepWriter(mFile);
+    }
+
+    /**
+     * Наложение изменений на ранее выгруженный файл (инкрементальная выгрузка): файл переписывается потоково, строки из изменений
+     * заменяют строки файла с тем же ключом, удаленные (null) - выбрасываются, новые дописываются в конец. Порядок остальных строк сохраняется.
+     * Файл заменяется только после успешной записи (см. {@link XmlDepWriter#commit()}).
+     * @param changes изменения: ключ - строка (Dep), удаленная строка - null; обработанные изменения из мапа удаляются
+     * @return количество строк в файле после изменений
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    long patchFile(Map<Pair,Dep> changes) throws HardException {
+        logger.info("Applying " + changes.size() + " changes to file");
+        mFile = new File(mFilename);
+
+        try (XmlDepWriter writer = openFileWriter()) {
+            // в файле без строк только перевод строки (см. XmlDepWriter), читать нечего
+            if (mFile.length() > System.lineSeparator().length()) {
+                try (DepSource reader = openReader(false)) {
+                    for (Dep dep = reader.next(); dep != null; dep = reader.next()) {
+                        if (!changes.containsKey(dep.getPair())) {
+                            writer.visit(dep);
+                            continue;
+                        }
+
+                        Dep changed = changes.remove(dep.getPair());
+                        if (changed != null) {
+                            writer.visit(changed);
+                        }
                     }
                 }
+            }
 
-                DOMSource domSource = new DOMSource(doc);
-                TransformerFactory tf = TransformerFactory.newInstance();
-                Transformer transformer = tf.newTransformer();
-                transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-                transformer.setOutputProperty(OutputKeys.METHOD, "xml");
-                transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-                StringWriter sw = new StringWriter();
-                StreamResult sr = new StreamResult(sw);
-                transformer.transform(domSource, sr);
-
-                mDataToWrite = sw.toString();
+            // оставшиеся изменения - новые строки (либо удаленные, которых в файле и не было)
+            for (Dep dep : changes.values()) {
+                if (dep != null) {
+                    writer.visit(dep);
+                }
             }
+            changes.clear();
+
+            writer.commit();
+            return writer.getRowCount();
+        } catch (Exception ex) {
+            logger.error("Error: failed to write data to file");
+            throw new HardException(ex);
+        }
+    }
 
-            logger.trace("mDataToWrite = " + mDataToWrite);
+    /**
+     * Запись данных из мапа (Map({@link Pair}, {@link Dep})) в файл. При загрузке в файл, если файл уже существует, спросит у пользователя, желает ли он его перезаписать.
+     * @param iMap мап-коллекция (Map({@link Pair}, {@link Dep})), в которой ключом служит экземпляр Pair (пара DepCode и DepJob), а значением - экземпляр Dep (вся строка таблицы, кроме id)
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    void writeDataToFile(Map<Pair,Dep> iMap) throws HardException {
+        logger.info("Writing data to file");
+        logger.trace("iMap.size() = " + iMap.size());
 
-            try (PrintWriter pw = new PrintWriter(mFilename, "UTF-8")) {
-                pw.println(mDataToWrite);
-            } catch (IOException ioEx) {
-                logger.error("Error: failed to save data to file");
-                throw new HardException(ioEx);
+        // пишем строки сразу в файл, по одной
+        try (XmlDepWriter writer = openFileWriter()) {
+            for (Dep newDep : iMap.values()) {
+                writer.visit(newDep);
             }
+            writer.commit();
         } catch (Exception ex) {
             logger.error("Error: failed to write data to file");
             throw new HardException(ex);
@@ -0,0 +1,107 @@
+package DataSyncApp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+import static DataSyncApp.DataSync.logger;
+
+/**
+ * Ожидание изменения файла через {@link WatchService}. Следить можно только за папкой, поэтому отслеживается папка файла,
+ * а события по другим файлам пропускаются. Файл обычно пишется не одной операцией (или через временный файл с переименованием),
+ * поэтому изменение считается законченным, когда по файлу нет новых событий в течение паузы.
+ */
+class FileWatcher implements AutoCloseable {
+    private File mFile;                 // отслеживаемый файл
+    private Path mFileName;             // имя файла (события приходят с именем относительно папки)
+    private long mQuietMs;              // пауза без событий, после которой изменение считается законченным, мс
+    private WatchService mWatchService;
+
+    /**
+     * Начало слежения за файлом.
+     * @param file отслеживаемый файл
+     * @param quietMs пауза без событий, после которой изменение считается законченным, мс
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    FileWatcher(File file, long quietMs) throws HardException {
+        logger.debug("Creating new FileWatcher; file = " + file + ", quietMs = " + quietMs);
+        mFile = file.getAbsoluteFile();
+        mFileName = mFile.toPath().getFileName();
+        mQuietMs = quietMs;
+
+        try {
+            Path dir = mFile.toPath().getParent();
+            mWatchService = dir.getFileSystem().newWatchService();
+            dir.register(mWatchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException ioEx) {
+            logger.error("Error: unable to watch file " + mFile);
+            throw new HardException(ioEx);
+        }
+    }
+
+    /**
+     * Ожидание законченного изменения файла. Если файл после изменения пропал (удален), ожидание продолжается.
+     * @param timeoutMs сколько ждать, мс
+     * @return true, если файл изменился; false - время вышло
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     * @throws InterruptedException ожидание прервано
+     */
+    boolean awaitChange(long timeoutMs) throws HardException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+
+        for (long left = timeoutMs; left > 0; left = deadline - System.currentTimeMillis()) {
+            if (!poll(left)) continue;
+
+            // дожидаемся, пока файл допишут: события идут, пока не наступит пауза
+            while (poll(mQuietMs)) {
+                logger.trace("File is still changing");
+            }
+
+            if (mFile.isFile()) {
+                logger.debug("File changed: " + mFile);
+                return true;
+            }
+            logger.debug("File changed but does not exist: " + mFile);
+        }
+        return false;
+    }
+
+    /**
+     * Ожидание одного пакета событий папки.
+     * @param timeoutMs сколько ждать, мс
+     * @return true, если среди событий есть события по файлу
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     * @throws InterruptedException ожидание прервано
+     */
+    private boolean poll(long timeoutMs) throws HardException, InterruptedException {
+        WatchKey key = mWatchService.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        if (key == null) return false;
+
+        boolean fileChanged = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            // OVERFLOW - события потеряны, файл мог измениться
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || mFileName.equals(event.context())) {
+                fileChanged = true;
+            }
+        }
+
+        if (!key.reset()) {
+            logger.error("Error: folder of file " + mFile + " is no longer available");
+            throw new HardException();
+        }
+        return fileChanged;
+    }
+
+    /**
+     * Окончание слежения.
+     */
+    @Override
+    public void close() {
+        try {
+            mWatchService.close();
+        } catch (IOException ioEx) {
+            logger.debug(ioEx);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package DataSyncApp;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Словарь строк: каждой различной строке выдается номер (по порядку, с 0), сама строка хранится один раз.
+ * Используется для полей ключа ({@link Pair}): значений у них немного, а строк - миллионы, и без словаря
+ * каждая строка файла и БД держала бы свои копии одних и тех же строк.
+ * Строки из словаря не удаляются, поэтому словарь живет, пока живут мапы с его ключами: {@link Commander} заводит новый
+ * на каждую синхронизацию (в режиме слежения - на каждую загрузку снимка БД).
+ * Потокобезопасен: ключи создаются одновременно из нескольких потоков (разбор файла по кускам, чтение БД по частям).
+ * Номер уже известной строки выдается без блокировки; блокировка берется только при добавлении новой.
+ */
+class KeyDictionary {
+    private ConcurrentHashMap<String,Integer> mIds = new ConcurrentHashMap<>(); // строка -> номер
+    private volatile String[] mValues = new String[256];                        // номер -> строка
+    private int mSize = 0;
+
+    /**
+     * Номер строки; новая строка добавляется в словарь.
+     * @param value строка
+     * @return номер строки, либо -1 для null
+     */
+    int idOf(String value) {
+        if (value == null) return -1;
+
+        Integer id = mIds.get(value);
+        if (id != null) return id;
+
+        synchronized (this) {
+            id = mIds.get(value);
+            if (id != null) return id;
+
+            String[] values = mValues;
+            if (mSize == values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[mSize] = value;
+            // строку кладем в массив до публикации номера: кто получил номер, тот найдет и строку
+            mValues = values;
+            mIds.put(value, mSize);
+            return mSize++;
+        }
+    }
+
+    /**
+     * Строка по номеру.
+     * @param id номер строки, либо -1
+     * @return строка, либо null для -1
+     */
+    String valueOf(int id) {
+        return (id < 0) ? null : mValues[id];
+    }
+
+    /**
+     * Количество строк в словаре.
+     * @return количество строк
+     */
+    synchronized int size() {
+        return mSize;
+    }
+}
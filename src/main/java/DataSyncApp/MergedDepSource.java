@@ -0,0 +1,85 @@
+package DataSyncApp;
+
+import java.util.*;
+
+import static DataSyncApp.DataSync.logger;
+
+/**
+ * Слияние нескольких упорядоченных по ключу (DepCode, DepJob) источников строк в один упорядоченный: k-путевое слияние
+ * через очередь с приоритетом по текущей строке каждого источника. В памяти держится по одной строке на источник.
+ * Закрытие закрывает все источники.
+ */
+class MergedDepSource implements DepSource {
+    private List<DepSource> mSources;
+    private PriorityQueue<Head> mQueue;
+
+    /**
+     * Текущая (наименьшая непрочитанная) строка источника.
+     */
+    private static class Head {
+        DepSource source;
+        Dep dep;
+
+        Head(DepSource source, Dep dep) {
+            this.source = source;
+            this.dep = dep;
+        }
+    }
+
+    /**
+     * Создание слияния; из каждого источника сразу читается первая строка.
+     * @param sources упорядоченные по ключу источники; при ошибке все закрываются здесь же
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    MergedDepSource(List<DepSource> sources) throws HardException {
+        mSources = sources;
+        mQueue = new PriorityQueue<>(Math.max(1, sources.size()), (h1, h2) -> Dep.KEY_ORDER.compare(h1.dep, h2.dep));
+
+        try {
+            for (DepSource source : sources) {
+                Dep dep = source.next();
+
+                if (dep != null) {
+                    mQueue.add(new Head(source, dep));
+                }
+            }
+        } catch (HardException hEx) {
+            close();
+            throw hEx;
+        }
+    }
+
+    @Override
+    public Dep next() throws HardException {
+        Head head = mQueue.poll();
+
+        if (head == null) return null;
+
+        Dep dep = head.dep;
+        head.dep = head.source.next();
+
+        if (head.dep != null) {
+            mQueue.add(head);
+        }
+        return dep;
+    }
+
+    @Override
+    public void close() throws HardException {
+        HardException error = null;
+
+        // закрываем все источники, даже если какой-то из них закрылся с ошибкой
+        for (DepSource source : mSources) {
+            try {
+                source.close();
+            } catch (HardException hEx) {
+                logger.debug(hEx);
+                error = hEx;
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+}
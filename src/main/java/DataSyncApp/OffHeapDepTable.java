@@ -0,0 +1,615 @@
+package DataSyncApp;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+
+import static DataSyncApp.DataSync.logger;
+
+/**
+ * Мап строк (Map({@link Pair}, {@link Dep})) вне кучи - для очень больших таблиц. Устроен как {@link DepTable}
+ * (открытая адресация по отпечатку ключа), но и индекс, и данные лежат в отображенных в память временных файлах:
+ * индекс - ячейки по 16 байт (отпечаток ключа и смещение записи), данные - записи (длина и Description, либо только
+ * отпечаток Description у строк без него), дописываемые подряд в сегменты по 64 Мб. Отпечатки полных строк не хранятся:
+ * строки отдаются без них, и при сравнении с другой полной строкой Description сравнивается напрямую, без MD5.
+ * В куче остаются только сами объекты мапа, поэтому паузы сборщика мусора не зависят от размера таблицы,
+ * а объем данных ограничен диском, а не -Xmx (страницы файлов подгружает и выгружает ОС).
+ * Pair и Dep создаются заново при каждом обращении; все ключи - из одного словаря значений ключа, заданного при создании (см. {@link DepTable}).
+ * При замене строки новая запись пишется на место старой, если помещается; иначе (и при удалении) старая запись становится мусором,
+ * и когда мусора набирается больше, чем живых данных, живые записи переписываются подряд в новый файл данных ({@link #compact()}).
+ * Не потокобезопасен; одновременное чтение без изменений безопасно. Удаление через итератор не поддерживается.
+ * После использования мап надо закрыть ({@link #close()}): временные файлы удаляются.
+ */
+class OffHeapDepTable extends AbstractMap<Pair,Dep> implements AutoCloseable {
+    private static final int SLOT = 16;                  // размер ячейки индекса: отпечаток ключа и смещение записи
+    private static final int MIN_CAPACITY = 1 << 16;
+    private static final int MAX_CAPACITY = 1 << 26;     // индекс - один отображенный буфер (до 1 Гб, около 50 млн строк)
+    private static final int SEGMENT = 1 << 26;          // размер сегмента данных; запись не пересекает границу сегмента
+    private static final int NULL_DESCRIPTION = -1;      // длина записи: Description отсутствует
+    private static final int DIGEST_ONLY = -2;           // длина записи: вместо Description - его отпечаток (8 байт)
+    private static final long MIN_COMPACT = 1 << 20;     // мусор меньшего объема не убирается
+
+    private KeyDictionary mKeyDictionary; // словарь значений ключа, по которому получены отпечатки
+    private File mDir;               // папка временных файлов
+    private File mIndexFile;
+    private MappedByteBuffer mIndex; // ячейки индекса; отпечаток хранится как key ^ Long.MIN_VALUE, поэтому нулевая (новая) ячейка - пустая
+    private int mCapacity;
+    private int mMask;
+    private int mShift;
+    private int mThreshold;
+    private int mSize = 0;
+
+    private File mDataFile;
+    private RandomAccessFile mData;
+    private List<MappedByteBuffer> mSegments = new ArrayList<>();
+    private long mDataEnd = 0;       // конец записанных данных
+    private long mDeadBytes = 0;     // мусор в данных: замененные и удаленные записи, хвосты записей, пропуски на границах сегментов
+
+    /**
+     * Создание мапа: создаются временные файлы индекса и данных.
+     * @param dir папка для временных файлов
+     * @param keyDictionary словарь значений ключа строк мапа
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    OffHeapDepTable(File dir, KeyDictionary keyDictionary) throws HardException {
+        logger.debug("Creating new OffHeapDepTable; dir = " + dir);
+        mKeyDictionary = keyDictionary;
+        mDir = dir;
+
+        try {
+            openData();
+            mapIndex(MIN_CAPACITY);
+        } catch (IOException ioEx) {
+            close();
+            logger.error("Error: failed to create off-heap store in " + dir);
+            throw new HardException(ioEx);
+        }
+    }
+
+    /**
+     * Создание нового (пустого) файла данных.
+     * @throws IOException ошибка создания файла
+     */
+    private void openData() throws IOException {
+        mDataFile = File.createTempFile("datasync-db-data", ".tmp", mDir);
+        mDataFile.deleteOnExit();
+        mData = new RandomAccessFile(mDataFile, "rw");
+        mSegments = new ArrayList<>();
+        mDataEnd = 0;
+        mDeadBytes = 0;
+    }
+
+    /**
+     * Создание нового (пустого) файла индекса и отображение его в память.
+     * @param capacity количество ячеек
+     * @throws IOException ошибка создания файла
+     */
+    private void mapIndex(int capacity) throws IOException {
+        File file = File.createTempFile("datasync-db-index", ".tmp", mDir);
+        file.deleteOnExit();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength((long) capacity * SLOT);
+            mIndex = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * SLOT);
+        }
+
+        // прежний файл индекса больше не нужен; отображение освободит сборщик мусора
+        if (mIndexFile != null && !mIndexFile.delete()) {
+            logger.debug("Unable to delete old index file " + mIndexFile + " now; it will be deleted on exit");
+        }
+
+        mIndexFile = file;
+        mCapacity = capacity;
+        mMask = capacity - 1;
+        mShift = 64 - Integer.numberOfTrailingZeros(capacity);
+        mThreshold = capacity / 4 * 3;
+    }
+
+    private int slotOf(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> mShift);
+    }
+
+    private long keyAt(int i) {
+        return mIndex.getLong(i * SLOT) ^ Long.MIN_VALUE;
+    }
+
+    private boolean isEmpty(int i) {
+        return mIndex.getLong(i * SLOT) == 0;
+    }
+
+    private long offsetAt(int i) {
+        return mIndex.getLong(i * SLOT + 8);
+    }
+
+    private void setSlot(int i, long key, long offset) {
+        mIndex.putLong(i * SLOT, key ^ Long.MIN_VALUE);
+        mIndex.putLong(i * SLOT + 8, offset);
+    }
+
+    private void clearSlot(int i) {
+        mIndex.putLong(i * SLOT, 0);
+        mIndex.putLong(i * SLOT + 8, 0);
+    }
+
+    /**
+     * Поиск ячейки ключа.
+     * @param key отпечаток ключа
+     * @return номер ячейки, либо -1, если ключа нет
+     */
+    private int find(long key) {
+        for (int i = slotOf(key); !isEmpty(i); i = (i + 1) & mMask) {
+            if (keyAt(i) == key) return i;
+        }
+        return -1;
+    }
+
+    private static byte[] bytesOf(Dep dep) {
+        return (dep.isDigestOnly() || dep.getDescription() == null) ? null : dep.getDescription().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int lengthOf(Dep dep, byte[] bytes) {
+        return 4 + (dep.isDigestOnly() ? 8 : (bytes == null) ? 0 : bytes.length);
+    }
+
+    /**
+     * Размер записи данных.
+     * @param offset смещение записи
+     * @return размер вместе с длиной
+     */
+    private int recordLength(long offset) {
+        return recordLength(mSegments, offset);
+    }
+
+    private static int recordLength(List<MappedByteBuffer> segments, long offset) {
+        int length = segments.get((int) (offset / SEGMENT)).getInt((int) (offset % SEGMENT));
+        return 4 + ((length == DIGEST_ONLY) ? 8 : (length == NULL_DESCRIPTION) ? 0 : length);
+    }
+
+    /**
+     * Выделение места под запись в конце данных.
+     * @param length размер записи
+     * @return смещение записи
+     */
+    private long allocate(int length) {
+        if (length > SEGMENT) {
+            throw new IllegalArgumentException("Description is too long for off-heap store: " + length + " bytes");
+        }
+
+        // запись не должна пересекать границу сегмента
+        if (mDataEnd % SEGMENT + length > SEGMENT) {
+            long next = (mDataEnd / SEGMENT + 1) * SEGMENT;
+            mDeadBytes += next - mDataEnd;
+            mDataEnd = next;
+        }
+
+        long offset = mDataEnd;
+        segment(offset);
+        mDataEnd += length;
+        return offset;
+    }
+
+    /**
+     * Запись Description (или его отпечатка) по смещению; место должно быть выделено.
+     * @param offset смещение записи
+     * @param dep строка
+     * @param bytes Description в UTF-8, либо null
+     */
+    private void write(long offset, Dep dep, byte[] bytes) {
+        ByteBuffer segment = segment(offset);
+        int pos = (int) (offset % SEGMENT);
+
+        if (dep.isDigestOnly()) {
+            segment.putInt(pos, DIGEST_ONLY);
+            segment.putLong(pos + 4, dep.getDigest());
+        } else if (bytes == null) {
+            segment.putInt(pos, NULL_DESCRIPTION);
+        } else {
+            segment.putInt(pos, bytes.length);
+            ByteBuffer target = segment.duplicate();
+            target.position(pos + 4);
+            target.put(bytes);
+        }
+    }
+
+    /**
+     * Запись Description (или его отпечатка) в конец данных.
+     * @param dep строка
+     * @return смещение записи
+     */
+    private long append(Dep dep) {
+        byte[] bytes = bytesOf(dep);
+        long offset = allocate(lengthOf(dep, bytes));
+        write(offset, dep, bytes);
+        return offset;
+    }
+
+    /**
+     * Замена записи строки: на место старой, если новая помещается, иначе - в конец данных, а старая становится мусором.
+     * @param i ячейка строки
+     * @param dep новая строка
+     */
+    private void replace(int i, Dep dep) {
+        long offset = offsetAt(i);
+        int oldLength = recordLength(offset);
+        byte[] bytes = bytesOf(dep);
+        int length = lengthOf(dep, bytes);
+
+        if (length <= oldLength) {
+            write(offset, dep, bytes);
+            mDeadBytes += oldLength - length;
+        } else {
+            mDeadBytes += oldLength;
+            setSlot(i, keyAt(i), append(dep));
+        }
+    }
+
+    /**
+     * Уборка мусора, если его больше, чем живых данных.
+     */
+    private void compactIfWasteful() {
+        if (mDeadBytes >= MIN_COMPACT && mDeadBytes > mDataEnd - mDeadBytes) {
+            compact();
+        }
+    }
+
+    /**
+     * Уборка мусора: живые записи переписываются подряд в новый файл данных, старый удаляется.
+     */
+    private void compact() {
+        long start = System.currentTimeMillis();
+        long oldEnd = mDataEnd;
+        File oldFile = mDataFile;
+        RandomAccessFile oldData = mData;
+        List<MappedByteBuffer> oldSegments = mSegments;
+
+        try {
+            openData();
+        } catch (IOException ioEx) {
+            throw new UncheckedIOException(ioEx);
+        }
+
+        for (int i = 0; i < mCapacity; i++) {
+            if (isEmpty(i)) continue;
+
+            long offset = offsetAt(i);
+            ByteBuffer source = oldSegments.get((int) (offset / SEGMENT)).duplicate();
+            int pos = (int) (offset % SEGMENT);
+            int length = recordLength(oldSegments, offset);
+            source.limit(pos + length);
+            source.position(pos);
+
+            long newOffset = allocate(length);
+            ByteBuffer target = segment(newOffset).duplicate();
+            target.position((int) (newOffset % SEGMENT));
+            target.put(source);
+            mIndex.putLong(i * SLOT + 8, newOffset);
+        }
+
+        // прежний файл данных больше не нужен; отображения освободит сборщик мусора
+        try {
+            oldData.close();
+        } catch (IOException ioEx) {
+            logger.debug(ioEx);
+        }
+        if (!oldFile.delete()) {
+            logger.debug("Unable to delete old data file " + oldFile + " now; it will be deleted on exit");
+        }
+
+        logger.debug("Off-heap data compacted from " + oldEnd + " to " + mDataEnd + " bytes; rows = " + mSize
+                + ", time = " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Сегмент данных, в который попадает смещение; недостающие сегменты отображаются.
+     * @param offset смещение
+     * @return сегмент
+     */
+    private ByteBuffer segment(long offset) {
+        int index = (int) (offset / SEGMENT);
+
+        try {
+            while (mSegments.size() <= index) {
+                long start = (long) mSegments.size() * SEGMENT;
+                mData.setLength(start + SEGMENT);
+                mSegments.add(mData.getChannel().map(FileChannel.MapMode.READ_WRITE, start, SEGMENT));
+            }
+        } catch (IOException ioEx) {
+            throw new UncheckedIOException(ioEx);
+        }
+        return mSegments.get(index);
+    }
+
+    private Dep depAt(int i) {
+        Pair pair = Pair.fromFingerprint(mKeyDictionary, keyAt(i));
+        long offset = offsetAt(i);
+        ByteBuffer segment = mSegments.get((int) (offset / SEGMENT));
+        int pos = (int) (offset % SEGMENT);
+        int length = segment.getInt(pos);
+
+        if (length == DIGEST_ONLY) return new Dep(pair, segment.getLong(pos + 4));
+
+        if (length == NULL_DESCRIPTION) return new Dep(pair, (String) null);
+
+        byte[] bytes = new byte[length];
+        ByteBuffer source = segment.duplicate();
+        source.position(pos + 4);
+        source.get(bytes);
+        return new Dep(pair, new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Ключ ли это из словаря мапа: отпечатки ключей из другого словаря с отпечатками мапа несравнимы.
+     * @param key ключ
+     * @return true, если ключ - Pair словаря мапа
+     */
+    private boolean isOwnKey(Object key) {
+        return (key instanceof Pair) && ((Pair) key).getDictionary() == mKeyDictionary;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return isOwnKey(key) && find(((Pair) key).getFingerprint()) >= 0;
+    }
+
+    @Override
+    public Dep get(Object key) {
+        if (!isOwnKey(key)) return null;
+
+        int i = find(((Pair) key).getFingerprint());
+        return (i < 0) ? null : depAt(i);
+    }
+
+    @Override
+    public Dep put(Pair key, Dep value) {
+        if (!key.equals(value.getPair())) {
+            throw new IllegalArgumentException("Key " + key + " does not match row " + value);
+        }
+        if (key.getDictionary() != mKeyDictionary) {
+            throw new IllegalArgumentException("Key " + key + " belongs to another key dictionary");
+        }
+
+        long k = key.getFingerprint();
+        int i = slotOf(k);
+
+        for (; !isEmpty(i); i = (i + 1) & mMask) {
+            if (keyAt(i) == k) {
+                Dep previous = depAt(i);
+                replace(i, value);
+                compactIfWasteful();
+                return previous;
+            }
+        }
+
+        setSlot(i, k, append(value));
+        if (++mSize > mThreshold) {
+            grow();
+        }
+        return null;
+    }
+
+    @Override
+    public Dep remove(Object key) {
+        if (!isOwnKey(key)) return null;
+
+        int i = find(((Pair) key).getFingerprint());
+        if (i < 0) return null;
+
+        Dep previous = depAt(i);
+        mDeadBytes += recordLength(offsetAt(i));
+        deleteAt(i);
+        mSize--;
+        compactIfWasteful();
+        return previous;
+    }
+
+    /**
+     * Удаление из ячейки со сдвигом следующих за ней ключей назад (как в {@link DepTable}).
+     * @param hole освобождаемая ячейка
+     */
+    private void deleteAt(int hole) {
+        for (int i = (hole + 1) & mMask; !isEmpty(i); i = (i + 1) & mMask) {
+            int home = slotOf(keyAt(i));
+
+            if (((i - home) & mMask) >= ((i - hole) & mMask)) {
+                setSlot(hole, keyAt(i), offsetAt(i));
+                hole = i;
+            }
+        }
+        clearSlot(hole);
+    }
+
+    private void grow() {
+        if (mCapacity == MAX_CAPACITY) {
+            throw new IllegalStateException("Off-heap store is full: " + mSize + " rows");
+        }
+
+        MappedByteBuffer old = mIndex;
+        int oldCapacity = mCapacity;
+
+        try {
+            mapIndex(mCapacity << 1);
+        } catch (IOException ioEx) {
+            throw new UncheckedIOException(ioEx);
+        }
+
+        for (int j = 0; j < oldCapacity; j++) {
+            long stored = old.getLong(j * SLOT);
+            if (stored == 0) continue;
+
+            long key = stored ^ Long.MIN_VALUE;
+            int i = slotOf(key);
+            while (!isEmpty(i)) {
+                i = (i + 1) & mMask;
+            }
+            setSlot(i, key, old.getLong(j * SLOT + 8));
+        }
+        logger.debug("Off-heap index grown to " + mCapacity + " slots; rows = " + mSize + ", data = " + mDataEnd + " bytes");
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < mCapacity; i++) {
+            clearSlot(i);
+        }
+        mSize = 0;
+        mDataEnd = 0;
+        mDeadBytes = 0;
+    }
+
+    @Override
+    public Collection<Dep> values() {
+        return new AbstractCollection<Dep>() {
+            @Override
+            public Iterator<Dep> iterator() {
+                return new SlotIterator<Dep>() {
+                    @Override
+                    Dep at(int i) {
+                        return depAt(i);
+                    }
+                };
+            }
+
+            @Override
+            public Spliterator<Dep> spliterator() {
+                return new SlotSpliterator(0, mCapacity);
+            }
+
+            @Override
+            public int size() {
+                return mSize;
+            }
+        };
+    }
+
+    @Override
+    public Set<Entry<Pair,Dep>> entrySet() {
+        return new AbstractSet<Entry<Pair,Dep>>() {
+            @Override
+            public Iterator<Entry<Pair,Dep>> iterator() {
+                return new SlotIterator<Entry<Pair,Dep>>() {
+                    @Override
+                    Entry<Pair,Dep> at(int i) {
+                        Dep dep = depAt(i);
+                        return new SimpleImmutableEntry<>(dep.getPair(), dep);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return mSize;
+            }
+        };
+    }
+
+    /**
+     * Перебор строк диапазона ячеек; делится пополам по ячейкам, без перебора строк - для параллельной обработки ({@link ParallelHashDiff}).
+     * Без него сплитератор по умолчанию копировал бы строки пачками в массивы в куче.
+     */
+    private class SlotSpliterator implements Spliterator<Dep> {
+        private int mFrom; // следующая ячейка
+        private int mTo;   // конец диапазона (не включая)
+
+        SlotSpliterator(int from, int to) {
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Dep> action) {
+            while (mFrom < mTo) {
+                int i = mFrom++;
+                if (!isEmpty(i)) {
+                    action.accept(depAt(i));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<Dep> trySplit() {
+            if (mTo - mFrom < 1024) return null;
+
+            int mid = (mFrom + mTo) >>> 1;
+            Spliterator<Dep> prefix = new SlotSpliterator(mFrom, mid);
+            mFrom = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return (long) mSize * (mTo - mFrom) / mCapacity;
+        }
+
+        @Override
+        public int characteristics() {
+            return NONNULL | DISTINCT;
+        }
+    }
+
+    /**
+     * Перебор занятых ячеек по порядку.
+     */
+    private abstract class SlotIterator<T> implements Iterator<T> {
+        private int mNext = advance(0);
+
+        private int advance(int i) {
+            while (i < mCapacity && isEmpty(i)) {
+                i++;
+            }
+            return i;
+        }
+
+        abstract T at(int i);
+
+        @Override
+        public boolean hasNext() {
+            return mNext < mCapacity;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) throw new NoSuchElementException();
+
+            T result = at(mNext);
+            mNext = advance(mNext + 1);
+            return result;
+        }
+    }
+
+    /**
+     * Закрытие мапа: временные файлы закрываются и удаляются. Если ОС не дает удалить отображенный файл (Windows),
+     * он удаляется при выходе из приложения.
+     */
+    @Override
+    public void close() {
+        logger.debug("Closing off-heap store; rows = " + mSize + ", data = " + mDataEnd + " bytes");
+
+        if (mData != null) {
+            try {
+                mData.close();
+            } catch (IOException ioEx) {
+                logger.debug(ioEx);
+            }
+        }
+
+        mSegments.clear();
+        mIndex = null;
+
+        for (File file : new File[]{mDataFile, mIndexFile}) {
+            if (file != null && !file.delete()) {
+                logger.debug("Unable to delete " + file + " now; it will be deleted on exit");
+            }
+        }
+    }
+}
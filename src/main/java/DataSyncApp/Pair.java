@@ -1,7 +1,5 @@
 package DataSyncApp;
 
-import java.util.Arrays;
-
 /**
  * Класс, инкапсулирующий поля составного ключа БД, и участвующий в обмене данными между БД и файлом.
  * Обмен данными между БД и файлом происходит посредством мап-коллекций Map({@link Pair}, {@link Dep}).
@@ -10,18 +8,45 @@ import java.util.Arrays;
  * Два объекта класса считаются одинаковыми, если соответствующие поля объектов совпадают.
  * Не допускается наличие двух и более одинаковых объектов класса в файле и БД.
  * При выгрузке из файла используются соответствующие теги DepCode и DepJob.
+ * Для упорядоченной (sort-merge) обработки ключи сравниваются сначала по DepCode, потом по DepJob.
+ * Различных значений DepCode и DepJob немного (сотни на миллионы строк), поэтому сами строки хранятся один раз, в словаре
+ * ({@link KeyDictionary}), а ключ хранит только их номера. Словарь свой у каждой синхронизации (или снимка БД в режиме слежения),
+ * его заводит {@link Commander}; сравнивать можно только ключи одного словаря. 64-битный отпечаток ключа - это оба номера вместе:
+ * в пределах словаря он однозначен, так что сравнение и хэш ключей - операции над числами, без обращения к строкам.
  */
-class Pair {
-    private String code; // DepCode
-    private String job;  // DepJob
+class Pair implements Comparable<Pair> {
+    private KeyDictionary dictionary; // словарь значений DepCode и DepJob; одно значение в обоих полях получает один номер
+    private int code; // номер DepCode в словаре
+    private int job;  // номер DepJob в словаре
+
+    Pair(KeyDictionary dictionary, String code, String job) {
+        this.dictionary = dictionary;
+        this.code = dictionary.idOf(code);
+        this.job = dictionary.idOf(job);
+    }
 
-    Pair(String code, String job) {
+    private Pair(KeyDictionary dictionary, int code, int job) {
+        this.dictionary = dictionary;
         this.code = code;
         this.job = job;
     }
 
+    /**
+     * Ключ по отпечатку (см. {@link #getFingerprint()}).
+     * @param dictionary словарь, по которому получен отпечаток
+     * @param fingerprint отпечаток
+     * @return ключ
+     */
+    static Pair fromFingerprint(KeyDictionary dictionary, long fingerprint) {
+        return new Pair(dictionary, (int) (fingerprint >>> 32), (int) fingerprint);
+    }
+
+    KeyDictionary getDictionary() {
+        return dictionary;
+    }
+
     String getCode() {
-        return code;
+        return dictionary.valueOf(code);
     }
 
     /*public void setCode(String code) {
@@ -29,16 +54,26 @@ class Pair {
     }*/
 
     String getJob() {
-        return job;
+        return dictionary.valueOf(job);
     }
 
     /*public void setJob(String job) {
         this.job = job;
     }*/
 
+    /**
+     * Отпечаток ключа: номера DepCode и DepJob в словаре; у разных ключей одного словаря отпечатки всегда разные.
+     * @return отпечаток
+     */
+    long getFingerprint() {
+        return ((long) code << 32) | (job & 0xFFFFFFFFL);
+    }
+
     @Override
     public int hashCode() {
-        return Arrays.hashCode(new Object[]{this.code, this.job});
+        // номера идут подряд, поэтому перемешиваем, чтобы хэш был равномерным и в младших, и в старших битах
+        int h = code * 0x9E3779B9 + job;
+        return h ^ (h >>> 16);
     }
 
     @Override
@@ -51,18 +86,53 @@ class Pair {
 
         Pair other = (Pair) obj;
 
-        if (this.code == null) {
-            if (other.code != null) return false;
-        }
-        else {
-            if (!this.code.equals(other.code)) return false;
+        return this.code == other.code && this.job == other.job && this.dictionary == other.dictionary;
+    }
+
+    /**
+     * Сравнение ключей: сначала по DepCode, потом по DepJob. Строки сравниваются по кодам символов Unicode -
+     * в том же порядке их выдает БД при NLS_SORT = BINARY в кодировке AL32UTF8.
+     * @param other другой ключ
+     * @return отрицательное число, ноль или положительное число, если этот ключ меньше, равен или больше другого
+     */
+    @Override
+    public int compareTo(Pair other) {
+        int result = (this.code == other.code) ? 0 : compareCodePoints(getCode(), other.getCode());
+        return (result != 0 || this.job == other.job) ? result : compareCodePoints(getJob(), other.getJob());
+    }
+
+    /**
+     * Сравнение строк по кодам символов Unicode. От String.compareTo отличается только для символов вне BMP (суррогатных пар):
+     * String.compareTo ставит их перед символами U+E000..U+FFFF, а по кодам символов они идут после.
+     * @param s1 первая строка
+     * @param s2 вторая строка
+     * @return результат сравнения
+     */
+    static int compareCodePoints(String s1, String s2) {
+        int len = Math.min(s1.length(), s2.length());
+
+        for (int i = 0; i < len; i++) {
+            char c1 = s1.charAt(i);
+            char c2 = s2.charAt(i);
+
+            if (c1 != c2) {
+                // если оба символа из верхней части BMP - сдвигаем суррогаты выше U+FFFF
+                if (c1 >= 0xD800 && c2 >= 0xD800) {
+                    return fixupSurrogate(c1) - fixupSurrogate(c2);
+                }
+                return c1 - c2;
+            }
         }
 
-        return ((this.job == null) ? (other.job == null) : (this.job.equals(other.job)));
+        return s1.length() - s2.length();
+    }
+
+    private static int fixupSurrogate(char c) {
+        return (c >= 0xE000) ? c - 0x800 : c + 0x2000;
     }
 
     @Override
     public String toString() {
-        return "Pair{code='" + code + "', job='" + job + "'}";
+        return "Pair{code='" + getCode() + "', job='" + getJob() + "'}";
     }
 }
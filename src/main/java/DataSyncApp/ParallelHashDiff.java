@@ -0,0 +1,152 @@
+package DataSyncApp;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static DataSyncApp.DataSync.logger;
+
+/**
+ * Параллельное сравнение мапов файла и БД. Строки каждой стороны сравниваются независимо: строка файла ищется в мапе БД
+ * (добавление, изменение), строка БД - в мапе файла (удаление), поэтому обе стороны просто делятся на куски их же сплитераторами
+ * (по диапазонам ячеек мапа, без копирования строк), и куски сравниваются на ForkJoin пуле. Поиск пары идет по исходным мапам
+ * (только чтение, поэтому из нескольких потоков безопасно).
+ * Результаты кусков (удаление, изменение, вставка) в конце по очереди отдаются получателю решений, как и у {@link SortMergeDiff}.
+ */
+class ParallelHashDiff {
+    private int mThreads; // количество потоков
+    private int mChunks;  // на сколько кусков делить каждую сторону; больше, чем потоков, чтобы потоки не простаивали из-за неровных кусков
+
+    /**
+     * Создание сравнения.
+     * @param threads количество потоков
+     */
+    ParallelHashDiff(int threads) {
+        logger.debug("Creating new ParallelHashDiff; threads = " + threads);
+        mThreads = threads;
+        mChunks = threads * 4;
+    }
+
+    /**
+     * Сравнение мапов.
+     * @param fileMap строки файла
+     * @param dbMap строки БД
+     * @param handler получатель решений
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    void diff(Map<Pair,Dep> fileMap, Map<Pair,Dep> dbMap, DiffHandler handler) throws HardException {
+        long start = System.currentTimeMillis();
+        logger.debug("ParallelHashDiff started; fileMap.size() = " + fileMap.size() + ", dbMap.size() = " + dbMap.size());
+
+        List<ChunkDiff> tasks = new ArrayList<>();
+        for (Spliterator<Dep> chunk : split(fileMap.values())) {
+            tasks.add(new ChunkDiff(chunk, true, fileMap, dbMap));
+        }
+        for (Spliterator<Dep> chunk : split(dbMap.values())) {
+            tasks.add(new ChunkDiff(chunk, false, fileMap, dbMap));
+        }
+        long splitTime = System.currentTimeMillis() - start;
+
+        ForkJoinPool pool = new ForkJoinPool(mThreads);
+        try {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } catch (RuntimeException rEx) {
+            logger.error("Error: failed to calculate changes");
+            throw new HardException(rEx);
+        } finally {
+            pool.shutdown();
+        }
+        long diffTime = System.currentTimeMillis() - start - splitTime;
+
+        // сливаем результаты кусков: сначала все удаления, затем изменения, затем вставки
+        for (ChunkDiff task : tasks) {
+            for (Dep dep : task.mDeletes) handler.delete(dep);
+        }
+        for (ChunkDiff task : tasks) {
+            for (Dep dep : task.mUpdates) handler.update(dep);
+        }
+        for (ChunkDiff task : tasks) {
+            for (Dep dep : task.mInserts) handler.insert(dep);
+        }
+
+        logger.debug("ParallelHashDiff finished; chunks = " + tasks.size() + ", split time = " + splitTime + " ms, diff time = " + diffTime
+                + " ms, time = " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Деление строк на куски сплитератором коллекции: за проход каждый кусок делится пополам, пока кусков меньше mChunks
+     * (или пока делится). Строки не перебираются - у HashMap, {@link DepTable} и {@link OffHeapDepTable} куски - диапазоны ячеек.
+     * @param deps строки
+     * @return куски
+     */
+    private List<Spliterator<Dep>> split(Collection<Dep> deps) {
+        List<Spliterator<Dep>> chunks = new ArrayList<>();
+        chunks.add(deps.spliterator());
+
+        boolean divided = true;
+        while (divided && chunks.size() < mChunks) {
+            divided = false;
+            List<Spliterator<Dep>> halves = new ArrayList<>();
+
+            for (Spliterator<Dep> chunk : chunks) {
+                Spliterator<Dep> prefix = chunk.trySplit();
+                if (prefix != null) {
+                    halves.add(prefix);
+                    divided = true;
+                }
+                halves.add(chunk);
+            }
+            chunks = halves;
+        }
+        return chunks;
+    }
+
+    /**
+     * Сравнение одного куска строк одной из сторон.
+     */
+    private static class ChunkDiff extends RecursiveAction {
+        private Spliterator<Dep> mChunk;
+        private boolean mFileSide; // кусок строк файла (иначе - БД)
+        private Map<Pair,Dep> mFileMap;
+        private Map<Pair,Dep> mDbMap;
+
+        private List<Dep> mDeletes = new ArrayList<>(); // строки БД, которых нет в файле
+        private List<Dep> mUpdates = new ArrayList<>(); // строки файла, которые отличаются от строк БД с тем же ключом
+        private List<Dep> mInserts = new ArrayList<>(); // строки файла, которых нет в БД
+
+        ChunkDiff(Spliterator<Dep> chunk, boolean fileSide, Map<Pair,Dep> fileMap, Map<Pair,Dep> dbMap) {
+            mChunk = chunk;
+            mFileSide = fileSide;
+            mFileMap = fileMap;
+            mDbMap = dbMap;
+        }
+
+        @Override
+        protected void compute() {
+            if (mFileSide) {
+                mChunk.forEachRemaining(fileDep -> {
+                    Dep dbDep = mDbMap.get(fileDep.getPair());
+
+                    if (dbDep == null) {
+                        // в БД такого элемента нет
+                        mInserts.add(fileDep);
+                    } else if (!fileDep.sameContent(dbDep)) {
+                        // совпадение по ключу, но целиком не совпадают - элемент изменился
+                        mUpdates.add(fileDep);
+                    }
+                });
+            } else {
+                mChunk.forEachRemaining(dbDep -> {
+                    // в файле такого элемента нет
+                    if (!mFileMap.containsKey(dbDep.getPair())) {
+                        mDeletes.add(dbDep);
+                    }
+                });
+            }
+        }
+    }
+}
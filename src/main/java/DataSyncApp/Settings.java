@@ -0,0 +1,133 @@
+package DataSyncApp;
+
+import java.io.*;
+import java.util.*;
+
+import static DataSyncApp.DataSync.logger;
+
+/**
+ * Настройки приложения из файла свойств. Все настройки необязательные: если параметр не задан, берется значение по умолчанию.
+ * Некорректное значение параметра считается ошибкой, чтобы не работать молча с настройками, которые пользователь не задавал.
+ */
+class Settings {
+    private Properties mProps; // загруженные свойства
+
+    /**
+     * Загрузка настроек из файла свойств. Если файла нет, работаем с настройками по умолчанию.
+     * @param fileName имя файла свойств
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    Settings(String fileName) throws HardException {
+        logger.debug("Loading settings; fileName = " + fileName);
+        mProps = new Properties();
+
+        if (!new File(fileName).exists()) {
+            logger.debug("Settings file not found; default settings will be used");
+            return;
+        }
+
+        try (InputStream is = new FileInputStream(fileName)) {
+            mProps.load(is);
+            logger.debug("settings loaded");
+        } catch (IOException ioEx) {
+            logger.error("Error: can't read settings file '" + fileName + "'!");
+            throw new HardException(ioEx);
+        }
+    }
+
+    /**
+     * Настройки из уже загруженных свойств.
+     * @param props свойства
+     */
+    Settings(Properties props) {
+        mProps = props;
+    }
+
+    /**
+     * Строковый параметр.
+     * @param key имя параметра
+     * @param defaultValue значение по умолчанию
+     * @return значение параметра
+     */
+    String getString(String key, String defaultValue) {
+        String value = mProps.getProperty(key);
+        value = (value == null || value.trim().isEmpty()) ? defaultValue : value.trim();
+        logger.debug(key + " = " + value);
+        return value;
+    }
+
+    /**
+     * Параметр, принимающий одно из перечисленных значений.
+     * @param key имя параметра
+     * @param defaultValue значение по умолчанию
+     * @param allowed допустимые значения
+     * @return значение параметра
+     * @throws HardException значение не из списка допустимых
+     */
+    String getChoice(String key, String defaultValue, String... allowed) throws HardException {
+        String value = getString(key, defaultValue);
+
+        if (!Arrays.asList(allowed).contains(value)) {
+            logger.error("Error: setting '" + key + "' must be one of " + Arrays.toString(allowed) + ", got '" + value + "'!");
+            throw new HardException();
+        }
+        return value;
+    }
+
+    /**
+     * Целочисленный параметр.
+     * @param key имя параметра
+     * @param defaultValue значение по умолчанию
+     * @param minValue минимально допустимое значение
+     * @return значение параметра
+     * @throws HardException значение не число или меньше минимального
+     */
+    int getInt(String key, int defaultValue, int minValue) throws HardException {
+        long value = getLong(key, defaultValue, minValue);
+
+        if (value > Integer.MAX_VALUE) {
+            logger.error("Error: setting '" + key + "' is too large!");
+            throw new HardException();
+        }
+        return (int) value;
+    }
+
+    /**
+     * Целочисленный параметр.
+     * @param key имя параметра
+     * @param defaultValue значение по умолчанию
+     * @param minValue минимально допустимое значение
+     * @return значение параметра
+     * @throws HardException значение не число или меньше минимального
+     */
+    long getLong(String key, long defaultValue, long minValue) throws HardException {
+        String value = getString(key, null);
+
+        if (value == null) return defaultValue;
+
+        long result;
+        try {
+            result = Long.parseLong(value);
+        } catch (NumberFormatException nfEx) {
+            logger.error("Error: setting '" + key + "' must be a number, got '" + value + "'!");
+            throw new HardException(nfEx);
+        }
+
+        if (result < minValue) {
+            logger.error("Error: setting '" + key + "' must be at least " + minValue + "!");
+            throw new HardException();
+        }
+        return result;
+    }
+
+    /**
+     * Логический параметр (true/false).
+     * @param key имя параметра
+     * @param defaultValue значение по умолчанию
+     * @return значение параметра
+     * @throws HardException значение не true/false
+     */
+    boolean getBoolean(String key, boolean defaultValue) throws HardException {
+        return Boolean.parseBoolean(getChoice(key, String.valueOf(defaultValue), "true", "false"));
+    }
+}
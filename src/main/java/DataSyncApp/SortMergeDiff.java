@@ -0,0 +1,127 @@
+package DataSyncApp;
+
+import static DataSyncApp.DataSync.logger;
+
+/**
+ * Сравнение файла и БД слиянием двух упорядоченных по ключу (DepCode, DepJob) потоков строк.
+ * В отличие от {@link Commander} с мапами, ни одна из сторон целиком в память не загружается: в каждый момент времени
+ * держим только по текущей строке с каждой стороны, и за один линейный проход выдаем решения на удаление, изменение и вставку.
+ * Порядок ключей - {@link Pair#compareTo(Pair)}; обе стороны проверяются на строгое возрастание ключей,
+ * поэтому повтор ключа в файле ловится здесь же, без набора всех ключей в памяти.
+ */
+class SortMergeDiff {
+    private long mFileRows = 0; // прочитано строк из файла
+    private long mDbRows = 0;   // прочитано строк из БД
+
+    /**
+     * Сравнение двух упорядоченных потоков.
+     * @param fileSource строки файла, упорядоченные по ключу
+     * @param dbSource строки БД, упорядоченные по ключу
+     * @param handler получатель решений
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    void diff(DepSource fileSource, DepSource dbSource, DiffHandler handler) throws HardException {
+        logger.debug("SortMergeDiff started");
+
+        Dep fileDep = nextFile(fileSource, null);
+        Dep dbDep = nextDb(dbSource, null);
+
+        while (fileDep != null || dbDep != null) {
+            int cmp;
+
+            if (fileDep == null) {
+                cmp = 1;   // файл кончился - все оставшееся в БД удаляем
+            } else if (dbDep == null) {
+                cmp = -1;  // БД кончилась - все оставшееся в файле вставляем
+            } else {
+                cmp = fileDep.getPair().compareTo(dbDep.getPair());
+            }
+
+            if (cmp < 0) {
+                // в БД такого элемента нет
+                handler.insert(fileDep);
+                fileDep = nextFile(fileSource, fileDep);
+            } else if (cmp > 0) {
+                // в файле такого элемента нет
+                handler.delete(dbDep);
+                dbDep = nextDb(dbSource, dbDep);
+            } else {
+                // совпадение по ключу; если не совпадают целиком - элемент изменился
+                if (!fileDep.sameContent(dbDep)) {
+                    handler.update(fileDep);
+                }
+                fileDep = nextFile(fileSource, fileDep);
+                dbDep = nextDb(dbSource, dbDep);
+            }
+        }
+
+        logger.debug("SortMergeDiff finished; mFileRows = " + mFileRows + ", mDbRows = " + mDbRows);
+    }
+
+    /**
+     * Следующая строка файла с проверкой порядка.
+     * @param source строки файла
+     * @param prev предыдущая строка файла (null, если это первая)
+     * @return следующая строка, либо null, если строк больше нет
+     * @throws HardException повтор ключа или нарушение порядка
+     */
+    private Dep nextFile(DepSource source, Dep prev) throws HardException {
+        Dep next = source.next();
+
+        if (next != null) {
+            mFileRows++;
+
+            if (prev != null) {
+                int cmp = prev.getPair().compareTo(next.getPair());
+
+                if (cmp == 0) {
+                    logger.error("Error: File contains multiple rows with the same key!");
+                    throw new HardException();
+                }
+
+                if (cmp > 0) {
+                    logger.error("Error: File is not sorted by DepCode, DepJob: " + next.getPair() + " goes after " + prev.getPair() + "; use diffMode = hash for unsorted files");
+                    throw new HardException();
+                }
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Следующая строка БД с проверкой порядка.
+     * @param source строки БД
+     * @param prev предыдущая строка БД (null, если это первая)
+     * @return следующая строка, либо null, если строк больше нет
+     * @throws HardException нарушение порядка
+     */
+    private Dep nextDb(DepSource source, Dep prev) throws HardException {
+        Dep next = source.next();
+
+        if (next != null) {
+            mDbRows++;
+
+            if (prev != null && prev.getPair().compareTo(next.getPair()) >= 0) {
+                logger.error("Error: DB rows are not ordered by DepCode, DepJob in binary order: " + next.getPair() + " goes after " + prev.getPair() + "; use diffMode = hash");
+                throw new HardException();
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Количество прочитанных строк файла.
+     * @return количество строк
+     */
+    long getFileRows() {
+        return mFileRows;
+    }
+
+    /**
+     * Количество прочитанных строк БД.
+     * @return количество строк
+     */
+    long getDbRows() {
+        return mDbRows;
+    }
+}
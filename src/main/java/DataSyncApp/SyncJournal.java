@@ -0,0 +1,366 @@
+package DataSyncApp;
+
+import java.io.*;
+import java.util.*;
+
+import static DataSyncApp.DataSync.logger;
+
+/**
+ * Журнал синхронизации с фиксацией по кускам: рассчитанные изменения (удаление, изменение, добавление - в порядке применения)
+ * и отметка, сколько из них уже зафиксировано в БД. Если синхронизация упала посреди записи, повторный запуск по тому же файлу
+ * не считает изменения заново и не повторяет записанное, а продолжает с отметки.
+ * Куски - либо по commitChunk изменений подряд, либо части параллельной записи (writePartitions, см. {@link DbController#splitPartitions(Map)}):
+ * тогда изменения лежат по частям, а границы частей записаны в заголовке.
+ * Отметка пишется после фиксации куска в БД; если приложение упало между ними, кусок после отметки мог быть уже зафиксирован -
+ * поэтому при продолжении он применяется повторно так, чтобы повтор ничего не испортил (см. {@link #isUncertain()}).
+ * Формат файла: MAGIC, размер и время изменения файла с данными, размер куска (0 - куски по частям), количество изменений,
+ * количество примененных (отметка, обновляется на месте), количество частей и концы частей, затем изменения: вид, DepCode, DepJob, Description.
+ */
+class SyncJournal implements AutoCloseable {
+    private static final int MAGIC = 0x44534A32; // "DSJ2"
+    private static final long APPLIED_OFFSET = 32; // смещение отметки в файле
+    private static final String[] SET_NAMES = {"deleteSet", "updateSet", "insertSet"}; // виды изменений, по номеру в журнале
+
+    private File mJournalFile;
+    private KeyDictionary mKeyDictionary; // словарь значений ключа, в котором создаются ключи прочитанных изменений
+    private int mChunkSize;        // изменений в одной транзакции; 0 - куски по частям
+    private long[] mPartEnds;      // концы частей (номер изменения после последнего изменения части), если куски по частям
+    private long mTotal;           // всего изменений
+    private long mApplied;         // зафиксировано изменений
+    private long mRead;            // выдано изменений (зафиксированные и ждущие фиксации)
+    private Deque<Map.Entry<Long,String>> mPending = new ArrayDeque<>(); // выданные куски, ждущие фиксации: размер и последнее изменение (для лога)
+    private boolean mUncertain;    // первый ждущий фиксации кусок мог быть уже зафиксирован (первый кусок после продолжения)
+    private String mLastOp;        // последнее прочитанное изменение, для лога
+    private DataInputStream mIn;   // чтение изменений
+    private RandomAccessFile mCheckpoint; // запись отметки
+
+    private SyncJournal() {
+    }
+
+    /**
+     * Создание журнала по рассчитанным изменениям для фиксации кусками по chunkSize изменений.
+     * @param journalFile файл журнала
+     * @param dataFile файл с данными (запоминаются его размер и время изменения)
+     * @param changes мап, в котором ключом служит строка-обозначение сета (deleteSet, updateSet, insertSet), а значением - сам сет
+     * @param chunkSize изменений в одной транзакции
+     * @param keyDictionary словарь значений ключа для прочитанных из журнала изменений
+     * @return открытый журнал
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    static SyncJournal create(File journalFile, File dataFile, Map<String,Set<Dep>> changes, int chunkSize, KeyDictionary keyDictionary) throws HardException {
+        return create(journalFile, dataFile, Collections.singletonList(changes), chunkSize, keyDictionary);
+    }
+
+    /**
+     * Создание журнала по рассчитанным изменениям, разложенным по частям параллельной записи: кусок - одна часть.
+     * @param journalFile файл журнала
+     * @param dataFile файл с данными (запоминаются его размер и время изменения)
+     * @param parts сеты частей: мапы, в которых ключом служит строка-обозначение сета (deleteSet, updateSet, insertSet), а значением - сам сет
+     * @param keyDictionary словарь значений ключа для прочитанных из журнала изменений
+     * @return открытый журнал
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    static SyncJournal create(File journalFile, File dataFile, List<Map<String,List<Dep>>> parts, KeyDictionary keyDictionary) throws HardException {
+        return create(journalFile, dataFile, parts, 0, keyDictionary);
+    }
+
+    /**
+     * Создание журнала. Журнал пишется во временный файл и переименовывается, когда записан целиком.
+     * @param journalFile файл журнала
+     * @param dataFile файл с данными (запоминаются его размер и время изменения)
+     * @param parts сеты частей (без деления на части - одна часть)
+     * @param chunkSize изменений в одной транзакции; 0 - кусок - одна часть
+     * @param keyDictionary словарь значений ключа для прочитанных из журнала изменений
+     * @return открытый журнал
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private static SyncJournal create(File journalFile, File dataFile, List<? extends Map<String,? extends Collection<Dep>>> parts, int chunkSize,
+                                      KeyDictionary keyDictionary) throws HardException {
+        long start = System.currentTimeMillis();
+        File tempFile = new File(journalFile.getPath() + ".tmp");
+        long total = 0;
+
+        try {
+            try (FileOutputStream fileOut = new FileOutputStream(tempFile);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16))) {
+                // концы частей - по размерам их сетов
+                long[] partEnds = new long[parts.size()];
+                for (int part = 0; part < parts.size(); part++) {
+                    for (String setName : SET_NAMES) {
+                        total += parts.get(part).get(setName).size();
+                    }
+                    partEnds[part] = total;
+                }
+
+                out.writeInt(MAGIC);
+                out.writeLong(dataFile.length());
+                out.writeLong(dataFile.lastModified());
+                out.writeInt(chunkSize);
+                out.writeLong(total);
+                out.writeLong(0);
+
+                out.writeInt((chunkSize > 0) ? 0 : partEnds.length);
+                if (chunkSize == 0) {
+                    for (long partEnd : partEnds) {
+                        out.writeLong(partEnd);
+                    }
+                }
+
+                for (Map<String,? extends Collection<Dep>> changes : parts) {
+                    writeChanges(out, changes);
+                }
+
+                out.flush();
+                fileOut.getFD().sync();
+            }
+
+            if (journalFile.exists() && !journalFile.delete()) {
+                throw new IOException("Unable to replace " + journalFile);
+            }
+            if (!tempFile.renameTo(journalFile)) {
+                throw new IOException("Unable to rename " + tempFile + " to " + journalFile);
+            }
+        } catch (IOException ioEx) {
+            tempFile.delete();
+            logger.error("Error: failed to write sync journal " + journalFile);
+            throw new HardException(ioEx);
+        }
+
+        logger.debug("Sync journal written; changes = " + total + ", time = " + (System.currentTimeMillis() - start) + " ms");
+
+        SyncJournal journal = read(journalFile, dataFile, keyDictionary);
+        if (journal == null) {
+            logger.error("Error: file has changed during sync");
+            throw new HardException();
+        }
+        return journal;
+    }
+
+    /**
+     * Запись изменений одной части: удаление, изменение, добавление.
+     * @param out поток журнала
+     * @param changes мап, в котором ключом служит строка-обозначение сета (deleteSet, updateSet, insertSet), а значением - сам сет
+     * @throws IOException ошибка записи
+     */
+    private static void writeChanges(DataOutputStream out, Map<String,? extends Collection<Dep>> changes) throws IOException {
+        for (int kind = 0; kind < SET_NAMES.length; kind++) {
+            for (Dep dep : changes.get(SET_NAMES[kind])) {
+                out.writeByte(kind);
+                out.writeUTF(dep.getPair().getCode());
+                out.writeUTF(dep.getPair().getJob());
+
+                // для удаления достаточно ключа (строка БД может быть и только с отпечатком)
+                String description = (kind == 0) ? null : dep.getDescription();
+                out.writeBoolean(description != null);
+                if (description != null) {
+                    out.writeUTF(description);
+                }
+            }
+        }
+    }
+
+    /**
+     * Открытие журнала незавершенной синхронизации. Журнал годится, только если файл с данными с тех пор не менялся;
+     * иначе он удаляется, и изменения считаются заново (уже зафиксированные куски при этом просто не попадут в изменения).
+     * @param journalFile файл журнала
+     * @param dataFile файл с данными
+     * @param keyDictionary словарь значений ключа для прочитанных из журнала изменений
+     * @return журнал, установленный на первое незафиксированное изменение; null - журнала нет или он не годится
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    static SyncJournal open(File journalFile, File dataFile, KeyDictionary keyDictionary) throws HardException {
+        if (!journalFile.isFile()) {
+            logger.debug("No sync journal " + journalFile);
+            return null;
+        }
+
+        SyncJournal journal = read(journalFile, dataFile, keyDictionary);
+
+        if (journal != null) {
+            // приложение могло упасть после фиксации куска, но до записи отметки
+            journal.mUncertain = true;
+            logger.info("Resuming interrupted sync: " + journal.mApplied + " of " + journal.mTotal + " changes applied"
+                    + ((journal.mApplied > 0) ? ", last applied - " + journal.mLastOp : ""));
+        }
+        return journal;
+    }
+
+    /**
+     * Чтение заголовка журнала и пропуск зафиксированных изменений.
+     * @param journalFile файл журнала
+     * @param dataFile файл с данными
+     * @param keyDictionary словарь значений ключа для прочитанных изменений
+     * @return журнал, установленный на первое незафиксированное изменение; null - файл с данными менялся
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    private static SyncJournal read(File journalFile, File dataFile, KeyDictionary keyDictionary) throws HardException {
+        SyncJournal journal = new SyncJournal();
+        journal.mJournalFile = journalFile;
+        journal.mKeyDictionary = keyDictionary;
+
+        try {
+            journal.mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile), 1 << 16));
+
+            if (journal.mIn.readInt() != MAGIC) {
+                throw new IOException("Not a sync journal");
+            }
+
+            if (journal.mIn.readLong() != dataFile.length() || journal.mIn.readLong() != dataFile.lastModified()) {
+                journal.close();
+                logger.info("File has changed since interrupted sync; sync journal " + journalFile + " is discarded");
+                journal.delete();
+                return null;
+            }
+
+            journal.mChunkSize = journal.mIn.readInt();
+            journal.mTotal = journal.mIn.readLong();
+            journal.mApplied = journal.mIn.readLong();
+            journal.mPartEnds = new long[journal.mIn.readInt()];
+            for (int part = 0; part < journal.mPartEnds.length; part++) {
+                journal.mPartEnds[part] = journal.mIn.readLong();
+            }
+
+            // пропускаем зафиксированные изменения
+            for (long i = 0; i < journal.mApplied; i++) {
+                journal.readOp();
+            }
+            journal.mRead = journal.mApplied;
+
+            journal.mCheckpoint = new RandomAccessFile(journalFile, "rw");
+        } catch (IOException ioEx) {
+            journal.close();
+            logger.error("Error: failed to read sync journal " + journalFile + "; delete it to calculate changes again");
+            throw new HardException(ioEx);
+        }
+
+        return journal;
+    }
+
+    /**
+     * Чтение одного изменения.
+     * @return вид изменения (номер в SET_NAMES) и строка
+     * @throws IOException ошибка чтения
+     */
+    private Map.Entry<String,Dep> readOp() throws IOException {
+        int kind = mIn.readByte();
+        Pair pair = new Pair(mKeyDictionary, mIn.readUTF(), mIn.readUTF());
+        String description = mIn.readBoolean() ? mIn.readUTF() : null;
+
+        if (kind < 0 || kind >= SET_NAMES.length) {
+            throw new IOException("Unknown change kind " + kind);
+        }
+
+        mLastOp = SET_NAMES[kind] + " " + pair;
+        return new AbstractMap.SimpleImmutableEntry<>(SET_NAMES[kind], new Dep(pair, description));
+    }
+
+    int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * Куски - части параллельной записи (а не по chunkSize изменений).
+     * @return true, если куски по частям
+     */
+    boolean isPartitioned() {
+        return mChunkSize == 0;
+    }
+
+    long getTotal() {
+        return mTotal;
+    }
+
+    long getApplied() {
+        return mApplied;
+    }
+
+    /**
+     * Первый ждущий фиксации кусок мог быть уже зафиксирован: это первый кусок после продолжения, а приложение могло упасть между его фиксацией
+     * и записью отметки. Добавление строк такого куска должно пропускать уже существующие строки.
+     * @return true, если кусок мог быть зафиксирован
+     */
+    boolean isUncertain() {
+        return mUncertain;
+    }
+
+    /**
+     * Следующий кусок изменений. Можно взять несколько кусков до их фиксации (части параллельной записи) - фиксируются они по порядку выдачи.
+     * @return мап, в котором ключом служит строка-обозначение сета (deleteSet, updateSet, insertSet), а значением - изменения куска;
+     * null - изменения кончились
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    Map<String,List<Dep>> nextChunk() throws HardException {
+        if (mRead >= mTotal) return null;
+
+        // конец куска: через chunkSize изменений, либо конец ближайшей непустой части
+        long end = mRead + mChunkSize;
+        if (mChunkSize == 0) {
+            for (int part = 0; end <= mRead; part++) {
+                end = mPartEnds[part];
+            }
+        }
+        end = Math.min(end, mTotal);
+
+        Map<String,List<Dep>> chunk = new HashMap<>();
+        for (String setName : SET_NAMES) {
+            chunk.put(setName, new ArrayList<>());
+        }
+
+        try {
+            for (long i = mRead; i < end; i++) {
+                Map.Entry<String,Dep> op = readOp();
+                chunk.get(op.getKey()).add(op.getValue());
+            }
+        } catch (IOException ioEx) {
+            logger.error("Error: failed to read sync journal " + mJournalFile);
+            throw new HardException(ioEx);
+        }
+
+        mPending.add(new AbstractMap.SimpleImmutableEntry<>(end - mRead, mLastOp));
+        mRead = end;
+        return chunk;
+    }
+
+    /**
+     * Отметка, что первый из выданных и еще не отмеченных кусков зафиксирован в БД. Вызывается после фиксации; отметка сбрасывается на диск.
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    void checkpoint() throws HardException {
+        Map.Entry<Long,String> chunk = mPending.remove();
+
+        try {
+            mCheckpoint.seek(APPLIED_OFFSET);
+            mCheckpoint.writeLong(mApplied + chunk.getKey());
+            mCheckpoint.getFD().sync();
+        } catch (IOException ioEx) {
+            logger.error("Error: failed to write sync journal " + mJournalFile);
+            throw new HardException(ioEx);
+        }
+
+        mApplied += chunk.getKey();
+        mUncertain = false;
+        logger.debug("Checkpoint: " + mApplied + " of " + mTotal + " changes applied, last applied - " + chunk.getValue());
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (mIn != null) mIn.close();
+            if (mCheckpoint != null) mCheckpoint.close();
+        } catch (IOException ioEx) {
+            logger.debug(ioEx);
+        }
+        mIn = null;
+        mCheckpoint = null;
+    }
+
+    /**
+     * Удаление журнала (синхронизация завершена, либо журнал не годится).
+     */
+    void delete() {
+        close();
+        if (mJournalFile.exists() && !mJournalFile.delete()) {
+            logger.info("Unable to delete sync journal " + mJournalFile);
+        }
+    }
+}
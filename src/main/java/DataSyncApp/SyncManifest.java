@@ -0,0 +1,208 @@
+package DataSyncApp;
+
+import java.io.*;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static DataSyncApp.DataSync.logger;
+
+/**
+ * Манифест синхронизации: что было в файле и в БД после последней успешной синхронизации.
+ * Хранит размер, время изменения и контрольную сумму (CRC32) файла, состояние БД (количество строк и сумма ORA_HASH строк,
+ * см. {@link DbController#getDbState()}) и ключи всех строк с отпечатками Description ({@link Dep#getDigest()}).
+ * По манифесту следующая синхронизация может не читать файл (если он не менялся) и не читать таблицу (если ее состояние совпадает):
+ * строки БД берутся из манифеста, в виде строк только с отпечатком.
+ * Формат файла: MAGIC, количество строк, строки (DepCode, DepJob, отпечаток), затем сведения о файле и БД, в конце - смещение этих сведений,
+ * чтобы проверку можно было сделать, не читая строки. Манифест пишется во временный файл и переименовывается только после записи в БД.
+ */
+class SyncManifest {
+    private static final int MAGIC = 0x44534D31; // "DSM1"
+
+    private long mFileSize;     // размер файла с данными
+    private long mFileModified; // время изменения файла с данными
+    private long mFileChecksum; // CRC32 файла с данными
+    private String mDbState;    // состояние БД после синхронизации
+    private File mManifestFile; // файл манифеста (прочитанного или записываемого)
+    private File mTempFile;     // временный файл записываемого манифеста
+
+    private SyncManifest() {
+    }
+
+    /**
+     * Состояние файла с данными на текущий момент: размер, время изменения и контрольная сумма.
+     * @param dataFile файл с данными
+     * @return манифест без строк и без состояния БД
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    static SyncManifest ofFile(File dataFile) throws HardException {
+        SyncManifest manifest = new SyncManifest();
+        manifest.mFileSize = dataFile.length();
+        manifest.mFileModified = dataFile.lastModified();
+
+        long start = System.currentTimeMillis();
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[1 << 16];
+
+        try (InputStream in = new FileInputStream(dataFile)) {
+            int len;
+            while ((len = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, len);
+            }
+        } catch (IOException ioEx) {
+            logger.error("Error: failed to read data from file");
+            throw new HardException(ioEx);
+        }
+
+        manifest.mFileChecksum = crc.getValue();
+        logger.debug("File checksum = " + Long.toHexString(manifest.mFileChecksum) + ", time = " + (System.currentTimeMillis() - start) + " ms");
+        return manifest;
+    }
+
+    /**
+     * Чтение сведений манифеста (без строк).
+     * @param manifestFile файл манифеста
+     * @return манифест, либо null, если файла нет или он испорчен
+     */
+    static SyncManifest read(File manifestFile) {
+        if (!manifestFile.isFile()) {
+            logger.debug("No sync manifest " + manifestFile);
+            return null;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(manifestFile, "r")) {
+            if (raf.length() < 12 || raf.readInt() != MAGIC) {
+                throw new IOException("Not a sync manifest");
+            }
+
+            raf.seek(raf.length() - 8);
+            raf.seek(raf.readLong());
+
+            SyncManifest manifest = new SyncManifest();
+            manifest.mManifestFile = manifestFile;
+            manifest.mFileSize = raf.readLong();
+            manifest.mFileModified = raf.readLong();
+            manifest.mFileChecksum = raf.readLong();
+            manifest.mDbState = raf.readUTF();
+            logger.debug("Sync manifest read; dbState = " + manifest.mDbState);
+            return manifest;
+        } catch (IOException ioEx) {
+            logger.info("Sync manifest " + manifestFile + " is damaged and will be ignored");
+            logger.debug(ioEx);
+            return null;
+        }
+    }
+
+    String getDbState() {
+        return mDbState;
+    }
+
+    /**
+     * Совпадение файла с данными: размер, время изменения и контрольная сумма.
+     * @param other другой манифест
+     * @return true, если файл тот же
+     */
+    boolean sameFile(SyncManifest other) {
+        return mFileSize == other.mFileSize && mFileModified == other.mFileModified && mFileChecksum == other.mFileChecksum;
+    }
+
+    /**
+     * Совпадение размера и времени изменения файла с данными (без контрольной суммы) - проверка, что файл не менялся во время синхронизации.
+     * @param dataFile файл с данными
+     * @return true, если размер и время изменения те же
+     */
+    boolean sameFileAttributes(File dataFile) {
+        return mFileSize == dataFile.length() && mFileModified == dataFile.lastModified();
+    }
+
+    /**
+     * Чтение строк манифеста в мап: строки только с отпечатком Description.
+     * @param target пустой мап
+     * @param keyDictionary словарь значений ключа, в котором создаются ключи строк
+     * @return мап со строками
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    Map<Pair,Dep> readRows(Map<Pair,Dep> target, KeyDictionary keyDictionary) throws HardException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mManifestFile), 1 << 16))) {
+            in.readInt();
+            long count = in.readLong();
+
+            for (long i = 0; i < count; i++) {
+                Pair pair = new Pair(keyDictionary, in.readUTF(), in.readUTF());
+                target.put(pair, new Dep(pair, in.readLong()));
+            }
+        } catch (IOException ioEx) {
+            logger.error("Error: failed to read sync manifest " + mManifestFile);
+            throw new HardException(ioEx);
+        }
+
+        logger.debug("Read " + target.size() + " rows from sync manifest");
+        return target;
+    }
+
+    /**
+     * Запись строк файла во временный файл манифеста; манифест становится действующим после {@link #commit(String)}.
+     * @param manifestFile файл манифеста
+     * @param rows строки файла с данными
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    void writeRows(File manifestFile, Map<Pair,Dep> rows) throws HardException {
+        long start = System.currentTimeMillis();
+        mManifestFile = manifestFile;
+        mTempFile = new File(manifestFile.getPath() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mTempFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeLong(rows.size());
+
+            for (Dep dep : rows.values()) {
+                out.writeUTF(dep.getPair().getCode());
+                out.writeUTF(dep.getPair().getJob());
+                out.writeLong(dep.getDigest());
+            }
+        } catch (IOException ioEx) {
+            discard();
+            logger.error("Error: failed to write sync manifest " + mTempFile);
+            throw new HardException(ioEx);
+        }
+
+        logger.debug("Sync manifest rows written; rows = " + rows.size() + ", time = " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Завершение записи манифеста: дописываются сведения о файле и БД, временный файл заменяет прежний манифест.
+     * @param dbState состояние БД после синхронизации
+     * @throws IOException ошибка записи
+     */
+    void commit(String dbState) throws IOException {
+        mDbState = dbState;
+
+        try (RandomAccessFile raf = new RandomAccessFile(mTempFile, "rw")) {
+            long trailer = raf.length();
+            raf.seek(trailer);
+            raf.writeLong(mFileSize);
+            raf.writeLong(mFileModified);
+            raf.writeLong(mFileChecksum);
+            raf.writeUTF(dbState);
+            raf.writeLong(trailer);
+        }
+
+        if (mManifestFile.exists() && !mManifestFile.delete()) {
+            throw new IOException("Unable to replace " + mManifestFile);
+        }
+        if (!mTempFile.renameTo(mManifestFile)) {
+            throw new IOException("Unable to rename " + mTempFile + " to " + mManifestFile);
+        }
+        mTempFile = null;
+        logger.debug("Sync manifest saved; dbState = " + dbState);
+    }
+
+    /**
+     * Отказ от записываемого манифеста: временный файл удаляется.
+     */
+    void discard() {
+        if (mTempFile != null && mTempFile.exists() && !mTempFile.delete()) {
+            logger.debug("Unable to delete " + mTempFile);
+        }
+        mTempFile = null;
+    }
+}
@@ -0,0 +1,51 @@
+package DataSyncApp;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static DataSyncApp.DataSync.logger;
+
+/**
+ * Фабрика рабочих потоков для параллельных этапов (чтение и запись по частям и т.п.).
+ * Потоки - демоны с понятными именами (для лога и дампа потоков), чтобы зависший поток не держал приложение.
+ */
+class WorkerThreads implements ThreadFactory {
+    private String mName;                                 // префикс имени потока
+    private AtomicInteger mCounter = new AtomicInteger(); // номер следующего потока
+
+    /**
+     * Создание фабрики.
+     * @param name префикс имени потока
+     */
+    WorkerThreads(String name) {
+        mName = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, mName + "-" + mCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Пул из заданного количества рабочих потоков.
+     * @param name префикс имени потока
+     * @param threads количество потоков
+     * @return пул потоков; останавливается вызывающим
+     */
+    static ExecutorService newPool(String name, int threads) {
+        return Executors.newFixedThreadPool(threads, new WorkerThreads(name));
+    }
+
+    /**
+     * Проверка, не отменена ли задача текущего потока (прерывание потока); длинные циклы чтения вызывают ее на каждой строке.
+     * @throws HardException задача отменена
+     */
+    static void checkInterrupted() throws HardException {
+        if (Thread.currentThread().isInterrupted()) {
+            logger.debug("Task cancelled in thread " + Thread.currentThread().getName());
+            throw new HardException(new InterruptedException("Task cancelled"));
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package DataSyncApp;
+
+import java.io.*;
+import java.util.*;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import static DataSyncApp.DataSync.logger;
+
+/**
+ * Потоковое чтение строк из xml файла (StAX). В отличие от DOM, не строит дерево документа в памяти:
+ * строки (Row) разбираются по одной и сразу отдаются наружу в виде {@link Dep}.
+ * Проверки те же, что и при чтении через DOM: обязательные непустые DEPCODE и DEPJOB, необязательный DESCRIPTION, уникальность ключа.
+ * Для проверки уникальности хранится только набор уже встреченных ключей (Pair), поэтому расход памяти зависит от количества ключей, а не от размера файла.
+ */
+class XmlDepReader implements DepSource {
+    private InputStream mInputStream;  // поток файла
+    private XMLStreamReader mReader;   // StAX ридер
+    private Set<Pair> mKeys;           // встреченные ключи; null, если проверка уникальности не нужна
+    private KeyDictionary mKeyDictionary; // словарь значений ключа, в котором создаются ключи строк
+    private int mRowNum = 0;           // номер очередной строки (Row) в файле
+    private boolean mQuiet = false;    // не писать ошибки в лог (ошибку разберет вызывающий)
+
+    /**
+     * Открытие файла на потоковое чтение.
+     * @param file файл с данными
+     * @param checkDuplicates проверять ли уникальность ключа DepCode-DepJob; если проверка выполняется снаружи (например, мапом), можно отключить
+     * @param keyDictionary словарь значений ключа, в котором создаются ключи строк
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    XmlDepReader(File file, boolean checkDuplicates, KeyDictionary keyDictionary) throws HardException {
+        logger.debug("Creating new XmlDepReader; file = " + file + ", checkDuplicates = " + checkDuplicates);
+        mKeyDictionary = keyDictionary;
+
+        if (checkDuplicates) {
+            mKeys = new HashSet<>();
+        }
+
+        // пустой файл - пустой источник, xml парсер на нем бы ругнулся
+        if (file.length() == 0) {
+            logger.debug("File is empty");
+            return;
+        }
+
+        try {
+            open(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        } catch (IOException ioEx) {
+            closeQuietly();
+            logger.error("Error: failed to read data from file");
+            throw new HardException(ioEx);
+        }
+    }
+
+    /**
+     * Потоковое чтение из готового потока (например, куска файла, см. {@link ChunkedXmlParser}), без проверки уникальности ключа.
+     * Ошибки в лог не пишутся: вызывающий сам решает, что с ними делать.
+     * @param inputStream поток xml; закрывается вместе с ридером
+     * @param keyDictionary словарь значений ключа, в котором создаются ключи строк
+     * @throws HardException некорректный xml
+     */
+    XmlDepReader(InputStream inputStream, KeyDictionary keyDictionary) throws HardException {
+        mQuiet = true;
+        mKeyDictionary = keyDictionary;
+        open(inputStream);
+    }
+
+    /**
+     * Создание StAX ридера над потоком.
+     * @param inputStream поток xml
+     * @throws HardException некорректный xml
+     */
+    private void open(InputStream inputStream) throws HardException {
+        mInputStream = inputStream;
+
+        try {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            // текст одного элемента отдается одним куском, сущности раскрываются - как getTextContent() в DOM
+            factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+            factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.TRUE);
+            mReader = factory.createXMLStreamReader(mInputStream);
+        } catch (XMLStreamException xmlEx) {
+            closeQuietly();
+            error("Error: inappropriate file content");
+            throw new HardException(xmlEx);
+        }
+    }
+
+    /**
+     * Сообщение об ошибке: в лог, если ридер не в тихом режиме.
+     * @param message сообщение
+     */
+    private void error(String message) {
+        if (mQuiet) {
+            logger.debug(message);
+        } else {
+            logger.error(message);
+        }
+    }
+
+    /**
+     * Чтение следующей строки (Row) файла.
+     * @return очередная строка (Dep), либо null, если строк больше нет
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    @Override
+    public Dep next() throws HardException {
+        if (mReader == null) return null;
+
+        try {
+            while (mReader.hasNext()) {
+                if (mReader.next() == XMLStreamConstants.START_ELEMENT && mReader.getLocalName().equals("Row")) {
+                    return readRow(mRowNum++);
+                }
+            }
+            return null;
+        } catch (XMLStreamException xmlEx) {
+            error("Error: inappropriate file content");
+            throw new HardException(xmlEx);
+        }
+    }
+
+    /**
+     * Разбор одной строки (Row); ридер стоит на открывающем теге Row, после разбора - на закрывающем.
+     * @param i номер строки в файле (для сообщений об ошибках)
+     * @return строка Dep
+     * @throws HardException некорректные данные в строке
+     * @throws XMLStreamException некорректный xml
+     */
+    private Dep readRow(int i) throws HardException, XMLStreamException {
+        String code = null, job = null, description = null;
+        int descCount = 0; // количество тегов DESCRIPTION в строке
+        int depth = 1;     // вложенность относительно тега Row
+
+        while (depth > 0) {
+            int event = mReader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = mReader.getLocalName();
+
+                if (name.equals("DEPCODE")) {
+                    String text = readText();
+                    if (code == null) code = text;
+                } else if (name.equals("DEPJOB")) {
+                    String text = readText();
+                    if (job == null) job = text;
+                } else if (name.equals("DESCRIPTION")) {
+                    description = readText();
+                    descCount++;
+                } else {
+                    depth++;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+
+        // проверяем, чтобы оба обязательных поля ключа были, при чем не пустые
+        if (code == null) {
+            error("Error: Mandatory field DepCode is not found in node " + i + "!");
+            throw new HardException();
+        }
+
+        if (job == null) {
+            error("Error: Mandatory field DepJob is not found in node " + i + "!");
+            throw new HardException();
+        }
+
+        if (code.equals("")) {
+            error("Error: Mandatory field DepCode is empty in node " + i + "!");
+            throw new HardException();
+        }
+
+        if (job.equals("")) {
+            error("Error: Mandatory field DepJob is empty in node " + i + "!");
+            throw new HardException();
+        }
+
+        Pair newPair = new Pair(mKeyDictionary, code, job);
+        logger.trace("newPair = " + newPair.toString());
+
+        // проверка на уникальность ключа
+        if (mKeys != null && !mKeys.add(newPair)) {
+            error("Error: File contains multiple rows with the same key!");
+            throw new HardException();
+        }
+
+        // если описание задано (даже пустой строкой) - берем его, если записи нет, значит там был нулл - пишем нулл
+        Dep newDep = new Dep(newPair, (descCount == 1) ? description : null);
+        logger.trace("newDep = " + newDep.toString());
+
+        return newDep;
+    }
+
+    /**
+     * Чтение всего текста элемента, включая текст вложенных элементов (аналог getTextContent() в DOM).
+     * Ридер стоит на открывающем теге элемента, после чтения - на закрывающем.
+     * @return текст элемента
+     * @throws XMLStreamException некорректный xml
+     */
+    private String readText() throws XMLStreamException {
+        StringBuilder sb = null;
+        String text = "";
+        int depth = 1;
+
+        while (depth > 0) {
+            int event = mReader.next();
+
+            if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA || event == XMLStreamConstants.SPACE) {
+                // обычно текст приходит одним куском, тогда обходимся без StringBuilder
+                if (sb == null && text.isEmpty()) {
+                    text = mReader.getText();
+                } else {
+                    if (sb == null) sb = new StringBuilder(text);
+                    sb.append(mReader.getText());
+                }
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+
+        return (sb == null) ? text : sb.toString();
+    }
+
+    /**
+     * Закрытие файла.
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    @Override
+    public void close() throws HardException {
+        try {
+            if (mReader != null) mReader.close();
+            if (mInputStream != null) mInputStream.close();
+        } catch (XMLStreamException | IOException ex) {
+            error("Error: failed to close file");
+            throw new HardException(ex);
+        }
+    }
+
+    /**
+     * Закрытие файла при ошибке открытия; ошибки закрытия уже не важны.
+     */
+    private void closeQuietly() {
+        try {
+            if (mInputStream != null) mInputStream.close();
+        } catch (IOException ioEx) {
+            logger.debug(ioEx);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package DataSyncApp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+import static DataSyncApp.DataSync.logger;
+
+/**
+ * Потоковая запись строк в xml файл. Строки (Row) пишутся в буферизованный UTF-8 поток по мере поступления,
+ * без построения DOM документа и без сборки всего файла в одну строку.
+ * Результат побайтно совпадает с тем, что выдавал Transformer: без xml декларации, без отступов,
+ * с тем же экранированием текста; в конце файла - перевод строки (как от println). Если строк нет, в файле будет только перевод строки.
+ * Запись идет во временный файл рядом с целевым; целевой файл заменяется только в {@link #commit()},
+ * поэтому при ошибке на середине выгрузки старый файл остается нетронутым.
+ */
+class XmlDepWriter implements DepVisitor, AutoCloseable {
+    private File mFile;        // целевой файл
+    private File mTempFile;    // временный файл, в который идет запись
+    private Writer mWriter;    // буферизованный поток временного файла
+    private long mRowCount = 0; // количество записанных строк
+    private boolean mCommitted = false;
+
+    /**
+     * Открытие файла на запись.
+     * @param file целевой файл
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    XmlDepWriter(File file) throws HardException {
+        logger.debug("Creating new XmlDepWriter; file = " + file);
+        mFile = file;
+        mTempFile = new File(file.getPath() + ".tmp");
+
+        try {
+            mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mTempFile), StandardCharsets.UTF_8), 1 << 16);
+        } catch (IOException ioEx) {
+            logger.error("Error: failed to save data to file");
+            throw new HardException(ioEx);
+        }
+    }
+
+    /**
+     * Запись одной строки в файл.
+     * @param dep строка
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    @Override
+    public void visit(Dep dep) throws HardException {
+        logger.trace("dep = " + dep.toString());
+
+        try {
+            // корневой тег пишем только при первой строке: пустой мап давал пустой файл
+            if (mRowCount++ == 0) {
+                mWriter.write("<Results>");
+            }
+
+            mWriter.write("<Row>");
+            writeElement("DEPCODE", dep.getPair().getCode());
+            writeElement("DEPJOB", dep.getPair().getJob());
+
+            // если значение null - не создаем для него запись. иначе, если задано или пустая строка - создаем. при загрузке обратно работает по такой логике.
+            if (dep.getDescription() != null) {
+                writeElement("DESCRIPTION", dep.getDescription());
+            }
+
+            mWriter.write("</Row>");
+        } catch (IOException ioEx) {
+            logger.error("Error: failed to save data to file");
+            throw new HardException(ioEx);
+        }
+    }
+
+    /**
+     * Запись элемента с текстом; пустой элемент пишется сокращенно, как у Transformer.
+     * @param name имя тега
+     * @param text текст
+     * @throws IOException ошибка записи
+     */
+    private void writeElement(String name, String text) throws IOException {
+        if (text.isEmpty()) {
+            mWriter.write("<" + name + "/>");
+            return;
+        }
+
+        mWriter.write("<" + name + ">");
+        writeText(text);
+        mWriter.write("</" + name + ">");
+    }
+
+    /**
+     * Запись текста с экранированием по тем же правилам, что и у Transformer: &amp;, &lt;, &gt;, перевод каретки и управляющие символы -
+     * ссылками на символы, символы вне BMP - одной ссылкой на код символа, перевод строки - разделителем строк платформы.
+     * Одиночный младший суррогат пишется ссылкой, как у Transformer; одиночный старший - ошибка (Transformer на нем тоже падал, кроме самого конца документа).
+     * @param text текст
+     * @throws IOException ошибка записи
+     */
+    private void writeText(String text) throws IOException {
+        int start = 0; // начало еще не записанного куска без спецсимволов
+        int len = text.length();
+
+        for (int i = 0; i < len; i++) {
+            char c = text.charAt(i);
+            String escaped;
+
+            if (c == '&') {
+                escaped = "&amp;";
+            } else if (c == '<') {
+                escaped = "&lt;";
+            } else if (c == '>') {
+                escaped = "&gt;";
+            } else if (c == '\n') {
+                escaped = System.lineSeparator();
+            } else if ((c < 0x20 && c != '\t') || (c >= 0x7F && c <= 0x9F)) {
+                escaped = "&#" + (int) c + ";";
+            } else if (Character.isLowSurrogate(c)) {
+                escaped = "&#" + (int) c + ";";
+            } else if (Character.isHighSurrogate(c)) {
+                if (i + 1 < len && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    escaped = "&#" + Character.toCodePoint(c, text.charAt(i + 1)) + ";";
+                    mWriter.write(text, start, i - start);
+                    mWriter.write(escaped);
+                    start = ++i + 1;
+                    continue;
+                } else {
+                    throw new IOException("Invalid UTF-16 surrogate detected: " + Integer.toHexString(c));
+                }
+            } else {
+                continue;
+            }
+
+            mWriter.write(text, start, i - start);
+            mWriter.write(escaped);
+            start = i + 1;
+        }
+
+        mWriter.write(text, start, len - start);
+    }
+
+    /**
+     * Количество записанных строк.
+     * @return количество строк
+     */
+    long getRowCount() {
+        return mRowCount;
+    }
+
+    /**
+     * Завершение записи: дописываем закрывающий тег, и заменяем целевой файл записанным временным.
+     * @throws HardException выход из приложения из-за ошибки (обработанный)
+     */
+    void commit() throws HardException {
+        try {
+            if (mRowCount > 0) {
+                mWriter.write("</Results>");
+            }
+            mWriter.write(System.lineSeparator());
+            mWriter.close();
+
+            try {
+                Files.move(mTempFile.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException amEx) {
+                Files.move(mTempFile.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            mCommitted = true;
+            logger.debug("File written; mRowCount = " + mRowCount);
+        } catch (IOException ioEx) {
+            logger.error("Error: failed to save data to file");
+            throw new HardException(ioEx);
+        }
+    }
+
+    /**
+     * Закрытие записи. Если запись не была завершена через {@link #commit()}, временный файл удаляется, целевой остается как был.
+     */
+    @Override
+    public void close() {
+        if (mCommitted) return;
+
+        try {
+            mWriter.close();
+        } catch (IOException ioEx) {
+            logger.debug(ioEx);
+        }
+
+        logger.debug("Write not committed; deleting temporary file " + mTempFile);
+
+        if (mTempFile.exists() && !mTempFile.delete()) {
+            logger.debug("Unable to delete temporary file " + mTempFile);
+        }
+    }
+}
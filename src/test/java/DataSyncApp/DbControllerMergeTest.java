@@ -0,0 +1,140 @@
+package DataSyncApp;
+
+import org.apache.logging.log4j.LogManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Проверка синхронизации через промежуточную таблицу ({@link DbController#mergeDataIntoDb(DepSource)}) на встроенной БД H2 в режиме Oracle:
+ * загрузка файла в DZ_COMPANY_STAGE, удаление строк, которых нет в файле, и MERGE остальных.
+ */
+public class DbControllerMergeTest {
+    private static final String DB_URL = "jdbc:h2:mem:datasync;MODE=Oracle;DB_CLOSE_DELAY=-1";
+
+    private Connection mConn;          // подключение теста: создание таблиц и проверка результата
+    private DbController mDbController;
+
+    @BeforeClass
+    public static void initLogger() {
+        if (DataSync.logger == null) {
+            DataSync.logger = LogManager.getLogger(DataSync.class.getPackage().getName());
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mConn = DriverManager.getConnection(DB_URL, "sa", "");
+
+        try (Statement st = mConn.createStatement()) {
+            st.executeUpdate("CREATE TABLE DZ_COMPANY (ID NUMBER, DEPCODE VARCHAR2(20 CHAR), DEPJOB VARCHAR2(100 CHAR), "
+                    + "DESCRIPTION VARCHAR2(255 CHAR))");
+            st.executeUpdate("CREATE TABLE DZ_COMPANY_STAGE (DEPCODE VARCHAR2(20 CHAR) NOT NULL, DEPJOB VARCHAR2(100 CHAR) NOT NULL, "
+                    + "DESCRIPTION VARCHAR2(255 CHAR), CONSTRAINT DZ_COMPANY_STAGE_PK PRIMARY KEY (DEPCODE, DEPJOB))");
+        }
+
+        Properties props = new Properties();
+        props.setProperty("dbUrl", DB_URL);
+        props.setProperty("dbUsername", "sa");
+        props.setProperty("dbPassword", "");
+        props.setProperty("batchSize", "2");
+        props.setProperty("batchSizeMin", "1");
+        mDbController = new DbController(props);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDbController.close();
+
+        try (Statement st = mConn.createStatement()) {
+            st.executeUpdate("DROP TABLE DZ_COMPANY");
+            st.executeUpdate("DROP TABLE DZ_COMPANY_STAGE");
+        }
+        mConn.close();
+    }
+
+    @Test
+    public void mergeAppliesFileToTable() throws Exception {
+        insertRow(1, "A", "1", "same");
+        insertRow(2, "A", "2", "old");
+        insertRow(3, "B", "1", null);
+        insertRow(4, "C", "1", "to null");
+        insertRow(5, "D", "1", "gone");
+
+        List<Dep> file = Arrays.asList(
+                dep("A", "1", "same"),     // без изменений
+                dep("A", "2", "new"),      // изменение
+                dep("B", "1", "from null"),// NULL -> значение
+                dep("C", "1", null),       // значение -> NULL
+                dep("E", "1", "added"));   // добавление; D.1 - удаление
+
+        long changed = mDbController.mergeDataIntoDb(sourceOf(file));
+
+        assertEquals(5, changed);
+
+        Map<String,String> expected = new HashMap<>();
+        expected.put("A/1", "same");
+        expected.put("A/2", "new");
+        expected.put("B/1", "from null");
+        expected.put("C/1", null);
+        expected.put("E/1", "added");
+        assertEquals(expected, readTable());
+    }
+
+    @Test
+    public void mergeOfSameDataChangesNothing() throws Exception {
+        insertRow(1, "A", "1", "same");
+        insertRow(2, "B", "1", null);
+
+        long changed = mDbController.mergeDataIntoDb(sourceOf(Arrays.asList(dep("A", "1", "same"), dep("B", "1", null))));
+
+        assertEquals(0, changed);
+    }
+
+    private void insertRow(int id, String code, String job, String description) throws SQLException {
+        try (PreparedStatement ps = mConn.prepareStatement("INSERT INTO DZ_COMPANY (ID, DEPCODE, DEPJOB, DESCRIPTION) VALUES (?, ?, ?, ?)")) {
+            ps.setInt(1, id);
+            ps.setString(2, code);
+            ps.setString(3, job);
+            ps.setString(4, description);
+            ps.executeUpdate();
+        }
+    }
+
+    private Map<String,String> readTable() throws SQLException {
+        Map<String,String> rows = new HashMap<>();
+
+        try (Statement st = mConn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT DEPCODE, DEPJOB, DESCRIPTION FROM DZ_COMPANY")) {
+            while (rs.next()) {
+                rows.put(rs.getString(1) + "/" + rs.getString(2), rs.getString(3));
+            }
+        }
+        return rows;
+    }
+
+    private static Dep dep(String code, String job, String description) {
+        return new Dep(new Pair(new KeyDictionary(), code, job), description);
+    }
+
+    private static DepSource sourceOf(List<Dep> deps) {
+        Iterator<Dep> it = deps.iterator();
+
+        return new DepSource() {
+            @Override
+            public Dep next() {
+                return it.hasNext() ? it.next() : null;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,118 @@
+package DataSyncApp;
+
+import org.apache.logging.log4j.LogManager;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Сверка быстрого разбора ({@link FastXmlDepReader}) с StAX ридером ({@link XmlDepReader}): на одном и том же файле
+ * они должны выдавать одни и те же строки в том же порядке, либо одинаково падать.
+ */
+public class FastXmlDepReaderTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void initLogger() {
+        if (DataSync.logger == null) {
+            DataSync.logger = LogManager.getLogger(DataSync.class.getPackage().getName());
+        }
+    }
+
+    @Test
+    public void samplesReadSameAsStax() throws Exception {
+        List<File> samples = new ArrayList<>();
+        samples.add(new File("file.xml"));
+
+        File[] dirs = new File("docs").listFiles(File::isDirectory);
+        assertTrue("no samples in docs", dirs != null && dirs.length > 0);
+        for (File dir : dirs) {
+            File sample = new File(dir, "file.xml");
+            if (sample.isFile()) {
+                samples.add(sample);
+            }
+        }
+
+        for (File sample : samples) {
+            assertSameAsStax(sample);
+        }
+    }
+
+    @Test
+    public void plainReferencesExpanded() throws Exception {
+        File file = write("<Results><Row><DEPCODE>&#65;&#x42;&#x43;</DEPCODE><DEPJOB>&amp;&lt;&gt;&quot;&apos;</DEPJOB></Row></Results>");
+
+        List<String> rows = assertSameAsStax(file);
+        assertEquals(1, rows.size());
+        assertTrue(rows.get(0), rows.get(0).contains("ABC"));
+    }
+
+    @Test
+    public void signedDecimalReferenceRejected() throws Exception {
+        assertRejected("&#+65;");
+    }
+
+    @Test
+    public void signedHexReferenceRejected() throws Exception {
+        assertRejected("&#x+41;");
+    }
+
+    @Test
+    public void nonAsciiDigitReferenceRejected() throws Exception {
+        // арабско-индийские цифры: Character.digit их принимает, xml - нет
+        assertRejected("&#٦٥;");
+    }
+
+    private void assertRejected(String reference) throws Exception {
+        File file = write("<Results><Row><DEPCODE>a</DEPCODE><DEPJOB>b</DEPJOB></Row>"
+                + "<Row><DEPCODE>" + reference + "</DEPCODE><DEPJOB>b</DEPJOB></Row></Results>");
+
+        List<String> rows = assertSameAsStax(file);
+        assertFalse(rows.toString(), rows.isEmpty());
+        assertTrue(rows.toString(), rows.get(rows.size() - 1).startsWith("failed"));
+    }
+
+    /**
+     * Чтение файла обоими ридерами и сравнение результатов.
+     * @param file файл
+     * @return результат чтения: строки, и в конце - ошибка, если чтение упало
+     */
+    private static List<String> assertSameAsStax(File file) {
+        List<String> stax = readAll(file, false);
+        assertEquals(file.toString(), stax, readAll(file, true));
+        return stax;
+    }
+
+    private static List<String> readAll(File file, boolean fast) {
+        List<String> result = new ArrayList<>();
+        KeyDictionary keyDictionary = new KeyDictionary();
+
+        try (DepSource reader = fast ? new FastXmlDepReader(file, true, keyDictionary) : new XmlDepReader(file, true, keyDictionary)) {
+            for (Dep dep = reader.next(); dep != null; dep = reader.next()) {
+                result.add(dep.toString());
+            }
+        } catch (HardException hEx) {
+            result.add("failed: " + hEx.getClass().getSimpleName());
+        }
+        return result;
+    }
+
+    private File write(String content) throws IOException {
+        File file = mFolder.newFile();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}